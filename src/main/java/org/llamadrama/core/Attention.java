@@ -0,0 +1,329 @@
+package org.llamadrama.core;
+
+import org.llamadrama.tensor.ArrayFloatTensor;
+import org.llamadrama.tensor.FloatTensor;
+import org.llamadrama.util.ComputePool;
+import org.llamadrama.util.Parallel;
+
+import java.util.Arrays;
+
+/**
+ * Multi-head attention of one layer, over the key/value cache of the state.
+ * <p>
+ * Two strategies, neither materializes the full row of scores:
+ * <ul>
+ *     <li>tiled (flash attention): one task per KV head and block of consecutive tokens, streaming the cache in
+ *     tiles with an online softmax, see {@link #tiled(Query[], KVCache, int, int, int, float)};</li>
+ *     <li>split-K (flash-decoding): the positions are also split into chunks of {@link #SPLIT_K_CHUNK},
+ *     every chunk produces a partial result (local max, local sum of exponentials and unnormalized weighted
+ *     sum of the values) which are merged afterwards with the online-softmax rule. Used when there are not
+ *     enough KV heads to keep all the threads busy when decoding a long context (a single token).</li>
+ * </ul>
+ * Both are grouped-query aware: the {@code kvMul} query heads sharing a KV head are computed by the same task, every
+ * key and value row is read once for all of them instead of once per query head.
+ * With {@link HeavyHitterEviction} the softmax weights of the tiled kernel are also added to the scores of the
+ * cached positions; split-K is not used then.
+ */
+final class Attention {
+
+    static final int SPLIT_K_CHUNK = 256;
+
+    // auto (default), true or false.
+    private static final String SPLIT_K = System.getProperty("llama.SplitKAttention", "auto");
+
+    // Positions streamed at once by the tiled kernel.
+    static final int TILE = 128;
+    static final int MAX_QUERIES_PER_TASK = 16;
+
+    private static final ThreadLocal<float[]> SCORES = ThreadLocal.withInitial(() -> new float[SPLIT_K_CHUNK]);
+    private static final ThreadLocal<float[]> TILE_SCORES = ThreadLocal.withInitial(() -> new float[TILE]);
+    private static final ThreadLocal<float[]> WEIGHTS = ThreadLocal.withInitial(() -> new float[TILE]);
+    private static final ThreadLocal<float[]> MASS = ThreadLocal.withInitial(() -> new float[TILE]);
+
+    private Attention() {
+    }
+
+    /**
+     * Computes the attention of the {@code nTokens} queries of {@code state.q} into {@code state.xb}.
+     * The keys/values of the tokens are already stored in the cache at [position, position + nTokens).
+     */
+    static void attention(LlamaModel.Configuration config, LlamaModel.State state, int layer, int nTokens, int position) {
+        if (state.kvEviction == null && useSplitK(config, nTokens, position)) {
+            splitK(config, state, layer, nTokens, position);
+        } else {
+            tiled(config, state, layer, nTokens, position);
+        }
+    }
+
+    static boolean useSplitK(LlamaModel.Configuration config, int nTokens, int position) {
+        return switch (SPLIT_K) {
+            case "true" -> true;
+            case "false" -> false;
+            default -> {
+                // Splitting pays off once the KV head tasks cannot occupy the pool and there are at least a few
+                // chunks to spread. Decode only: the scratch grows with the number of tokens times the context.
+                yield nTokens == 1 && config.numberOfKeyValueHeads < 2 * ComputePool.shared().parallelism()
+                        && position + nTokens >= 4 * SPLIT_K_CHUNK;
+            }
+        };
+    }
+
+    static void tiled(LlamaModel.Configuration config, LlamaModel.State state, int layer, int nTokens, int position) {
+        int headSize = config.headSize;
+        int kvMul = config.numberOfHeads / config.numberOfKeyValueHeads; // integer multiplier of the kv sharing in multiquery
+        float scale = (float) (1.0 / Math.sqrt(headSize));
+        // Grouped-query attention: a task takes the kvMul query heads sharing a KV head, for consecutive tokens,
+        // so every key/value row is loaded once for all of them, as long as there are enough tasks for the pool.
+        int tokensPerTask = Math.clamp((long) nTokens * config.numberOfKeyValueHeads / (2L * ComputePool.shared().parallelism()),
+                1, Math.max(1, MAX_QUERIES_PER_TASK / kvMul));
+        int tokenBlocks = (nTokens + tokensPerTask - 1) / tokensPerTask;
+
+        Parallel.parallelForLong(0, (long) config.numberOfKeyValueHeads * tokenBlocks, task -> {
+            int kvHead = (int) (task / tokenBlocks);
+            int firstToken = (int) (task % tokenBlocks) * tokensPerTask;
+            int numberOfTokens = Math.min(tokensPerTask, nTokens - firstToken);
+            Query[] queries = new Query[numberOfTokens * kvMul];
+            for (int i = 0; i < numberOfTokens; ++i) {
+                int token = firstToken + i;
+                for (int j = 0; j < kvMul; ++j) {
+                    int h = kvHead * kvMul + j;
+                    // causal mask: a token attends to the positions up to its own, inclusively
+                    queries[i * kvMul + j] = new Query(state.q[token], h * headSize, state.xb[token], h * headSize, position + token + 1);
+                }
+            }
+            if (state.kvEviction == null) {
+                tiled(queries, state.kvCache, layer, kvHead, headSize, scale, null);
+            } else {
+                int end = position + firstToken + numberOfTokens;
+                float[] mass = grow(MASS, end);
+                Arrays.fill(mass, 0, end, 0f);
+                tiled(queries, state.kvCache, layer, kvHead, headSize, scale, mass);
+                state.kvEviction.accumulate(mass, end);
+            }
+        });
+    }
+
+    /**
+     * A query vector, the output it is attended into and the number of cached positions it can attend to.
+     */
+    record Query(FloatTensor q, int qOffset, FloatTensor out, int outOffset, int length) {
+    }
+
+    /**
+     * Flash-attention style kernel: the queries, which all use the same KV head, stream the cache in tiles of
+     * {@link #TILE} positions with a running max and sum per query, so no score row is materialized.
+     * Every key and value row of a tile is loaded once for all the queries; tiles past the length of a query
+     * (fully masked) are skipped for that query.
+     */
+    static void tiled(Query[] queries, KVCache cache, int layer, int kvHead, int headSize, float scale) {
+        tiled(queries, cache, layer, kvHead, headSize, scale, null);
+    }
+
+    /**
+     * Same as {@link #tiled(Query[], KVCache, int, int, int, float)}, also adding the softmax weights of the
+     * queries to {@code mass[t]} for every position {@code t}, if {@code mass} is not null.
+     */
+    static void tiled(Query[] queries, KVCache cache, int layer, int kvHead, int headSize, float scale, float[] mass) {
+        int n = queries.length;
+        float[] scores = grow(TILE_SCORES, n * TILE);
+        float[] max = new float[n];
+        float[] sum = new float[n];
+        int end = 0;
+        for (int i = 0; i < n; ++i) {
+            max[i] = Float.NEGATIVE_INFINITY;
+            queries[i].out.fillInPlace(queries[i].outOffset, headSize, 0f);
+            end = Math.max(end, queries[i].length);
+        }
+        // unnormalized weights exp(score - running max) and the running max of every tile, to recover the softmax weights
+        int numberOfTiles = (end + TILE - 1) / TILE;
+        float[] weights = mass != null ? grow(WEIGHTS, n * end) : null;
+        float[] tileMaxes = mass != null ? new float[n * numberOfTiles] : null;
+        for (int from = 0; from < end; from += TILE) {
+            int to = Math.min(from + TILE, end);
+            // scores of the tile
+            for (int t = from; t < to; ++t) {
+                FloatTensor keys = cache.keys(t);
+                int kOffset = cache.offset(layer, t, kvHead);
+                for (int i = 0; i < n; ++i) {
+                    Query query = queries[i];
+                    if (t < query.length) {
+                        scores[i * TILE + t - from] = query.q.dot(query.qOffset, keys, kOffset, headSize) * scale;
+                    }
+                }
+            }
+            // online softmax: rescale what was accumulated so far if the max grows
+            for (int i = 0; i < n; ++i) {
+                Query query = queries[i];
+                int queryTo = Math.min(to, query.length);
+                float tileMax = Float.NEGATIVE_INFINITY;
+                for (int t = from; t < queryTo; ++t) {
+                    tileMax = Math.max(tileMax, scores[i * TILE + t - from]);
+                }
+                if (tileMax > max[i]) {
+                    if (sum[i] > 0f) {
+                        float correction = (float) Math.exp(max[i] - tileMax);
+                        query.out.scaleInPlace(query.outOffset, headSize, correction);
+                        sum[i] *= correction;
+                    }
+                    max[i] = tileMax;
+                }
+                for (int t = from; t < queryTo; ++t) {
+                    float weight = (float) Math.exp(scores[i * TILE + t - from] - max[i]);
+                    scores[i * TILE + t - from] = weight;
+                    sum[i] += weight;
+                }
+                if (mass != null) {
+                    System.arraycopy(scores, i * TILE, weights, i * end + from, Math.max(0, queryTo - from));
+                    tileMaxes[i * numberOfTiles + from / TILE] = max[i];
+                }
+            }
+            // weighted values of the tile
+            for (int t = from; t < to; ++t) {
+                FloatTensor values = cache.values(t);
+                int vOffset = cache.offset(layer, t, kvHead);
+                for (int i = 0; i < n; ++i) {
+                    Query query = queries[i];
+                    if (t < query.length) {
+                        query.out.saxpyInPlace(query.outOffset, values, vOffset, headSize, scores[i * TILE + t - from]);
+                    }
+                }
+            }
+        }
+        for (int i = 0; i < n; ++i) {
+            queries[i].out.scaleInPlace(queries[i].outOffset, headSize, 1f / sum[i]);
+        }
+        if (mass != null) {
+            for (int i = 0; i < n; ++i) {
+                int length = queries[i].length;
+                for (int from = 0; from < length; from += TILE) {
+                    float correction = (float) Math.exp(tileMaxes[i * numberOfTiles + from / TILE] - max[i]) / sum[i];
+                    for (int t = from; t < Math.min(from + TILE, length); ++t) {
+                        mass[t] += weights[i * end + t] * correction;
+                    }
+                }
+            }
+        }
+    }
+
+    private static float[] grow(ThreadLocal<float[]> scratch, int size) {
+        float[] array = scratch.get();
+        if (array.length < size) {
+            array = new float[size];
+            scratch.set(array);
+        }
+        return array;
+    }
+
+    static void splitK(LlamaModel.Configuration config, LlamaModel.State state, int layer, int nTokens, int position) {
+        int headSize = config.headSize;
+        int kvMul = config.numberOfHeads / config.numberOfKeyValueHeads;
+        int numberOfHeads = config.numberOfHeads;
+        float scale = (float) (1.0 / Math.sqrt(headSize));
+        int numberOfChunks = (position + nTokens + SPLIT_K_CHUNK - 1) / SPLIT_K_CHUNK;
+        int numberOfPartials = nTokens * numberOfHeads * numberOfChunks;
+        SplitKScratch scratch = state.splitKScratch(numberOfPartials, headSize);
+
+        // partial results, one per (token, chunk, head), computed by (token, chunk, KV head) for the kvMul query heads at once
+        Parallel.parallelForLong(0, (long) nTokens * numberOfChunks * config.numberOfKeyValueHeads, task -> {
+            int kvHead = (int) (task % config.numberOfKeyValueHeads);
+            int tc = (int) (task / config.numberOfKeyValueHeads);
+            int chunk = tc % numberOfChunks;
+            int token = tc / numberOfChunks;
+            int p = tc * numberOfHeads + kvHead * kvMul; // partial of the first query head of the group
+            int from = chunk * SPLIT_K_CHUNK;
+            int to = Math.min(from + SPLIT_K_CHUNK, position + token + 1);
+            if (from >= to) {
+                // fully masked chunk
+                for (int j = 0; j < kvMul; ++j) {
+                    scratch.max[p + j] = Float.NEGATIVE_INFINITY;
+                    scratch.sum[p + j] = 0f;
+                }
+                return;
+            }
+            partial(state.q[token], kvHead * kvMul * headSize, kvMul, state.kvCache, layer, kvHead, headSize, scale, from, to,
+                    scratch.out, p * headSize, scratch.max, scratch.sum, p);
+        });
+
+        // merge the partial results of every (token, head)
+        Parallel.parallelForLong(0, (long) nTokens * numberOfHeads, ht -> {
+            int token = (int) (ht / numberOfHeads);
+            int h = (int) (ht % numberOfHeads);
+            int first = token * numberOfChunks * numberOfHeads + h; // the chunks of (token, head) are numberOfHeads apart
+            float max = Float.NEGATIVE_INFINITY;
+            for (int c = 0; c < numberOfChunks; ++c) {
+                max = Math.max(max, scratch.max[first + c * numberOfHeads]);
+            }
+            float sum = 0f;
+            for (int c = 0; c < numberOfChunks; ++c) {
+                int p = first + c * numberOfHeads;
+                if (scratch.sum[p] > 0f) {
+                    sum += scratch.sum[p] * (float) Math.exp(scratch.max[p] - max);
+                }
+            }
+            int xbOffset = h * headSize;
+            state.xb[token].fillInPlace(xbOffset, headSize, 0f);
+            for (int c = 0; c < numberOfChunks; ++c) {
+                int p = first + c * numberOfHeads;
+                if (scratch.sum[p] > 0f) {
+                    float weight = (float) Math.exp(scratch.max[p] - max) / sum;
+                    state.xb[token].saxpyInPlace(xbOffset, scratch.out, p * headSize, headSize, weight);
+                }
+            }
+        });
+    }
+
+    /**
+     * Attends the {@code numberOfQueries} consecutive query heads of {@code q} starting at {@code qOffset}, which share
+     * one KV head, to the cached positions [from, to); every key/value row is loaded once for all of them.
+     * Stores, for every query {@code j}, the max of the scores at {@code index + j}, the sum of {@code exp(score - max)}
+     * and the values weighted by {@code exp(score - max)} (not normalized) at {@code outOffset + j * headSize}.
+     */
+    static void partial(FloatTensor q, int qOffset, int numberOfQueries, KVCache cache, int layer, int kvHead, int headSize, float scale, int from, int to,
+                        FloatTensor out, int outOffset, float[] maxs, float[] sums, int index) {
+        float[] scores = grow(SCORES, numberOfQueries * SPLIT_K_CHUNK);
+        for (int j = 0; j < numberOfQueries; ++j) {
+            maxs[index + j] = Float.NEGATIVE_INFINITY;
+        }
+        for (int t = from; t < to; ++t) {
+            FloatTensor keys = cache.keys(t);
+            int kOffset = cache.offset(layer, t, kvHead);
+            for (int j = 0; j < numberOfQueries; ++j) {
+                float score = q.dot(qOffset + j * headSize, keys, kOffset, headSize) * scale;
+                scores[j * SPLIT_K_CHUNK + t - from] = score;
+                maxs[index + j] = Math.max(maxs[index + j], score);
+            }
+        }
+        out.fillInPlace(outOffset, numberOfQueries * headSize, 0f);
+        for (int j = 0; j < numberOfQueries; ++j) {
+            sums[index + j] = 0f;
+        }
+        for (int t = from; t < to; ++t) {
+            FloatTensor values = cache.values(t);
+            int vOffset = cache.offset(layer, t, kvHead);
+            for (int j = 0; j < numberOfQueries; ++j) {
+                float weight = (float) Math.exp(scores[j * SPLIT_K_CHUNK + t - from] - maxs[index + j]);
+                sums[index + j] += weight;
+                out.saxpyInPlace(outOffset + j * headSize, values, vOffset, headSize, weight);
+            }
+        }
+    }
+
+    /**
+     * Partial results of split-K attention, grown on demand and kept in the state.
+     */
+    static final class SplitKScratch {
+        final FloatTensor out;
+        final float[] max;
+        final float[] sum;
+
+        SplitKScratch(int numberOfPartials, int headSize) {
+            this.out = ArrayFloatTensor.allocate(numberOfPartials * headSize);
+            this.max = new float[numberOfPartials];
+            this.sum = new float[numberOfPartials];
+        }
+
+        int capacity() {
+            return max.length;
+        }
+    }
+}
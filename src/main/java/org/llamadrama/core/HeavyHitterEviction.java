@@ -0,0 +1,127 @@
+package org.llamadrama.core;
+
+import java.util.Arrays;
+
+/**
+ * Score-based KV cache eviction (H2O, heavy-hitter oracle): keeps at most {@code budget} positions in the KV cache,
+ * the most recent ones and the ones which received the most attention so far.
+ * <p>
+ * The attention kernel adds the softmax weights of every query (all layers and heads) to the score of the position
+ * they attend to, see {@link #accumulate}. Once the budget is exceeded, the lowest scoring positions outside of the
+ * recent window are dropped, at least a {@link KVBlockPool#BLOCK_SIZE block} of them at once, and the remaining ones
+ * are compacted and re-rotated (see {@link KVCache#retain}). A smaller budget trades quality for memory.
+ */
+public final class HeavyHitterEviction {
+
+    private final int budget;
+    private final int recentTokens;
+    private final float[] scores; // accumulated attention per cached position
+
+    // statistics
+    private long evictions;
+    private long evictedPositions;
+    private double evictedScore;
+
+    /**
+     * @param budget       maximum number of positions in the KV cache
+     * @param recentTokens most recent positions, never evicted
+     */
+    public HeavyHitterEviction(LlamaModel.Configuration config, int budget, int recentTokens) {
+        if (budget > config.contextLength || recentTokens < 0 || recentTokens + KVBlockPool.BLOCK_SIZE > budget) {
+            throw new IllegalArgumentException("Invalid KV budget: " + budget + " positions, " + recentTokens
+                    + " recent ones (at most " + config.contextLength + " positions, " + KVBlockPool.BLOCK_SIZE + " more than the recent ones)");
+        }
+        this.budget = budget;
+        this.recentTokens = recentTokens;
+        this.scores = new float[config.contextLength];
+    }
+
+    public int budget() {
+        return budget;
+    }
+
+    public int recentTokens() {
+        return recentTokens;
+    }
+
+    /**
+     * Adds {@code weights[0 ... length)}, attention weights of some queries, to the scores of the positions.
+     */
+    synchronized void accumulate(float[] weights, int length) {
+        for (int t = 0; t < length; ++t) {
+            scores[t] += weights[t];
+        }
+    }
+
+    synchronized float score(int position) {
+        return scores[position];
+    }
+
+    /**
+     * Evicts positions from the first {@code length} ones of the KV cache until {@code nTokens} more fit in the budget.
+     *
+     * @return the number of positions left in the KV cache
+     */
+    synchronized int makeRoom(LlamaModel model, LlamaModel.State state, int length, int nTokens) {
+        if (length + nTokens <= budget) {
+            return length;
+        }
+        int candidates = length - recentTokens;
+        int count = Math.min(candidates, Math.max(length + nTokens - budget, KVBlockPool.BLOCK_SIZE));
+        if (count <= 0 || length - count + nTokens > budget) {
+            throw new IllegalStateException("Cannot fit " + nTokens + " positions in a KV budget of " + budget);
+        }
+        // The count-th lowest score, ties are broken in favor of the most recent positions.
+        float[] sorted = Arrays.copyOf(scores, candidates);
+        Arrays.sort(sorted);
+        float threshold = sorted[count - 1];
+        int below = 0;
+        for (int t = 0; t < candidates; ++t) {
+            if (scores[t] < threshold) {
+                below++;
+            }
+        }
+        int tied = count - below;
+        int[] positions = new int[length - count];
+        int n = 0;
+        for (int t = 0; t < length; ++t) {
+            boolean evicted = t < candidates && (scores[t] < threshold || (scores[t] == threshold && tied-- > 0));
+            if (evicted) {
+                evictedScore += scores[t];
+            } else {
+                scores[n] = scores[t];
+                positions[n++] = t;
+            }
+        }
+        Arrays.fill(scores, n, scores.length, 0f);
+        state.kvCache.retain(positions, model.weights().rope);
+        evictions++;
+        evictedPositions += count;
+        return n;
+    }
+
+    /**
+     * Total number of positions evicted so far.
+     */
+    public synchronized long evictedPositions() {
+        return evictedPositions;
+    }
+
+    /**
+     * Share of the attention mass accumulated so far which was dropped by the evictions, the lower the better.
+     */
+    public synchronized double evictedMass() {
+        double retainedScore = 0;
+        for (float score : scores) {
+            retainedScore += score; // 0 past the cached positions
+        }
+        double total = evictedScore + retainedScore;
+        return total > 0 ? evictedScore / total : 0.0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "HeavyHitterEviction[budget=%d, recent=%d, evictions=%d, evictedPositions=%d, evictedMass=%.2f%%]"
+                .formatted(budget, recentTokens, evictions, evictedPositions, 100 * evictedMass());
+    }
+}
@@ -0,0 +1,226 @@
+package org.llamadrama.core;
+
+import org.llamadrama.gguf.GGMLType;
+import org.llamadrama.tensor.F32FloatTensor;
+import org.llamadrama.tensor.FloatTensor;
+
+import java.util.ArrayDeque;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Bounded pool of KV cache blocks, shared by the states of a model.
+ * <p>
+ * A block holds the keys and values of {@link #BLOCK_SIZE} consecutive positions for all the layers.
+ * Blocks are allocated on demand, the first time a state needs them, and recycled once released, so the
+ * memory follows the number of tokens actually cached rather than the context length of every state.
+ * <p>
+ * Blocks are reference-counted: a block can be shared by several states and a {@link PrefixCache}, it is
+ * recycled once the last reference is released. Shared blocks are read-only, a state writing into one
+ * gets a private copy first, see {@link #copyOnWrite(Block)}.
+ * <p>
+ * Within a block, the keys/values are laid out according to the {@link Layout} of the pool.
+ */
+public final class KVBlockPool {
+
+    // Number of positions per block.
+    static final int BLOCK_SIZE = Integer.getInteger("llama.KVBlockSize", 64);
+
+    private final int numberOfLayers;
+    private final int kvDim;
+    private final GGMLType kvType;
+    private final int capacity;
+
+    /**
+     * Layout of the keys/values of a block.
+     */
+    public enum Layout {
+        /**
+         * (n_layer, BLOCK_SIZE, kv_dim): the heads of a position are contiguous, a position is stored at once.
+         */
+        POSITION_MAJOR,
+        /**
+         * (n_layer, n_kv_heads, BLOCK_SIZE, head_size): the positions of a head are contiguous, attention scans
+         * them sequentially instead of striding by kv_dim. F32 blocks are allocated off-heap, 64-byte aligned.
+         */
+        HEAD_MAJOR;
+
+        static Layout parse(String value) {
+            return switch (value) {
+                case "position" -> POSITION_MAJOR;
+                case "head" -> HEAD_MAJOR;
+                default -> throw new IllegalArgumentException("Unsupported KV layout: " + value + " (expected position or head)");
+            };
+        }
+    }
+
+    // position (default) or head.
+    static final Layout DEFAULT_LAYOUT = Layout.parse(System.getProperty("llama.KVLayout", "position"));
+
+    private final Layout layout;
+    private final ArrayDeque<Block> free = new ArrayDeque<>();
+    private int allocated;
+
+    // Frees cached blocks when the pool is exhausted, returns false once there is nothing left to free.
+    private volatile BooleanSupplier reclaimer;
+
+    /**
+     * @param capacity maximum number of blocks, see {@link #blocksFor(int)}
+     */
+    public KVBlockPool(LlamaModel.Configuration config, GGMLType kvType, int capacity) {
+        this(config, kvType, capacity, DEFAULT_LAYOUT);
+    }
+
+    public KVBlockPool(LlamaModel.Configuration config, GGMLType kvType, int capacity, Layout layout) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity " + capacity);
+        }
+        if (layout == Layout.HEAD_MAJOR && kvType.getBlockSize() > 1 && config.headSize % kvType.getBlockSize() != 0) {
+            throw new IllegalArgumentException("Head size " + config.headSize + " is not a multiple of the " + kvType + " block size");
+        }
+        this.numberOfLayers = config.numberOfLayers;
+        this.kvDim = (config.dim * config.numberOfKeyValueHeads) / config.numberOfHeads;
+        this.kvType = kvType;
+        this.capacity = capacity;
+        this.layout = layout;
+    }
+
+    /**
+     * Number of blocks needed to cache {@code numberOfTokens} positions.
+     */
+    public static int blocksFor(int numberOfTokens) {
+        return (numberOfTokens + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    }
+
+    public GGMLType kvType() {
+        return kvType;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public Layout layout() {
+        return layout;
+    }
+
+    /**
+     * Number of blocks currently held by states.
+     */
+    public synchronized int usedBlocks() {
+        return allocated - free.size();
+    }
+
+    void setReclaimer(BooleanSupplier reclaimer) {
+        this.reclaimer = reclaimer;
+    }
+
+    /**
+     * Returns a block with a single reference, reclaiming cached blocks if the pool is exhausted.
+     */
+    Block allocate() {
+        return obtain(null, null);
+    }
+
+    /**
+     * Takes ownership of existing key/value tensors (e.g. a restored snapshot), as a block with a single reference.
+     * The tensors must be stored in the {@link #kvType() KV type} of the pool. Adopted blocks are dropped once
+     * released, never recycled.
+     */
+    Block adopt(FloatTensor keys, FloatTensor values) {
+        int size = numberOfLayers * BLOCK_SIZE * kvDim;
+        if (keys.size() != size || values.size() != size) {
+            throw new IllegalArgumentException("Expected blocks of " + size + " elements");
+        }
+        return obtain(keys, values);
+    }
+
+    private Block obtain(FloatTensor keys, FloatTensor values) {
+        while (true) {
+            synchronized (this) {
+                Block block = null;
+                if (keys == null) {
+                    block = free.poll();
+                } else if (allocated == capacity && !free.isEmpty()) {
+                    // drop an idle block to make room for the adopted one
+                    free.poll();
+                    allocated--;
+                }
+                if (block == null && allocated < capacity) {
+                    if (keys == null) {
+                        int size = numberOfLayers * BLOCK_SIZE * kvDim;
+                        block = new Block(allocateTensor(size), allocateTensor(size), false);
+                    } else {
+                        block = new Block(keys, values, true);
+                    }
+                    allocated++;
+                }
+                if (block != null) {
+                    block.refCount = 1;
+                    return block;
+                }
+            }
+            // Outside of the lock, the reclaimer releases blocks.
+            BooleanSupplier reclaimer = this.reclaimer;
+            if (reclaimer == null || !reclaimer.getAsBoolean()) {
+                throw new IllegalStateException("KV cache pool exhausted: " + capacity + " blocks of " + BLOCK_SIZE + " positions");
+            }
+        }
+    }
+
+    private FloatTensor allocateTensor(int size) {
+        if (layout == Layout.HEAD_MAJOR && kvType == GGMLType.F32) {
+            return F32FloatTensor.allocate(size);
+        }
+        return FloatTensor.allocate(kvType, size); // compressed types are always off-heap
+    }
+
+    synchronized Block retain(Block block) {
+        assert block.refCount > 0;
+        block.refCount++;
+        return block;
+    }
+
+    synchronized void release(Block block) {
+        assert block.refCount > 0;
+        if (--block.refCount == 0) {
+            if (block.adopted) {
+                // never recycled: writes would dirty the pages of its mapping, which would stay alive with the pool
+                allocated--;
+            } else {
+                free.push(block);
+            }
+        }
+    }
+
+    synchronized boolean isShared(Block block) {
+        return block.refCount > 1;
+    }
+
+    /**
+     * Returns a private copy of a shared block and releases the reference to the original.
+     */
+    Block copyOnWrite(Block block) {
+        Block copy = allocate();
+        int size = block.keys.size();
+        block.keys.copyTo(0, copy.keys, 0, size);
+        block.values.copyTo(0, copy.values, 0, size);
+        release(block);
+        return copy;
+    }
+
+    /**
+     * Keys and values of {@link #BLOCK_SIZE} positions for all the layers, see {@link Layout}.
+     */
+    static final class Block {
+        final FloatTensor keys;
+        final FloatTensor values;
+        final boolean adopted; // see adopt, dropped once released
+        int refCount; // guarded by the pool
+
+        Block(FloatTensor keys, FloatTensor values, boolean adopted) {
+            this.keys = keys;
+            this.values = values;
+            this.adopted = adopted;
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package org.llamadrama.core;
+
+import org.llamadrama.math.RoPE;
+import org.llamadrama.tensor.ArrayFloatTensor;
+import org.llamadrama.tensor.FloatTensor;
+import org.llamadrama.util.Parallel;
+
+/**
+ * Paged key/value cache of one sequence: a block table mapping positions to blocks of a {@link KVBlockPool}.
+ * <p>
+ * Position {@code p} lives in the block {@code p / BLOCK_SIZE} of the table; the blocks are taken from the pool
+ * by {@link #ensureCapacity(int)} as the sequence grows and given back by {@link #release()}. Blocks shared
+ * with other sequences (prefix caching) are copied before being written, see {@link #ensureWritable(int, int)}.
+ */
+public final class KVCache {
+
+    private final KVBlockPool pool;
+    private final int numberOfLayers;
+    private final int kvDim;
+    private final int numberOfKeyValueHeads;
+    private final int headSize;
+    private final KVBlockPool.Block[] blocks; // block table
+    private int numberOfBlocks;
+
+    KVCache(LlamaModel.Configuration config, KVBlockPool pool) {
+        this.pool = pool;
+        this.numberOfLayers = config.numberOfLayers;
+        this.kvDim = (config.dim * config.numberOfKeyValueHeads) / config.numberOfHeads;
+        this.numberOfKeyValueHeads = config.numberOfKeyValueHeads;
+        this.headSize = config.headSize;
+        this.blocks = new KVBlockPool.Block[KVBlockPool.blocksFor(config.contextLength)];
+    }
+
+    public KVBlockPool pool() {
+        return pool;
+    }
+
+    /**
+     * Number of positions that can be stored without taking more blocks from the pool.
+     */
+    public int capacity() {
+        return numberOfBlocks * KVBlockPool.BLOCK_SIZE;
+    }
+
+    /**
+     * Takes blocks from the pool until the positions [0, numberOfTokens) are backed.
+     */
+    void ensureCapacity(int numberOfTokens) {
+        int needed = KVBlockPool.blocksFor(numberOfTokens);
+        if (needed > blocks.length) {
+            throw new IllegalArgumentException("Context length exceeded: " + numberOfTokens + " positions");
+        }
+        while (numberOfBlocks < needed) {
+            blocks[numberOfBlocks] = pool.allocate();
+            numberOfBlocks++;
+        }
+    }
+
+    /**
+     * Takes blocks from the pool up to {@code to} and replaces the shared blocks overlapping [from, to) by private copies.
+     */
+    void ensureWritable(int from, int to) {
+        ensureCapacity(to);
+        for (int b = from / KVBlockPool.BLOCK_SIZE; b < KVBlockPool.blocksFor(to); ++b) {
+            if (pool.isShared(blocks[b])) {
+                blocks[b] = pool.copyOnWrite(blocks[b]);
+            }
+        }
+    }
+
+    int numberOfBlocks() {
+        return numberOfBlocks;
+    }
+
+    KVBlockPool.Block block(int index) {
+        return blocks[index];
+    }
+
+    /**
+     * Appends a block shared with another holder to the block table.
+     */
+    void append(KVBlockPool.Block block) {
+        if (numberOfBlocks == blocks.length) {
+            throw new IllegalArgumentException("Context length exceeded: " + (numberOfBlocks + 1) + " blocks");
+        }
+        blocks[numberOfBlocks++] = pool.retain(block);
+    }
+
+    /**
+     * Appends existing key/value tensors to the block table, see {@link KVBlockPool#adopt}.
+     */
+    void adopt(FloatTensor keys, FloatTensor values) {
+        if (numberOfBlocks == blocks.length) {
+            throw new IllegalArgumentException("Context length exceeded: " + (numberOfBlocks + 1) + " blocks");
+        }
+        blocks[numberOfBlocks] = pool.adopt(keys, values);
+        numberOfBlocks++;
+    }
+
+    /**
+     * Gives back to the pool the blocks past the positions [0, numberOfTokens).
+     */
+    void truncate(int numberOfTokens) {
+        int needed = KVBlockPool.blocksFor(numberOfTokens);
+        while (numberOfBlocks > needed) {
+            numberOfBlocks--;
+            pool.release(blocks[numberOfBlocks]);
+            blocks[numberOfBlocks] = null;
+        }
+    }
+
+    /**
+     * Context shifting: drops the positions [keep, keep + discard) of the first {@code length} ones and moves the
+     * following positions down by {@code discard}, the cache holds {@code length - discard} positions afterwards.
+     * See {@link #retain}.
+     */
+    void shift(int keep, int discard, int length, RoPE rope) {
+        if (keep < 0 || discard <= 0 || keep + discard > length) {
+            throw new IllegalArgumentException("Cannot drop positions [" + keep + ", " + (keep + discard) + ") of " + length);
+        }
+        int[] positions = new int[length - discard];
+        for (int i = 0; i < positions.length; ++i) {
+            positions[i] = i < keep ? i : i + discard;
+        }
+        retain(positions, rope);
+    }
+
+    /**
+     * Keeps only the given positions, in increasing order, moving {@code positions[i]} to {@code i};
+     * the cache holds {@code positions.length} positions afterwards.
+     * <p>
+     * The moved keys were rotated (RoPE) for their old position; since rotations compose, rotating a key moved
+     * down by {@code d} by the rotation of position {@code -d} encodes its new position, no need to recompute it.
+     */
+    void retain(int[] positions, RoPE rope) {
+        int newLength = positions.length;
+        int first = 0; // the positions before stay in place
+        while (first < newLength && positions[first] == first) {
+            first++;
+        }
+        if (first == newLength) {
+            truncate(newLength);
+            return;
+        }
+        for (int i = first + 1; i < newLength; ++i) {
+            if (positions[i] <= positions[i - 1]) {
+                throw new IllegalArgumentException("Positions must be increasing: " + positions[i - 1] + ", " + positions[i]);
+            }
+        }
+        int start = first;
+        ensureCapacity(positions[newLength - 1] + 1);
+        ensureWritable(start, newLength);
+        Parallel.parallelFor(0, numberOfLayers, layer -> {
+            FloatTensor key = ArrayFloatTensor.allocate(kvDim);
+            FloatTensor value = ArrayFloatTensor.allocate(kvDim);
+            RoPE.Rotation rotation = null;
+            int rotationDistance = 0;
+            for (int position = start; position < newLength; ++position) {
+                int from = positions[position];
+                int distance = from - position;
+                if (rotation == null || distance != rotationDistance) { // the distance changes only at the gaps
+                    rotation = rope.rotation(-distance);
+                    rotationDistance = distance;
+                }
+                load(layer, from, key, value);
+                rope.rotate(key, 0, kvDim, rotation);
+                store(layer, position, key, value);
+            }
+        });
+        truncate(newLength);
+    }
+
+    /**
+     * Gives all the blocks back to the pool, the cache is empty afterwards.
+     */
+    public void release() {
+        for (int b = 0; b < numberOfBlocks; ++b) {
+            pool.release(blocks[b]);
+            blocks[b] = null;
+        }
+        numberOfBlocks = 0;
+    }
+
+    /**
+     * Tensor holding the keys of {@code position}, see {@link #offset(int, int, int)}.
+     */
+    FloatTensor keys(int position) {
+        return blocks[position / KVBlockPool.BLOCK_SIZE].keys;
+    }
+
+    /**
+     * Tensor holding the values of {@code position}, see {@link #offset(int, int, int)}.
+     */
+    FloatTensor values(int position) {
+        return blocks[position / KVBlockPool.BLOCK_SIZE].values;
+    }
+
+    /**
+     * Offset of the key/value head {@code kvHead} of {@code position} in its {@link #keys}/{@link #values} tensors,
+     * the {@code headSize} elements from there are contiguous.
+     */
+    int offset(int layer, int position, int kvHead) {
+        return switch (pool.layout()) {
+            case POSITION_MAJOR -> (layer * KVBlockPool.BLOCK_SIZE + position % KVBlockPool.BLOCK_SIZE) * kvDim + kvHead * headSize;
+            case HEAD_MAJOR -> ((layer * numberOfKeyValueHeads + kvHead) * KVBlockPool.BLOCK_SIZE + position % KVBlockPool.BLOCK_SIZE) * headSize;
+        };
+    }
+
+    /**
+     * Stores the key and value vectors (kv_dim,) of {@code position}.
+     */
+    void store(int layer, int position, FloatTensor key, FloatTensor value) {
+        KVBlockPool.Block block = blocks[position / KVBlockPool.BLOCK_SIZE];
+        if (pool.layout() == KVBlockPool.Layout.POSITION_MAJOR) {
+            int offset = offset(layer, position, 0);
+            key.copyTo(0, block.keys, offset, kvDim);
+            value.copyTo(0, block.values, offset, kvDim);
+        } else {
+            for (int kvHead = 0; kvHead < numberOfKeyValueHeads; ++kvHead) {
+                int offset = offset(layer, position, kvHead);
+                key.copyTo(kvHead * headSize, block.keys, offset, headSize);
+                value.copyTo(kvHead * headSize, block.values, offset, headSize);
+            }
+        }
+    }
+
+    /**
+     * Loads the key and value vectors (kv_dim,) of {@code position}.
+     */
+    void load(int layer, int position, FloatTensor key, FloatTensor value) {
+        KVBlockPool.Block block = blocks[position / KVBlockPool.BLOCK_SIZE];
+        if (pool.layout() == KVBlockPool.Layout.POSITION_MAJOR) {
+            int offset = offset(layer, position, 0);
+            block.keys.copyTo(offset, key, 0, kvDim);
+            block.values.copyTo(offset, value, 0, kvDim);
+        } else {
+            for (int kvHead = 0; kvHead < numberOfKeyValueHeads; ++kvHead) {
+                int offset = offset(layer, position, kvHead);
+                block.keys.copyTo(offset, key, kvHead * headSize, headSize);
+                block.values.copyTo(offset, value, kvHead * headSize, headSize);
+            }
+        }
+    }
+}
@@ -25,6 +25,7 @@ import org.llamadrama.sampling.Sampler;
 import org.llamadrama.sampling.ToppSampler;
 
 import java.io.IOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Scanner;
@@ -36,6 +37,9 @@ public class LlamaDrama {
     // Batch-size used in prompt evaluation.
     private static final int BATCH_SIZE = Integer.getInteger("llama.BatchSize", 16);
 
+    // Initial positions kept by --sliding-window, as in StreamingLLM.
+    private static final int ATTENTION_SINKS = 4;
+
     static Sampler selectSampler(int vocabularySize, float temperature, float topp, long rngSeed) {
         Sampler sampler;
         if (temperature == 0.0f) {
@@ -71,6 +75,9 @@ public class LlamaDrama {
         if (options.systemPrompt() != null) {
             conversationTokens.addAll(chatFormat.encodeMessage(new ChatFormat.Message(ChatFormat.Role.SYSTEM, options.systemPrompt())));
         }
+        // Context shifting never drops the system prompt.
+        int keep = conversationTokens.size();
+        int contextLimit = Math.min(options.maxTokens(), model.configuration().contextLength);
         int startPosition = 0;
         Scanner in = new Scanner(System.in);
         loop: while (true) {
@@ -88,27 +95,75 @@ public class LlamaDrama {
                     continue;
                 }
             }
+            if (userText.startsWith("/save ") || userText.startsWith("/load ")) {
+                // /save <file> persists the conversation and its KV cache, /load <file> resumes it
+                Path path = Path.of(userText.substring("/save ".length()).strip());
+                try {
+                    if (userText.startsWith("/save ")) {
+                        if (state == null) {
+                            System.err.println("Nothing to save yet");
+                        } else {
+                            try (var timer = Timer.log("Save session to " + path)) {
+                                // The stop token ending the last turn is never forwarded, its position is not in the KV cache.
+                                SessionSnapshot.save(path, model.configuration(), state, conversationTokens.size() - 1, conversationTokens);
+                            }
+                        }
+                    } else {
+                        LlamaModel.State restored = model.createNewState(BATCH_SIZE, options.kvType());
+                        SessionSnapshot.Session session;
+                        try (var timer = Timer.log("Load session from " + path)) {
+                            session = SessionSnapshot.restore(path, model.configuration(), restored);
+                        }
+                        state = restored;
+                        conversationTokens = new ArrayList<>(session.tokens());
+                        // The next turn ingests the tokens from the restored position on, starting with the stop token.
+                        startPosition = session.position();
+                    }
+                } catch (IOException | RuntimeException e) {
+                    System.err.println("Cannot " + userText.substring(1, 5) + " the session: " + e.getMessage());
+                }
+                continue;
+            }
             if (state == null) {
-                state = model.createNewState(BATCH_SIZE);
+                state = model.createNewState(BATCH_SIZE, options.kvType());
             }
             conversationTokens.addAll(chatFormat.encodeMessage(new ChatFormat.Message(ChatFormat.Role.USER, userText)));
             conversationTokens.addAll(chatFormat.encodeHeader(new ChatFormat.Message(ChatFormat.Role.ASSISTANT, "")));
             Set<Integer> stopTokens = chatFormat.getStopTokens();
-            List<Integer> responseTokens = LlamaModel.generateTokens(model, state, startPosition, conversationTokens.subList(startPosition, conversationTokens.size()), stopTokens, options.maxTokens(), sampler, options.echo(), token -> {
-                if (options.stream()) {
-                    if (!model.tokenizer().isSpecialToken(token)) {
-                        System.out.print(model.tokenizer().decode(List.of(token)));
+            List<Integer> responseTokens = new ArrayList<>();
+            Integer stopToken = null;
+            while (true) {
+                if (options.contextShift() && conversationTokens.size() >= contextLimit) {
+                    // Forget the oldest half of the conversation, at least enough to make room for one more token.
+                    int discard = Math.min(startPosition - keep,
+                            Math.max((startPosition - keep) / 2, conversationTokens.size() - contextLimit + 1));
+                    if (discard > 0) {
+                        startPosition = LlamaModel.shiftContext(model, state, keep, discard, startPosition);
+                        conversationTokens.subList(keep, keep + discard).clear();
                     }
                 }
-            });
-            // Include stop token in the prompt history, but not in the response displayed to the user.
-            conversationTokens.addAll(responseTokens);
-            startPosition = conversationTokens.size();
-            Integer stopToken = null;
-            if (!responseTokens.isEmpty() && stopTokens.contains(responseTokens.getLast())) {
-                stopToken = responseTokens.getLast();
-                responseTokens.removeLast();
+                List<Integer> generatedTokens = LlamaModel.generateTokens(model, state, startPosition, conversationTokens.subList(startPosition, conversationTokens.size()), stopTokens, options.maxTokens(), sampler, options.echo(), token -> {
+                    if (options.stream()) {
+                        if (!model.tokenizer().isSpecialToken(token)) {
+                            System.out.print(model.tokenizer().decode(List.of(token)));
+                        }
+                    }
+                });
+                // Include stop token in the prompt history, but not in the response displayed to the user.
+                conversationTokens.addAll(generatedTokens);
+                responseTokens.addAll(generatedTokens);
+                if (!generatedTokens.isEmpty() && stopTokens.contains(generatedTokens.getLast())) {
+                    stopToken = generatedTokens.getLast();
+                    responseTokens.removeLast();
+                    break;
+                }
+                if (!options.contextShift() || generatedTokens.isEmpty()) {
+                    break;
+                }
+                // Out of context in the middle of the response: the last token is not in the KV cache yet, resume from it.
+                startPosition = conversationTokens.size() - 1;
             }
+            startPosition = conversationTokens.size();
             if (!options.stream()) {
                 String responseText = model.tokenizer().decode(responseTokens);
                 System.out.println(responseText);
@@ -121,7 +176,13 @@ public class LlamaDrama {
     }
 
     static void runInstructOnce(LlamaModel model, Sampler sampler, Options options) {
-        LlamaModel.State state = model.createNewState(BATCH_SIZE);
+        // H2O: half of the budget for the most recent positions, half for the most attended ones
+        HeavyHitterEviction kvEviction = options.kvBudget() > 0
+                ? new HeavyHitterEviction(model.configuration(), options.kvBudget(), options.kvBudget() / 2)
+                : null;
+        LlamaModel.State state = kvEviction != null
+                ? model.createNewState(BATCH_SIZE, options.kvType(), kvEviction)
+                : model.createNewState(BATCH_SIZE, options.kvType());
         ChatFormat chatFormat = new ChatFormat(model.tokenizer());
 
         List<Integer> promptTokens = new ArrayList<>();
@@ -133,13 +194,19 @@ public class LlamaDrama {
         promptTokens.addAll(chatFormat.encodeHeader(new ChatFormat.Message(ChatFormat.Role.ASSISTANT, "")));
 
         Set<Integer> stopTokens = chatFormat.getStopTokens();
-        List<Integer> responseTokens = LlamaModel.generateTokens(model, state, 0, promptTokens, stopTokens, options.maxTokens(), sampler, options.echo(), token -> {
+        LlamaModel.StreamingWindow window = options.slidingWindow() > 0
+                ? new LlamaModel.StreamingWindow(ATTENTION_SINKS, options.slidingWindow())
+                : null;
+        List<Integer> responseTokens = LlamaModel.generateTokens(model, state, 0, promptTokens, stopTokens, window != null || kvEviction != null ? -1 : options.maxTokens(), sampler, options.echo(), token -> {
             if (options.stream()) {
                 if (!model.tokenizer().isSpecialToken(token)) {
                     System.out.print(model.tokenizer().decode(List.of(token)));
                 }
             }
-        });
+        }, window);
+        if (kvEviction != null) {
+            System.err.println(kvEviction);
+        }
         if (!responseTokens.isEmpty() && stopTokens.contains(responseTokens.getLast())) {
             responseTokens.removeLast();
         }
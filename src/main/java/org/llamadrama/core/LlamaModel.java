@@ -1,7 +1,10 @@
 package org.llamadrama.core;
 
+import org.llamadrama.gguf.GGMLType;
+import org.llamadrama.math.RoPE;
 import org.llamadrama.tensor.ArrayFloatTensor;
 import org.llamadrama.tensor.FloatTensor;
+import org.llamadrama.tensor.Q8_0ArrayFloatTensor;
 import org.llamadrama.util.Parallel;
 import org.llamadrama.sampling.Sampler;
 import org.llamadrama.tokenizer.Tokenizer;
@@ -13,7 +16,6 @@ import java.util.List;
 import java.util.Set;
 import java.util.function.IntConsumer;
 import java.util.stream.IntStream;
-import java.util.stream.Stream;
 
 //                                   Llama Model Visualization
 //
@@ -131,8 +133,52 @@ import java.util.stream.Stream;
 //                                     +---------+
 
 public record LlamaModel(Configuration configuration, Tokenizer tokenizer, Weights weights) {
+
+    // Quantize xb/hb to Q8_0 once per stage and use integer dot products for the weights that support them (decode only).
+    static final boolean QUANTIZE_ACTIVATIONS = Boolean.getBoolean("llama.QuantizeActivations");
+
     public State createNewState(int batchsize) {
-        State state = new State(configuration(), batchsize);
+        return createNewState(batchsize, GGMLType.F32);
+    }
+
+    /**
+     * Creates a state with the KV cache stored in {@code kvType}: {@code F32}, {@code F16}, {@code BF16} or {@code Q8_0},
+     * backed by its own pool sized for the context length.
+     */
+    public State createNewState(int batchsize, GGMLType kvType) {
+        return createNewState(batchsize, new KVBlockPool(configuration(), kvType, KVBlockPool.blocksFor(configuration().contextLength)));
+    }
+
+    /**
+     * Creates a state whose KV cache takes its blocks from a pool shared with other states.
+     */
+    public State createNewState(int batchsize, KVBlockPool pool) {
+        return createNewState(batchsize, pool, null);
+    }
+
+    /**
+     * Creates a state starting its generations from the longest prefix of the prompt found in {@code prefixCache},
+     * see {@link #generateTokens}.
+     */
+    public State createNewState(int batchsize, PrefixCache prefixCache) {
+        return createNewState(batchsize, prefixCache.pool(), prefixCache);
+    }
+
+    /**
+     * Creates a state whose KV cache holds at most {@link HeavyHitterEviction#budget()} positions, evicting the least
+     * attended ones beyond, see {@link #generateTokens}. Its pool is sized for the budget.
+     */
+    public State createNewState(int batchsize, GGMLType kvType, HeavyHitterEviction kvEviction) {
+        KVBlockPool pool = new KVBlockPool(configuration(), kvType, KVBlockPool.blocksFor(kvEviction.budget()));
+        return createNewState(batchsize, pool, null, kvEviction);
+    }
+
+    private State createNewState(int batchsize, KVBlockPool pool, PrefixCache prefixCache) {
+        return createNewState(batchsize, pool, prefixCache, null);
+    }
+
+    private State createNewState(int batchsize, KVBlockPool pool, PrefixCache prefixCache, HeavyHitterEviction kvEviction) {
+        State state = new State(configuration(), batchsize, pool, prefixCache, kvEviction);
         state.latestToken = tokenizer.getSpecialTokens().get("<|begin_of_text|>");
         return state;
     }
@@ -147,16 +193,21 @@ public record LlamaModel(Configuration configuration, Tokenizer tokenizer, Weigh
         public final int contextLength; // max sequence length
         public final float rmsNormEps;
         public final float ropeTheta;
+        public final RoPE.Scaling ropeScaling; // (optional) long context scaling of the RoPE frequencies
         public final int headSize;
 
         public Configuration withContextLength(int newContextLength) {
             if (newContextLength < 0) {
                 return this; // no change
             }
-            return new Configuration(this.dim, this.hiddenDim, this.numberOfLayers, this.numberOfHeads, this.numberOfKeyValueHeads, this.vocabularySize, newContextLength, this.rmsNormEps, this.ropeTheta);
+            return new Configuration(this.dim, this.hiddenDim, this.numberOfLayers, this.numberOfHeads, this.numberOfKeyValueHeads, this.vocabularySize, newContextLength, this.rmsNormEps, this.ropeTheta, this.ropeScaling);
         }
 
         public Configuration(int dim, int hiddenDim, int numberOfLayers, int numberOfHeads, int numberOfKeyValueHeads, int vocabularySize, int contextLength, float rmsNormEps, float ropeTheta) {
+            this(dim, hiddenDim, numberOfLayers, numberOfHeads, numberOfKeyValueHeads, vocabularySize, contextLength, rmsNormEps, ropeTheta, null);
+        }
+
+        public Configuration(int dim, int hiddenDim, int numberOfLayers, int numberOfHeads, int numberOfKeyValueHeads, int vocabularySize, int contextLength, float rmsNormEps, float ropeTheta, RoPE.Scaling ropeScaling) {
             this.dim = dim;
             this.hiddenDim = hiddenDim;
             this.numberOfLayers = numberOfLayers;
@@ -166,6 +217,7 @@ public record LlamaModel(Configuration configuration, Tokenizer tokenizer, Weigh
             this.contextLength = contextLength;
             this.rmsNormEps = rmsNormEps;
             this.ropeTheta = ropeTheta;
+            this.ropeScaling = ropeScaling;
             this.headSize = dim / numberOfHeads;
         }
     }
@@ -187,13 +239,12 @@ public record LlamaModel(Configuration configuration, Tokenizer tokenizer, Weigh
         public final FloatTensor[] w3; // (layer, hidden_dim, dim)
         // public final rmsnorm
         public final FloatBuffer rms_final_weight; // (dim,)
-        // freq_cis for RoPE relatively positional embeddings
-        public final FloatBuffer freq_cis_real; // (seq_len, head_size/2)
-        public final FloatBuffer freq_cis_imag; // (seq_len, head_size/2)
+        // RoPE relatively positional embeddings, rotations are computed per position
+        public final RoPE rope;
         // (optional) classifier weights for the logits, on the last layer
         public final FloatTensor wcls; // (vocab_size, dim)
 
-        public Weights(FloatTensor token_embedding_table, FloatBuffer[] rms_att_weight, FloatTensor[] wq, FloatTensor[] wk, FloatTensor[] wv, FloatTensor[] wo, FloatBuffer[] rms_ffn_weight, FloatTensor[] w1, FloatTensor[] w2, FloatTensor[] w3, FloatBuffer rms_final_weight, FloatBuffer freq_cis_real, FloatBuffer freq_cis_imag, FloatTensor wcls) {
+        public Weights(FloatTensor token_embedding_table, FloatBuffer[] rms_att_weight, FloatTensor[] wq, FloatTensor[] wk, FloatTensor[] wv, FloatTensor[] wo, FloatBuffer[] rms_ffn_weight, FloatTensor[] w1, FloatTensor[] w2, FloatTensor[] w3, FloatBuffer rms_final_weight, RoPE rope, FloatTensor wcls) {
             this.token_embedding_table = token_embedding_table;
             this.rms_att_weight = rms_att_weight;
             this.wq = wq;
@@ -205,12 +256,34 @@ public record LlamaModel(Configuration configuration, Tokenizer tokenizer, Weigh
             this.w2 = w2;
             this.w3 = w3;
             this.rms_final_weight = rms_final_weight;
-            this.freq_cis_real = freq_cis_real;
-            this.freq_cis_imag = freq_cis_imag;
+            this.rope = rope;
             this.wcls = wcls;
         }
     }
 
+    /**
+     * StreamingLLM-style attention window for unbounded generation: the first {@code sinkTokens} positions
+     * (attention sinks) and the most recent ones, up to {@code recentTokens}, stay in the KV cache.
+     * <p>
+     * Once the window is full, the oldest recent positions are dropped, at least a {@link KVBlockPool#BLOCK_SIZE block}
+     * of them at once, and the following ones are moved down and re-rotated (see {@link #shiftContext}): the KV cache
+     * works as a ring over the positions after the sinks, whose RoPE positions stay within the window. Memory and
+     * the cost of a token are bounded by the window, whatever the length of the stream.
+     */
+    public record StreamingWindow(int sinkTokens, int recentTokens) {
+
+        public StreamingWindow {
+            if (sinkTokens < 0 || recentTokens <= KVBlockPool.BLOCK_SIZE) {
+                throw new IllegalArgumentException("Invalid streaming window: " + sinkTokens + " sink tokens, " + recentTokens
+                        + " recent tokens (more than " + KVBlockPool.BLOCK_SIZE + " required)");
+            }
+        }
+
+        public int size() {
+            return sinkTokens + recentTokens;
+        }
+    }
+
     public static final class State {
 
         // current wave of activations
@@ -223,12 +296,17 @@ public record LlamaModel(Configuration configuration, Tokenizer tokenizer, Weigh
         public final FloatTensor[] q; // query (dim,)
         public final FloatTensor[] k; // key (dim,)
         public final FloatTensor[] v; // value (dim,)
-        public final FloatTensor[] att; // buffer for scores/attention values (n_heads, seq_len)
+        public final FloatTensor[] xbQ8; // xb quantized to Q8_0, null unless QUANTIZE_ACTIVATIONS (dim,)
+        public final FloatTensor[] hbQ8; // hb quantized to Q8_0, null unless QUANTIZE_ACTIVATIONS (hidden_dim,)
         public final FloatTensor logits; // output logits
 
-        // kv cache
-        public final FloatTensor[] keyCache;   // (n_layer, seq_len, kv_dim)
-        public final FloatTensor[] valueCache; // (n_layer, seq_len, kv_dim)
+        // kv cache, paged
+        public final KVCache kvCache;
+        final PrefixCache prefixCache; // optional, shares the KV cache blocks of common prompt prefixes
+        final HeavyHitterEviction kvEviction; // optional, bounds the KV cache by evicting the least attended positions
+
+        // partial results of split-K attention, see Attention.splitK
+        private Attention.SplitKScratch splitKScratch;
 
         /**
          * last index in previous block
@@ -238,6 +316,18 @@ public record LlamaModel(Configuration configuration, Tokenizer tokenizer, Weigh
         public int latestToken;
 
         State(Configuration config, int batchsize) {
+            this(config, batchsize, new KVBlockPool(config, GGMLType.F32, KVBlockPool.blocksFor(config.contextLength)));
+        }
+
+        State(Configuration config, int batchsize, KVBlockPool pool) {
+            this(config, batchsize, pool, null);
+        }
+
+        State(Configuration config, int batchsize, KVBlockPool pool, PrefixCache prefixCache) {
+            this(config, batchsize, pool, prefixCache, null);
+        }
+
+        State(Configuration config, int batchsize, KVBlockPool pool, PrefixCache prefixCache, HeavyHitterEviction kvEviction) {
             this.batchsize = batchsize;
             this.x = allocate(batchsize, config.dim);
             this.xb = allocate(batchsize, config.dim);
@@ -247,13 +337,21 @@ public record LlamaModel(Configuration configuration, Tokenizer tokenizer, Weigh
             this.q = allocate(batchsize, config.dim);
             this.k = allocate(batchsize, config.dim);
             this.v = allocate(batchsize, config.dim);
-            this.att = allocate(batchsize, config.numberOfHeads, config.contextLength);
+            this.xbQ8 = QUANTIZE_ACTIVATIONS ? allocateQ8_0(batchsize, config.dim) : null;
+            this.hbQ8 = QUANTIZE_ACTIVATIONS ? allocateQ8_0(batchsize, config.hiddenDim) : null;
             idxPrevBlock = -1;
 
             this.logits = ArrayFloatTensor.allocate(config.vocabularySize);
-            int kvDim = (config.dim * config.numberOfKeyValueHeads) / config.numberOfHeads;
-            this.keyCache = Stream.generate(() -> ArrayFloatTensor.allocate(config.contextLength, kvDim)).limit(config.numberOfLayers).toArray(FloatTensor[]::new);
-            this.valueCache = Stream.generate(() -> ArrayFloatTensor.allocate(config.contextLength, kvDim)).limit(config.numberOfLayers).toArray(FloatTensor[]::new);
+            this.kvCache = new KVCache(config, pool);
+            this.prefixCache = prefixCache;
+            this.kvEviction = kvEviction;
+        }
+
+        Attention.SplitKScratch splitKScratch(int numberOfPartials, int headSize) {
+            if (splitKScratch == null || splitKScratch.capacity() < numberOfPartials) {
+                splitKScratch = new Attention.SplitKScratch(numberOfPartials, headSize);
+            }
+            return splitKScratch;
         }
     }
 
@@ -263,15 +361,33 @@ public record LlamaModel(Configuration configuration, Tokenizer tokenizer, Weigh
                 .toArray(FloatTensor[]::new);
     }
 
+    static FloatTensor[] allocateQ8_0(int numTokens, int size) {
+        return IntStream.range(0, numTokens)
+                .mapToObj(i -> Q8_0ArrayFloatTensor.allocate(size))
+                .toArray(FloatTensor[]::new);
+    }
+
+    /**
+     * Quantizes the activations {@code x} into {@code xq} if any of the {@code weights} can use them,
+     * see {@link #activationsFor}.
+     */
+    static void quantizeActivations(int nTokens, FloatTensor[] x, FloatTensor[] xq, FloatTensor... weights) {
+        if (xq != null && nTokens == 1 && Arrays.stream(weights).anyMatch(FloatTensor::supportsQ8_0Activations)) {
+            Parallel.parallelFor(0, nTokens, t -> ((Q8_0ArrayFloatTensor) xq[t]).quantize(x[t]));
+        }
+    }
+
+    /**
+     * Returns the activations to multiply {@code weight} with, the quantized ones when possible.
+     * Only a single token uses them: a batch stays in float for the {@link FloatTensor#matmul(int, FloatTensor[], FloatTensor[], int, int) GEMM},
+     * which decodes every weight row once for all the tokens instead of once per token.
+     */
+    static FloatTensor[] activationsFor(int nTokens, FloatTensor weight, FloatTensor[] x, FloatTensor[] xq) {
+        return xq != null && nTokens == 1 && weight.supportsQ8_0Activations() ? xq : x;
+    }
+
     static void rmsnorm(FloatTensor out, FloatTensor x, FloatBuffer weight, int size, float rmsNormEps) {
-        // calculate sum of squares
-        float ss = x.reduce(0, size, 0f, (acc, xi) -> acc + xi * xi);
-        ss /= size;
-        ss += rmsNormEps;
-        ss = (float) (1.0 / Math.sqrt(ss));
-        // normalize and scale
-        final float finalss = ss; // for the lambda
-        out.mapWithIndexInPlace(0, size, (value, index) -> weight.get(index) * (finalss * x.getFloat(index)));
+        out.rmsnorm(x, weight, size, rmsNormEps);
     }
 
     static FloatTensor forward(LlamaModel model, State state, int[] tokens, int position, boolean computeLogits) {
@@ -279,17 +395,20 @@ public record LlamaModel(Configuration configuration, Tokenizer tokenizer, Weigh
         Configuration config = model.configuration();
         Weights weights = model.weights();
         int dim = config.dim;
-        int headSize = config.headSize;
         int kvDim = (config.dim * config.numberOfKeyValueHeads) / config.numberOfHeads;
-        int kvMul = config.numberOfHeads / config.numberOfKeyValueHeads; // integer multiplier of the kv sharing in multiquery
-        float sqrtHeadSize = (float) Math.sqrt(headSize);
         final int nTokens = tokens.length;
 
+        state.kvCache.ensureWritable(position, position + nTokens);
+
         // copy the token embedding into x
         Parallel.parallelFor(0, nTokens, t ->
                 weights.token_embedding_table.copyTo(tokens[t] * dim, state.x[t], 0, dim)
         );
 
+        // the rotations of the positions, shared by all the layers
+        RoPE.Rotation[] rotations = new RoPE.Rotation[nTokens];
+        Parallel.parallelFor(0, nTokens, t -> rotations[t] = weights.rope.rotation(position + t));
+
         // forward all the layers
         for (int l = 0; l < config.numberOfLayers; l++) {
             // attention rmsnorm
@@ -300,33 +419,20 @@ public record LlamaModel(Configuration configuration, Tokenizer tokenizer, Weigh
             );
 
             // qkv matmuls for this position
-            weights.wq[l].matmul(nTokens, state.xb, state.q, dim, dim);
-            weights.wk[l].matmul(nTokens, state.xb, state.k, kvDim, dim);
-            weights.wv[l].matmul(nTokens, state.xb, state.v, kvDim, dim);
+            quantizeActivations(nTokens, state.xb, state.xbQ8, weights.wq[l], weights.wk[l], weights.wv[l]);
+            weights.wq[l].matmul(nTokens, activationsFor(nTokens, weights.wq[l], state.xb, state.xbQ8), state.q, dim, dim);
+            weights.wk[l].matmul(nTokens, activationsFor(nTokens, weights.wk[l], state.xb, state.xbQ8), state.k, kvDim, dim);
+            weights.wv[l].matmul(nTokens, activationsFor(nTokens, weights.wv[l], state.xb, state.xbQ8), state.v, kvDim, dim);
 
             // RoPE relative positional encoding: complex-valued rotate q and k in each head
             Parallel.parallelFor(0, nTokens, t -> {
-                for (int i = 0; i < dim; i += 2) {
-                    int head_dim = i % headSize;
-                    float fcr = weights.freq_cis_real.get((position + t) * (headSize / 2) + (head_dim / 2));
-                    float fci = weights.freq_cis_imag.get((position + t) * (headSize / 2) + (head_dim / 2));
-                    int rotn = i < kvDim ? 2 : 1; // how many vectors? 2 = q & k, 1 = q only
-                    for (int vi = 0; vi < rotn; vi++) {
-                        FloatTensor vec = vi == 0 ? state.q[t] : state.k[t]; // the vector to rotate (query or key)
-                        float v0 = vec.getFloat(i);
-                        float v1 = vec.getFloat(i + 1);
-                        vec.setFloat(i, v0 * fcr - v1 * fci);
-                        vec.setFloat(i + 1, v0 * fci + v1 * fcr);
-                    }
-                }
+                weights.rope.rotate(state.q[t], 0, dim, rotations[t]);
+                weights.rope.rotate(state.k[t], 0, kvDim, rotations[t]);
             });
 
             // save key,value at this time step (position) to our kv cache
             //int loff = l * config.seq_len * kvDim; // kv cache layer offset for convenience
-            Parallel.parallelFor(0, nTokens, t -> {
-                state.k[t].copyTo(0, state.keyCache[curLayer], (position + t) * kvDim, kvDim);
-                state.v[t].copyTo(0, state.valueCache[curLayer], (position + t) * kvDim, kvDim);
-            });
+            Parallel.parallelFor(0, nTokens, t -> state.kvCache.store(curLayer, position + t, state.k[t], state.v[t]));
 
             // If the logits are not required, the attention and FFN of the last layer can be skipped entirely.
             if (!computeLogits && curLayer == config.numberOfLayers - 1) {
@@ -335,51 +441,11 @@ public record LlamaModel(Configuration configuration, Tokenizer tokenizer, Weigh
             }
 
             // multihead attention. iterate over all heads
-            Parallel.parallelForLong(0, (long) nTokens * (long) config.numberOfHeads, ht -> {
-                int token = (int) (ht / config.numberOfHeads);
-                int h = (int) (ht % config.numberOfHeads);
-                // get the query vector for this head
-                // float* q = s.q + h * headSize;
-                int qOffset = h * headSize;
-
-                // attention scores for this head
-                // float* att = s.att + h * config.seq_len;
-                int attOffset = h * config.contextLength;
-
-                // iterate over all timesteps, including the current one
-                for (int t = 0; t <= position + token; t++) {
-                    // get the key vector for this head and at this timestep
-                    // float* k = s.key_cache + loff + t * dim + h * headSize;
-                    int keyCacheOffset = /* loff + */ t * kvDim + (h / kvMul) * headSize;
-                    // calculate the attention score as the dot product of q and k
-                    float score = state.q[token].dot(qOffset, state.keyCache[curLayer], keyCacheOffset, headSize);
-                    score /= sqrtHeadSize;
-                    // save the score to the attention buffer
-                    state.att[token].setFloat(attOffset + t, score);
-                }
-
-                // softmax the scores to get attention weights, from 0..position inclusively
-                state.att[token].softmaxInPlace(attOffset, position + token + 1);
-
-                // weighted sum of the values, store back into xb
-                // float* xb = s.xb + h * headSize;
-                int xbOffset = h * headSize;
-                // memset(xb, 0, headSize * sizeof(float));
-                state.xb[token].fillInPlace(xbOffset, headSize, 0f);
-
-                for (int t = 0; t <= position + token; t++) {
-                    // get the value vector for this head and at this timestep
-                    // float* v = s.value_cache + loff + t * dim + h * headSize;
-                    int vOffset = /* loff + */ t * kvDim + (h / kvMul) * headSize;
-                    // get the attention weight for this timestep
-                    float a = state.att[token].getFloat(attOffset + t);
-                    // accumulate the weighted value into xb
-                    state.xb[token].saxpyInPlace(xbOffset, state.valueCache[curLayer], vOffset, headSize, a);
-                }
-            });
+            Attention.attention(config, state, curLayer, nTokens, position);
 
             // final matmul to get the output of the attention
-            weights.wo[l].matmul(nTokens, state.xb, state.xb2, dim, dim);
+            quantizeActivations(nTokens, state.xb, state.xbQ8, weights.wo[l]);
+            weights.wo[l].matmul(nTokens, activationsFor(nTokens, weights.wo[l], state.xb, state.xbQ8), state.xb2, dim, dim);
 
             // residual connection back into x
             Parallel.parallelFor(0, nTokens, t -> {
@@ -393,8 +459,9 @@ public record LlamaModel(Configuration configuration, Tokenizer tokenizer, Weigh
 
             // Now for FFN in PyTorch we have: self.w2(F.silu(self.w1(x)) * self.w3(x))
             // first calculate self.w1(x) and self.w3(x)
-            weights.w1[l].matmul(nTokens, state.xb, state.hb, config.hiddenDim, dim);
-            weights.w3[l].matmul(nTokens, state.xb, state.hb2, config.hiddenDim, dim);
+            quantizeActivations(nTokens, state.xb, state.xbQ8, weights.w1[l], weights.w3[l]);
+            weights.w1[l].matmul(nTokens, activationsFor(nTokens, weights.w1[l], state.xb, state.xbQ8), state.hb, config.hiddenDim, dim);
+            weights.w3[l].matmul(nTokens, activationsFor(nTokens, weights.w3[l], state.xb, state.xbQ8), state.hb2, config.hiddenDim, dim);
 
             // SwiGLU non-linearity
             // silu(x)=x*σ(x), where σ(x) is the logistic sigmoid
@@ -408,7 +475,8 @@ public record LlamaModel(Configuration configuration, Tokenizer tokenizer, Weigh
             });
 
             // final matmul to get the output of the ffn
-            weights.w2[l].matmul(nTokens, state.hb, state.xb, dim, config.hiddenDim);
+            quantizeActivations(nTokens, state.hb, state.hbQ8, weights.w2[l]);
+            weights.w2[l].matmul(nTokens, activationsFor(nTokens, weights.w2[l], state.hb, state.hbQ8), state.xb, dim, config.hiddenDim);
 
             // residual connection
             Parallel.parallelFor(0, nTokens, t -> {
@@ -428,6 +496,17 @@ public record LlamaModel(Configuration configuration, Tokenizer tokenizer, Weigh
         return state.logits;
     }
 
+    /**
+     * Context shifting: forgets the positions [keep, keep + discard) of the first {@code length} positions of the
+     * KV cache, the following ones are moved down and re-rotated in place instead of being computed again.
+     *
+     * @return the number of positions left in the KV cache
+     */
+    public static int shiftContext(LlamaModel model, State state, int keep, int discard, int length) {
+        state.kvCache.shift(keep, discard, length, model.weights().rope);
+        return length - discard;
+    }
+
     /**
      * LLM generation entry point, ingest prompt tokens and generates new tokens.
      *
@@ -449,18 +528,58 @@ public record LlamaModel(Configuration configuration, Tokenizer tokenizer, Weigh
      */
     public static List<Integer> generateTokens(LlamaModel model, State state, int startPosition, List<Integer> promptTokens, Set<Integer> stopTokens, int maxTokens, Sampler sampler, boolean echo,
             IntConsumer onTokenGenerated) {
+        return generateTokens(model, state, startPosition, promptTokens, stopTokens, maxTokens, sampler, echo, onTokenGenerated, null);
+    }
+
+    /**
+     * Same as {@link #generateTokens(LlamaModel, State, int, List, Set, int, Sampler, boolean, IntConsumer)},
+     * keeping only a {@link StreamingWindow} of positions in the KV cache if {@code window} is not null.
+     * With a window, or a state evicting positions (see {@link HeavyHitterEviction}), the context never runs out:
+     * {@code maxTokens} counts all the positions, including the dropped ones, and a negative value means no limit.
+     */
+    public static List<Integer> generateTokens(LlamaModel model, State state, int startPosition, List<Integer> promptTokens, Set<Integer> stopTokens, int maxTokens, Sampler sampler, boolean echo,
+            IntConsumer onTokenGenerated, StreamingWindow window) {
         long startNanos = System.nanoTime();
         long startGen = 0;
-        if (maxTokens < 0 || model.configuration().contextLength < maxTokens) {
+        if (window != null && window.size() > model.configuration().contextLength) {
+            throw new IllegalArgumentException("Streaming window of " + window.size() + " positions exceeds the context length " + model.configuration().contextLength);
+        }
+        if (window != null || state.kvEviction != null) {
+            if (maxTokens < 0) {
+                maxTokens = Integer.MAX_VALUE;
+            }
+        } else if (maxTokens < 0 || model.configuration().contextLength < maxTokens) {
             maxTokens = model.configuration().contextLength;
         }
-        List<Integer> generatedTokens = new ArrayList<>(maxTokens);
+        List<Integer> generatedTokens = new ArrayList<>();
         int token = state.latestToken; // BOS?
         int nextToken;
         int promptIndex = 0;
-        for (int position = startPosition; position < maxTokens; ++position) {
+        int cachedTokens = 0;
+        if (state.prefixCache != null && startPosition == 0) {
+            // Starting over: resume from the longest cached prefix of the prompt.
+            state.kvCache.release();
+            cachedTokens = state.prefixCache.attach(promptTokens, state.kvCache);
+            promptIndex = cachedTokens;
+        }
+        int droppedTokens = 0; // positions dropped by the streaming window
+        for (int position = startPosition + cachedTokens; position + droppedTokens < maxTokens; ++position) {
+            int batch = promptIndex < promptTokens.size() ? Math.min(promptTokens.size() - promptIndex, state.batchsize) : 1;
+            if (window != null) {
+                batch = Math.min(batch, window.recentTokens());
+                if (position + batch > window.size()) {
+                    int discard = Math.min(position - window.sinkTokens(), Math.max(position + batch - window.size(), KVBlockPool.BLOCK_SIZE));
+                    position = shiftContext(model, state, window.sinkTokens(), discard, position);
+                    droppedTokens += discard;
+                }
+            } else if (state.kvEviction != null) {
+                batch = Math.min(batch, state.kvEviction.budget() - state.kvEviction.recentTokens());
+                int length = state.kvEviction.makeRoom(model, state, position, batch);
+                droppedTokens += position - length;
+                position = length;
+            }
             if (promptIndex < promptTokens.size()) {
-                final int nTokens = Math.min(maxTokens - position, Math.min(promptTokens.size() - promptIndex, state.batchsize));
+                final int nTokens = Math.min(maxTokens - droppedTokens - position, batch);
                 final int[] tokens = new int[nTokens];
                 for (int i = 0; i < nTokens; i++) {
                     tokens[i] = promptTokens.get(promptIndex + i);
@@ -480,6 +599,9 @@ public record LlamaModel(Configuration configuration, Tokenizer tokenizer, Weigh
                 if (promptIndex < promptTokens.size()) {
                     continue;
                 }
+                if (state.prefixCache != null && startPosition == 0 && droppedTokens == 0) {
+                    state.prefixCache.insert(promptTokens, state.kvCache);
+                }
                 startGen = System.nanoTime();
             } else {
                 forward(model, state, new int[]{token}, position, true);
@@ -502,9 +624,10 @@ public record LlamaModel(Configuration configuration, Tokenizer tokenizer, Weigh
         long elapsedNanos = System.nanoTime() - startNanos;
         long promptNanos = startGen - startNanos;
         long genNanos = elapsedNanos - startGen + startNanos;
-        System.err.printf("%ncontext: %d/%d prompt: %.2f tokens/s (%d) generation: %.2f tokens/s (%d)%n",
+        int ingestedTokens = promptIndex - cachedTokens;
+        System.err.printf("%ncontext: %d/%d prompt: %.2f tokens/s (%d, %d cached) generation: %.2f tokens/s (%d)%n",
                 startPosition + promptIndex + generatedTokens.size(), model.configuration().contextLength,
-                promptTokens.size() / (promptNanos / 1_000_000_000.0), promptTokens.size(),
+                ingestedTokens / (promptNanos / 1_000_000_000.0), ingestedTokens, cachedTokens,
                 generatedTokens.size() / (genNanos / 1_000_000_000.0), generatedTokens.size());
 
         return generatedTokens;
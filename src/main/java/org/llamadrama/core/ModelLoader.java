@@ -4,13 +4,22 @@ import org.llamadrama.gguf.GGUFloatTensor;
 import org.llamadrama.tensor.BF16FloatTensor;
 import org.llamadrama.tensor.F16FloatTensor;
 import org.llamadrama.tensor.FloatTensor;
+import org.llamadrama.tensor.InterleavedQ4_0FloatTensor;
 import org.llamadrama.gguf.GGMLTensorEntry;
 import org.llamadrama.gguf.GGMLType;
 import org.llamadrama.gguf.GGUF;
 import org.llamadrama.util.Pair;
 import org.llamadrama.tensor.Q4_0FloatTensor;
+import org.llamadrama.tensor.Q4_1FloatTensor;
+import org.llamadrama.tensor.Q4_KFloatTensor;
+import org.llamadrama.tensor.Q5_0FloatTensor;
+import org.llamadrama.tensor.Q5_1FloatTensor;
+import org.llamadrama.tensor.Q5_KFloatTensor;
+import org.llamadrama.tensor.Q6_KFloatTensor;
 import org.llamadrama.tensor.Q8_0FloatTensor;
+import org.llamadrama.tensor.Q8_1FloatTensor;
 import org.llamadrama.math.RoPE;
+import org.llamadrama.tokenizer.Llama3PreTokenizer;
 import org.llamadrama.tokenizer.Tokenizer;
 import org.llamadrama.tokenizer.Vocabulary;
 
@@ -30,19 +39,21 @@ import java.util.stream.IntStream;
 public final class ModelLoader {
     private static final String TOKENIZER_LLAMA_3_MODEL = "gpt2";
 
-    private static final String LLAMA_3_PATTERN = "(?i:'s|'t|'re|'ve|'m|'ll|'d)|[^\\r\\n\\p{L}\\p{N}]?\\p{L}+|\\p{N}{1,3}| ?[^\\s\\p{L}\\p{N}]+[\\r\\n]*|\\s*[\\r\\n]+|\\s+(?!\\S)|\\s+";
+    // Rows per group (4 or 8) when repacking Q4_0 matrices into an interleaved layout at load time, 0 to keep them as is.
+    private static final int REPACK_Q4_0 = Integer.getInteger("llama.RepackQ4_0", 0);
 
     private static Vocabulary loadTokenizerVocabulary(Map<String, Object> metadata) {
         String model = (String) metadata.get("tokenizer.ggml.model");
         if (!TOKENIZER_LLAMA_3_MODEL.equals(model)) {
             throw new IllegalArgumentException("expected " + TOKENIZER_LLAMA_3_MODEL + " but found " + model);
         }
-        String[] tokens = (String[]) metadata.get("tokenizer.ggml.tokens");
+        String[] tokens = GGUF.toStringArray(metadata.get("tokenizer.ggml.tokens"));
         return new Vocabulary(tokens);
     }
 
     public static LlamaModel loadModel(Path ggufPath, int contextLength, boolean loadWeights) throws IOException {
-        GGUF gguf = GGUF.loadModel(ggufPath);
+        // Only the values needed below are decoded, e.g. not the token scores and types.
+        GGUF gguf = GGUF.loadModel(ggufPath, true);
         FileChannel fileChannel = FileChannel.open(ggufPath, StandardOpenOption.READ);
         return loadModel(fileChannel, gguf, contextLength, loadWeights);
     }
@@ -66,7 +77,8 @@ public final class ModelLoader {
                     vocabulary.size(),
                     (int) metadata.get("llama.context_length"),
                     (float) metadata.getOrDefault("llama.attention.layer_norm_rms_epsilon", 1e-5f),
-                    (float) metadata.getOrDefault("llama.rope.freq_base", 10000f)
+                    (float) metadata.getOrDefault("llama.rope.freq_base", 10000f),
+                    loadRoPEScaling(metadata)
             ).withContextLength(contextLength);
 
             LlamaModel.Weights weights = null;
@@ -79,41 +91,56 @@ public final class ModelLoader {
     }
 
     public static LlamaModel.Weights loadWeights(Map<String, GGMLTensorEntry> tensorEntries, LlamaModel.Configuration config) {
-        boolean ropeScaling = tensorEntries.containsKey("rope_freqs");
-        float scaleFactor = 8;
-        float loFreqFactor = 1;
-        float hiFreqFactor = 3;
-        int oldContextLength = 8192;
-        Pair<float[], float[]> ropeFreqs = RoPE.precomputeFreqsCis(config.contextLength, config.headSize, config.ropeTheta,
-                ropeScaling, scaleFactor, loFreqFactor, hiFreqFactor, oldContextLength);
-        float[] ropeFreqsReal = ropeFreqs.first();
-        float[] ropeFreqsImag = ropeFreqs.second();
+        // Llama 3.1+ models ship the scaled frequencies as divisors, which take precedence over the metadata.
+        GGMLTensorEntry ropeFreqs = tensorEntries.get("rope_freqs.weight");
+        float[] freqFactors = null;
+        if (ropeFreqs != null) {
+            FloatBuffer buffer = toFloatBuffer(ropeFreqs);
+            freqFactors = new float[buffer.remaining()];
+            buffer.get(freqFactors);
+        }
+        RoPE rope = new RoPE(config.headSize, config.ropeTheta, freqFactors, config.ropeScaling);
 
         GGMLTensorEntry tokenEmbeddings = tensorEntries.get("token_embd.weight");
         LlamaModel.Weights qw = new LlamaModel.Weights(
                 loadQuantized(tokenEmbeddings),
                 loadArrayOfFloatBuffer(config.numberOfLayers, i -> tensorEntries.get("blk." + i + ".attn_norm.weight")),
-                loadArrayOfQuantized(config.numberOfLayers, i -> tensorEntries.get("blk." + i + ".attn_q.weight")),
-                loadArrayOfQuantized(config.numberOfLayers, i -> tensorEntries.get("blk." + i + ".attn_k.weight")),
-                loadArrayOfQuantized(config.numberOfLayers, i -> tensorEntries.get("blk." + i + ".attn_v.weight")),
-                loadArrayOfQuantized(config.numberOfLayers, i -> tensorEntries.get("blk." + i + ".attn_output.weight")),
+                loadArrayOfMatrices(config.numberOfLayers, i -> tensorEntries.get("blk." + i + ".attn_q.weight")),
+                loadArrayOfMatrices(config.numberOfLayers, i -> tensorEntries.get("blk." + i + ".attn_k.weight")),
+                loadArrayOfMatrices(config.numberOfLayers, i -> tensorEntries.get("blk." + i + ".attn_v.weight")),
+                loadArrayOfMatrices(config.numberOfLayers, i -> tensorEntries.get("blk." + i + ".attn_output.weight")),
                 loadArrayOfFloatBuffer(config.numberOfLayers, i -> tensorEntries.get("blk." + i + ".ffn_norm.weight")),
-                loadArrayOfQuantized(config.numberOfLayers, i -> tensorEntries.get("blk." + i + ".ffn_gate.weight")), // w1
-                loadArrayOfQuantized(config.numberOfLayers, i -> tensorEntries.get("blk." + i + ".ffn_down.weight")), // w2
-                loadArrayOfQuantized(config.numberOfLayers, i -> tensorEntries.get("blk." + i + ".ffn_up.weight")), // w3
+                loadArrayOfMatrices(config.numberOfLayers, i -> tensorEntries.get("blk." + i + ".ffn_gate.weight")), // w1
+                loadArrayOfMatrices(config.numberOfLayers, i -> tensorEntries.get("blk." + i + ".ffn_down.weight")), // w2
+                loadArrayOfMatrices(config.numberOfLayers, i -> tensorEntries.get("blk." + i + ".ffn_up.weight")), // w3
                 toFloatBuffer(tensorEntries.get("output_norm.weight")),
-                FloatBuffer.wrap(ropeFreqsReal),
-                FloatBuffer.wrap(ropeFreqsImag),
+                rope,
                 // If "output.weight" is not present then the embedding weights are tied/shared with the decoder.
                 // This is commonly referred as "tie word embeddings".
-                loadQuantized(tensorEntries.getOrDefault("output.weight", tokenEmbeddings))
+                loadMatrix(tensorEntries.getOrDefault("output.weight", tokenEmbeddings))
         );
 
         return qw;
     }
 
+    /**
+     * The {@code llama.rope.scaling.*} metadata, null if absent or {@code none}.
+     * The defaults of the Llama 3.1 factors are the ones of llama.cpp.
+     */
+    static RoPE.Scaling loadRoPEScaling(Map<String, Object> metadata) {
+        String type = (String) metadata.getOrDefault("llama.rope.scaling.type", "none");
+        if ("none".equals(type)) {
+            return null;
+        }
+        return new RoPE.Scaling(type,
+                ((Number) metadata.getOrDefault("llama.rope.scaling.factor", 1f)).floatValue(),
+                ((Number) metadata.getOrDefault("llama.rope.scaling.low_freq_factor", 1f)).floatValue(),
+                ((Number) metadata.getOrDefault("llama.rope.scaling.high_freq_factor", 4f)).floatValue(),
+                ((Number) metadata.getOrDefault("llama.rope.scaling.original_context_length", 8192)).intValue());
+    }
+
     private static Tokenizer createTokenizer(Map<String, Object> metadata, Vocabulary vocabulary) {
-        String[] mergeLines = (String[]) metadata.get("tokenizer.ggml.merges");
+        String[] mergeLines = GGUF.toStringArray(metadata.get("tokenizer.ggml.merges"));
         List<Pair<Integer, Integer>> merges = Arrays.stream(mergeLines)
                 .map(line -> line.split(" "))
                 .map(parts ->
@@ -137,7 +164,7 @@ public final class ModelLoader {
                                 i -> baseTokens + i)
                         );
 
-        return new Tokenizer(vocabulary, merges, LLAMA_3_PATTERN, specialTokens);
+        return new Tokenizer(vocabulary, merges, Llama3PreTokenizer.PATTERN, specialTokens);
     }
 
     public static FloatTensor loadQuantized(GGMLTensorEntry entry) {
@@ -145,13 +172,45 @@ public final class ModelLoader {
         return switch (ggmlType) {
             //case F32 -> new F32FloatTensor(FloatTensor.numberOfElements(entry.shape()), entry.memorySegment());
             case Q8_0 -> new Q8_0FloatTensor(FloatTensor.numberOfElements(entry.shape()), entry.memorySegment());
+            case Q8_1 -> new Q8_1FloatTensor(FloatTensor.numberOfElements(entry.shape()), entry.memorySegment());
             case Q4_0 -> new Q4_0FloatTensor(FloatTensor.numberOfElements(entry.shape()), entry.memorySegment());
+            case Q4_1 -> new Q4_1FloatTensor(FloatTensor.numberOfElements(entry.shape()), entry.memorySegment());
+            case Q5_0 -> new Q5_0FloatTensor(FloatTensor.numberOfElements(entry.shape()), entry.memorySegment());
+            case Q5_1 -> new Q5_1FloatTensor(FloatTensor.numberOfElements(entry.shape()), entry.memorySegment());
+            case Q4_K -> new Q4_KFloatTensor(FloatTensor.numberOfElements(entry.shape()), entry.memorySegment());
+            case Q5_K -> new Q5_KFloatTensor(FloatTensor.numberOfElements(entry.shape()), entry.memorySegment());
+            case Q6_K -> new Q6_KFloatTensor(FloatTensor.numberOfElements(entry.shape()), entry.memorySegment());
             case BF16 -> new BF16FloatTensor(FloatTensor.numberOfElements(entry.shape()), entry.memorySegment());
             case F16 -> new F16FloatTensor(FloatTensor.numberOfElements(entry.shape()), entry.memorySegment());
             default -> throw new UnsupportedOperationException("Quantization format " + ggmlType);
         };
     }
 
+    /**
+     * Loads a weight matrix, Q4_0 matrices are repacked into {@link InterleavedQ4_0FloatTensor} if enabled
+     * with {@code -Dllama.RepackQ4_0=4|8}.
+     */
+    public static FloatTensor loadMatrix(GGMLTensorEntry entry) {
+        FloatTensor tensor = loadQuantized(entry);
+        if (REPACK_Q4_0 != 0 && tensor instanceof Q4_0FloatTensor q4_0 && entry.shape().length == 2) {
+            // GGUF shapes start with the innermost dimension.
+            int dim1 = entry.shape()[0];
+            int dim0 = entry.shape()[1];
+            if (InterleavedQ4_0FloatTensor.canRepack(dim0, dim1, REPACK_Q4_0)) {
+                return InterleavedQ4_0FloatTensor.repack(q4_0, dim0, dim1, REPACK_Q4_0);
+            }
+        }
+        return tensor;
+    }
+
+    public static FloatTensor[] loadArrayOfMatrices(int size, IntFunction<GGMLTensorEntry> getTensorEntry) {
+        FloatTensor[] array = new FloatTensor[size];
+        for (int i = 0; i < size; i++) {
+            array[i] = loadMatrix(getTensorEntry.apply(i));
+        }
+        return array;
+    }
+
     public static FloatTensor[] loadArrayOfQuantized(int size, IntFunction<GGMLTensorEntry> getTensorEntry) {
         FloatTensor[] array = new FloatTensor[size];
         for (int i = 0; i < size; i++) {
@@ -1,5 +1,7 @@
 package org.llamadrama.core;
 
+import org.llamadrama.gguf.GGMLType;
+
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
@@ -13,7 +15,7 @@ import java.util.stream.Collectors;
 
 public record Options(Path modelPath, String prompt, String systemPrompt, boolean interactive,
                       float temperature, float topp, long seed, int maxTokens, boolean stream, boolean echo,
-                      boolean help) {
+                      boolean contextShift, int slidingWindow, int kvBudget, GGMLType kvType, boolean help) {
 
     public static final int DEFAULT_MAX_TOKENS = 512;
 
@@ -25,6 +27,16 @@ public record Options(Path modelPath, String prompt, String systemPrompt, boolea
         }
     }
 
+    static GGMLType parseKVType(String value) {
+        return switch (value.toLowerCase()) {
+            case "f32" -> GGMLType.F32;
+            case "f16" -> GGMLType.F16;
+            case "bf16" -> GGMLType.BF16;
+            case "q8_0" -> GGMLType.Q8_0;
+            default -> throw new IllegalArgumentException("Unsupported KV cache type: " + value + " (expected f32, f16, bf16 or q8_0)");
+        };
+    }
+
     public record CommandLineOption(String name, String value) {
     }
 
@@ -75,6 +87,10 @@ public record Options(Path modelPath, String prompt, String systemPrompt, boolea
                 (Integer) getValue.apply(OptParam.MAX_TOKENS),
                 (Boolean) getValue.apply(OptParam.STREAM),
                 (Boolean) getValue.apply(OptParam.ECHO),
+                (Boolean) getValue.apply(OptParam.CONTEXT_SHIFT),
+                (Integer) getValue.apply(OptParam.SLIDING_WINDOW),
+                (Integer) getValue.apply(OptParam.KV_BUDGET),
+                (GGMLType) getValue.apply(OptParam.KV_TYPE),
                 (Boolean) getValue.apply(OptParam.HELP)
         );
     }
@@ -89,6 +105,10 @@ public record Options(Path modelPath, String prompt, String systemPrompt, boolea
         MAX_TOKENS("--max-tokens,-n", "<int>", "Max tokens", Integer::parseInt, DEFAULT_MAX_TOKENS),
         STREAM("--stream", "<boolean>", "Enable streaming", Boolean::parseBoolean, true),
         ECHO("--echo", "<boolean>", "Echo output", Boolean::parseBoolean, false),
+        CONTEXT_SHIFT("--context-shift", "<boolean>", "Drop the oldest messages instead of stopping when the context is full", Boolean::parseBoolean, false),
+        SLIDING_WINDOW("--sliding-window", "<int>", "Instruct mode: keep only the first tokens and the last <int> ones in the KV cache, generate until a stop token (0 = off)", Integer::parseInt, 0),
+        KV_BUDGET("--kv-budget", "<int>", "Instruct mode: keep at most <int> positions in the KV cache, evicting the least attended ones, generate until a stop token (0 = off)", Integer::parseInt, 0),
+        KV_TYPE("--kv-type", "<f32|f16|bf16|q8_0>", "KV cache storage type", Options::parseKVType, GGMLType.F32),
         INTERACTIVE("--interactive,--chat,-i", "<boolean>", "Run in chat mode", s -> true, true),
         INSTRUCT("--instruct", "<boolean>", "Run in instruct mode", s -> true, true),
         HELP("--help", "<boolean>", "Display this help message", s -> true, false);
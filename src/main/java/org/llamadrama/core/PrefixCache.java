@@ -0,0 +1,176 @@
+package org.llamadrama.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Keeps the KV cache blocks of token prefixes, so that sequences starting with the same tokens (e.g. a shared
+ * system prompt) skip the prefill of the common part.
+ * <p>
+ * A radix tree over token ids with one full {@link KVBlockPool#BLOCK_SIZE block} of tokens per edge: the path
+ * from the root to a node spells the tokens whose keys/values are stored in the blocks along the path.
+ * The tree holds a reference to every block it caches; a sequence starting with a cached prefix shares them
+ * (and copies the last one on write if it diverges in the middle of it, see {@link KVCache#ensureWritable}).
+ * <p>
+ * The tree holds at most {@code budget} blocks, least recently used leaves are evicted first, also when the
+ * pool runs out of blocks.
+ */
+public final class PrefixCache {
+
+    private final KVBlockPool pool;
+    private final int budget;
+    private final Node root = new Node(null, new int[0], null);
+    private int size;
+    private long clock;
+
+    // statistics
+    private long lookups;
+    private long reusedTokens;
+
+    /**
+     * @param budget maximum number of blocks held by the cache
+     */
+    public PrefixCache(KVBlockPool pool, int budget) {
+        this.pool = pool;
+        this.budget = budget;
+        pool.setReclaimer(this::evictLeastRecentlyUsed);
+    }
+
+    public KVBlockPool pool() {
+        return pool;
+    }
+
+    private static final class Node {
+        final Node parent;
+        final int[] tokens; // tokens of the edge from the parent, BLOCK_SIZE of them
+        final KVBlockPool.Block block;
+        final List<Node> children = new ArrayList<>();
+        long lastUse;
+
+        Node(Node parent, int[] tokens, KVBlockPool.Block block) {
+            this.parent = parent;
+            this.tokens = tokens;
+            this.block = block;
+        }
+    }
+
+    /**
+     * Appends to the empty {@code cache} the blocks of the longest cached prefix of {@code tokens}.
+     * The last token is never reused, its logits must be computed.
+     *
+     * @return number of positions of {@code tokens} already in the cache
+     */
+    synchronized int attach(List<Integer> tokens, KVCache cache) {
+        if (cache.numberOfBlocks() != 0) {
+            throw new IllegalStateException("KV cache is not empty");
+        }
+        lookups++;
+        int limit = tokens.size() - 1;
+        int matched = 0;
+        Node node = root;
+        while (matched < limit) {
+            Node best = null;
+            int bestLength = 0;
+            for (Node child : node.children) {
+                int length = commonPrefixLength(child.tokens, tokens, matched, Math.min(KVBlockPool.BLOCK_SIZE, limit - matched));
+                if (length > bestLength) {
+                    best = child;
+                    bestLength = length;
+                }
+            }
+            if (best == null) {
+                break;
+            }
+            best.lastUse = ++clock;
+            cache.append(best.block);
+            matched += bestLength;
+            if (bestLength < KVBlockPool.BLOCK_SIZE) {
+                break; // diverges within the block
+            }
+            node = best;
+        }
+        reusedTokens += matched;
+        return matched;
+    }
+
+    private static int commonPrefixLength(int[] edge, List<Integer> tokens, int offset, int maxLength) {
+        int length = 0;
+        while (length < maxLength && edge[length] == tokens.get(offset + length)) {
+            length++;
+        }
+        return length;
+    }
+
+    /**
+     * Caches the full blocks of {@code cache}, holding the keys/values of {@code tokens}.
+     */
+    synchronized void insert(List<Integer> tokens, KVCache cache) {
+        int fullBlocks = Math.min(tokens.size() / KVBlockPool.BLOCK_SIZE, cache.numberOfBlocks());
+        Node node = root;
+        for (int b = 0; b < fullBlocks; ++b) {
+            int[] blockTokens = new int[KVBlockPool.BLOCK_SIZE];
+            for (int i = 0; i < blockTokens.length; ++i) {
+                blockTokens[i] = tokens.get(b * KVBlockPool.BLOCK_SIZE + i);
+            }
+            Node child = null;
+            for (Node candidate : node.children) {
+                if (Arrays.equals(candidate.tokens, blockTokens)) {
+                    child = candidate;
+                    break;
+                }
+            }
+            if (child == null) {
+                child = new Node(node, blockTokens, pool.retain(cache.block(b)));
+                node.children.add(child);
+                size++;
+            }
+            child.lastUse = ++clock;
+            node = child;
+        }
+        while (size > budget) {
+            evictLeastRecentlyUsed();
+        }
+    }
+
+    /**
+     * Drops the least recently used leaf.
+     *
+     * @return false if the cache is empty
+     */
+    synchronized boolean evictLeastRecentlyUsed() {
+        Node victim = leastRecentlyUsedLeaf(root, null);
+        if (victim == null) {
+            return false;
+        }
+        victim.parent.children.remove(victim);
+        size--;
+        pool.release(victim.block);
+        return true;
+    }
+
+    private static Node leastRecentlyUsedLeaf(Node node, Node best) {
+        for (Node child : node.children) {
+            if (child.children.isEmpty()) {
+                if (best == null || child.lastUse < best.lastUse) {
+                    best = child;
+                }
+            } else {
+                best = leastRecentlyUsedLeaf(child, best);
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Number of blocks held by the cache.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "PrefixCache[blocks=%d/%d, lookups=%d, reusedTokens=%d]".formatted(size, budget, lookups, reusedTokens);
+    }
+}
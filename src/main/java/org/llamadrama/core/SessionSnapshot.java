@@ -0,0 +1,141 @@
+package org.llamadrama.core;
+
+import org.llamadrama.gguf.GGMLType;
+import org.llamadrama.tensor.FloatTensor;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Saves the KV cache of a state to a file and restores it without copying.
+ * <p>
+ * Layout, little-endian:
+ * <pre>
+ * header   int32 magic, version, kv type (GGML id), layers, kv_dim, block size,
+ *          position, latest token, number of tokens, number of blocks, block layout
+ * tokens   int32[number of tokens]
+ * padding  up to a multiple of {@link #ALIGNMENT}
+ * blocks   for every block: keys then values, in the KV type and the {@link KVBlockPool.Layout layout} of the pool
+ * </pre>
+ * Restoring maps the file privately (copy-on-write) and adopts the mapped blocks into the pool of the state,
+ * only the pages that are actually read are loaded, and later writes never reach the file.
+ */
+public final class SessionSnapshot {
+
+    private static final int MAGIC = 0x564B444C; // "LDKV"
+    private static final int VERSION = 2;
+    private static final int HEADER_INTS = 11;
+    static final int ALIGNMENT = 4096;
+
+    private static final ValueLayout.OfInt JAVA_INT_LE = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+    private SessionSnapshot() {
+    }
+
+    /**
+     * A restored session: the next position to compute and the token history, the tokens from
+     * {@code position} on are not in the KV cache and must be ingested again.
+     */
+    public record Session(int position, List<Integer> tokens) {
+    }
+
+    /**
+     * Writes the KV cache of the positions [0, position) of {@code state}, its latest token and the token history.
+     * Only forwarded positions are backed by the KV cache: the history may hold more tokens, e.g. the stop token
+     * ending a turn, which is sampled but never forwarded.
+     */
+    public static void save(Path path, LlamaModel.Configuration config, LlamaModel.State state, int position, List<Integer> tokens) throws IOException {
+        KVCache cache = state.kvCache;
+        if (position > cache.capacity()) {
+            throw new IllegalArgumentException("position " + position + " is not in the KV cache");
+        }
+        GGMLType kvType = cache.pool().kvType();
+        int kvDim = (config.dim * config.numberOfKeyValueHeads) / config.numberOfHeads;
+        int blockElements = config.numberOfLayers * KVBlockPool.BLOCK_SIZE * kvDim;
+        long blockBytes = kvType.byteSizeFor(blockElements);
+        int numberOfBlocks = KVBlockPool.blocksFor(position);
+        long dataOffset = dataOffset(tokens.size());
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+             Arena arena = Arena.ofConfined()) {
+            MemorySegment file = channel.map(FileChannel.MapMode.READ_WRITE, 0, dataOffset + 2 * numberOfBlocks * blockBytes, arena);
+            int[] header = {MAGIC, VERSION, kvType.ordinal(), config.numberOfLayers, kvDim, KVBlockPool.BLOCK_SIZE,
+                    position, state.latestToken, tokens.size(), numberOfBlocks, cache.pool().layout().ordinal()};
+            for (int i = 0; i < header.length; ++i) {
+                file.set(JAVA_INT_LE, (long) i * Integer.BYTES, header[i]);
+            }
+            for (int i = 0; i < tokens.size(); ++i) {
+                file.set(JAVA_INT_LE, (long) (HEADER_INTS + i) * Integer.BYTES, tokens.get(i));
+            }
+            for (int b = 0; b < numberOfBlocks; ++b) {
+                long offset = dataOffset + 2 * b * blockBytes;
+                KVBlockPool.Block block = cache.block(b);
+                block.keys.copyTo(0, FloatTensor.of(kvType, blockElements, file.asSlice(offset, blockBytes)), 0, blockElements);
+                block.values.copyTo(0, FloatTensor.of(kvType, blockElements, file.asSlice(offset + blockBytes, blockBytes)), 0, blockElements);
+            }
+        }
+    }
+
+    /**
+     * Restores a snapshot into {@code state}, whose KV cache must be empty and use the KV type of the snapshot.
+     */
+    public static Session restore(Path path, LlamaModel.Configuration config, LlamaModel.State state) throws IOException {
+        KVCache cache = state.kvCache;
+        if (cache.numberOfBlocks() != 0) {
+            throw new IllegalStateException("KV cache is not empty");
+        }
+        MemorySegment file;
+        // A private mapping needs a channel open for writing, even though nothing is written back.
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // The mapping outlives the channel, it is released once the blocks are unreachable.
+            file = channel.map(FileChannel.MapMode.PRIVATE, 0, channel.size(), Arena.ofAuto());
+        }
+        int[] header = new int[HEADER_INTS];
+        for (int i = 0; i < header.length; ++i) {
+            header[i] = file.get(JAVA_INT_LE, (long) i * Integer.BYTES);
+        }
+        if (header[0] != MAGIC || header[1] != VERSION) {
+            throw new IllegalArgumentException("Not a session snapshot: " + path);
+        }
+        GGMLType kvType = GGMLType.fromId(header[2]);
+        int kvDim = (config.dim * config.numberOfKeyValueHeads) / config.numberOfHeads;
+        KVBlockPool.Layout layout = KVBlockPool.Layout.values()[header[10]];
+        if (kvType != cache.pool().kvType() || header[3] != config.numberOfLayers || header[4] != kvDim || header[5] != KVBlockPool.BLOCK_SIZE
+                || layout != cache.pool().layout()) {
+            throw new IllegalArgumentException("Snapshot " + path + " (" + kvType + ", " + header[3] + " layers, kv_dim " + header[4] + ", block size " + header[5] + ", " + layout
+                    + ") does not match the state (" + cache.pool().kvType() + ", " + config.numberOfLayers + " layers, kv_dim " + kvDim + ", block size " + KVBlockPool.BLOCK_SIZE
+                    + ", " + cache.pool().layout() + ")");
+        }
+        int position = header[6];
+        int numberOfTokens = header[8];
+        int numberOfBlocks = header[9];
+        List<Integer> tokens = new ArrayList<>(numberOfTokens);
+        for (int i = 0; i < numberOfTokens; ++i) {
+            tokens.add(file.get(JAVA_INT_LE, (long) (HEADER_INTS + i) * Integer.BYTES));
+        }
+
+        int blockElements = config.numberOfLayers * KVBlockPool.BLOCK_SIZE * kvDim;
+        long blockBytes = kvType.byteSizeFor(blockElements);
+        long dataOffset = dataOffset(numberOfTokens);
+        for (int b = 0; b < numberOfBlocks; ++b) {
+            long offset = dataOffset + 2 * b * blockBytes;
+            cache.adopt(FloatTensor.of(kvType, blockElements, file.asSlice(offset, blockBytes)),
+                    FloatTensor.of(kvType, blockElements, file.asSlice(offset + blockBytes, blockBytes)));
+        }
+        state.latestToken = header[7];
+        return new Session(position, List.copyOf(tokens));
+    }
+
+    private static long dataOffset(int numberOfTokens) {
+        long headerBytes = (long) (HEADER_INTS + numberOfTokens) * Integer.BYTES;
+        return (headerBytes + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+    }
+}
@@ -7,10 +7,10 @@ public enum GGMLType {
     Q4_1(2 * GGMLType.FLOAT16_BYTES + 16 * Byte.BYTES, 32),
     UNSUPPORTED_Q4_2(Integer.MAX_VALUE), // support has been removed
     UNSUPPORTED_Q4_3(Integer.MAX_VALUE), // support has been removed
-    Q5_0(Integer.MAX_VALUE),
-    Q5_1(Integer.MAX_VALUE),
+    Q5_0(GGMLType.FLOAT16_BYTES + Integer.BYTES + 16 * Byte.BYTES, 32),
+    Q5_1(2 * GGMLType.FLOAT16_BYTES + Integer.BYTES + 16 * Byte.BYTES, 32),
     Q8_0(GGMLType.FLOAT16_BYTES + 32 * Byte.BYTES, 32),
-    Q8_1(32 * Byte.BYTES + 2 * Float.BYTES, 32),
+    Q8_1(2 * GGMLType.FLOAT16_BYTES + 32 * Byte.BYTES, 32), // d and s are stored as half since ggml's block_q8_1 switched to ggml_half2
     // k-quantizations
     Q2_K(Integer.MAX_VALUE),
     Q3_K(Integer.MAX_VALUE),
@@ -4,15 +4,36 @@ import org.llamadrama.core.Timer;
 import org.llamadrama.util.Pair;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
 import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-
+import java.util.Objects;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * GGUF header, metadata and tensor infos.
+ * <p>
+ * The file is mapped and parsed in place: scalars are plain loads, primitive arrays are bulk copies and string
+ * arrays are decoded from a single copy of their bytes, instead of a {@link FileChannel#read} per value.
+ * <p>
+ * With lazy metadata, parsing only records where every value is (a skip-scan of the metadata); values are decoded
+ * on their first {@code getMetadata().get(...)} and string arrays are {@link MappedStrings views} over the mapped
+ * file. Opening a file is then cheap whatever the size of its tokenizer, e.g. to read hyperparameters or tensor infos.
+ */
 public final class GGUF {
     private static final int GGUF_MAGIC = 0x46554747;
     private static final int DEFAULT_ALIGNMENT = 32; // must be a power of 2
@@ -40,16 +61,48 @@ public final class GGUF {
         return metadata;
     }
 
-    private final ByteBuffer BB_1 = ByteBuffer.allocate(Byte.BYTES).order(ByteOrder.LITTLE_ENDIAN);
-    private final ByteBuffer BB_2 = ByteBuffer.allocate(Short.BYTES).order(ByteOrder.LITTLE_ENDIAN);
-    private final ByteBuffer BB_4 = ByteBuffer.allocate(Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
-    private final ByteBuffer BB_8 = ByteBuffer.allocate(Long.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    private static final ValueLayout.OfShort SHORT = ValueLayout.JAVA_SHORT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final ValueLayout.OfInt INT = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final ValueLayout.OfLong LONG = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final ValueLayout.OfFloat FLOAT = ValueLayout.JAVA_FLOAT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+    // The mapped file and the read position; only while parsing unless the metadata is lazy.
+    private MemorySegment segment;
+    private long position;
+    private boolean lazyMetadata;
 
     public static GGUF loadModel(Path modelPath) throws IOException {
+        return loadModel(modelPath, false);
+    }
+
+    public static GGUF loadModel(Path modelPath, boolean lazyMetadata) throws IOException {
         try (FileChannel fileChannel = FileChannel.open(modelPath);
-             var ignored = Timer.log("Parse " + modelPath)) {
+             var ignored = Timer.log("Parse " + modelPath + (lazyMetadata ? " (lazy metadata)" : ""))) {
+            return lazyMetadata ? readLazily(fileChannel) : read(fileChannel);
+        }
+    }
+
+    /**
+     * Parses up to the tensor data, without decoding the metadata values, see {@link LazyMetadata}.
+     * The file stays mapped as long as the metadata or any of its values is reachable.
+     */
+    public static GGUF readLazily(FileChannel fileChannel) throws IOException {
+        GGUF gguf = new GGUF();
+        gguf.lazyMetadata = true;
+        gguf.segment = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size(), Arena.ofAuto());
+        gguf.loadModelImpl();
+        return gguf;
+    }
+
+    /**
+     * Parses everything up to the tensor data, the values are copied out of the mapping which is closed afterwards.
+     */
+    public static GGUF read(FileChannel fileChannel) throws IOException {
+        try (Arena arena = Arena.ofConfined()) {
             GGUF gguf = new GGUF();
-            gguf.loadModelImpl(fileChannel);
+            gguf.segment = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size(), arena);
+            gguf.loadModelImpl();
+            gguf.segment = null;
             return gguf;
         }
     }
@@ -101,22 +154,21 @@ public final class GGUF {
         }
     }
 
-    private void loadModelImpl(FileChannel fileChannel) throws IOException {
+    private void loadModelImpl() {
         // The header of the file.
-        readHeader(fileChannel); // gguf_header_t header;
+        readHeader(); // gguf_header_t header;
         // Tensor infos, which can be used to locate the tensor data.
         // gguf_tensor_info_t tensor_infos[header.tensor_count];
         this.tensorInfos = HashMap.newHashMap(tensorCount);
         for (int i = 0; i < tensorCount; ++i) {
-            GGUFTensorInfo ti = readTensorInfo(fileChannel);
+            GGUFTensorInfo ti = readTensorInfo();
             assert !tensorInfos.containsKey(ti.name);
             tensorInfos.put(ti.name, ti);
         }
         // Padding to the nearest multiple of `ALIGNMENT`.
         // uint8_t _padding[ALIGNMENT - (sizeof(header + tensor_infos) % ALIGNMENT)];
-        //long _padding = -fileChannel.position() & (ALIGNMENT - 1);
-        long _padding = getAlignment() - (fileChannel.position() % getAlignment());
-        fileChannel.position(fileChannel.position() + _padding);
+        long _padding = -position & (getAlignment() - 1);
+        position += _padding;
         // Tensor data.
         //
         // This is arbitrary binary data corresponding to the weights of the model. This data should be close
@@ -128,83 +180,83 @@ public final class GGUF {
         // The offset of each tensor's data must be a multiple of `ALIGNMENT`, and the space between tensors
         // should be padded to `ALIGNMENT` bytes.
         // uint8_t tensor_data[];
-        this.tensorDataOffset = fileChannel.position();
+        this.tensorDataOffset = position;
     }
 
     public record GGUFTensorInfo(String name, int[] dimensions, GGMLType ggmlType, long offset) {
     }
 
-    private GGMLType readGGMLType(FileChannel fileChannel) throws IOException {
-        int ggmlTypeId = readInt(fileChannel); // ggml_type type;
+    private GGMLType readGGMLType() {
+        int ggmlTypeId = readInt(); // ggml_type type;
         return GGMLType.fromId(ggmlTypeId);
     }
 
-    private GGUFTensorInfo readTensorInfo(FileChannel fileChannel) throws IOException {
+    private GGUFTensorInfo readTensorInfo() {
         // The name of the tensor. It is a standard GGUF string, with the caveat that
         // it must be at most 64 bytes long.
-        String name = readString(fileChannel); // gguf_string_t name;
+        String name = readString(); // gguf_string_t name;
         assert name.length() <= 64;
         // The number of dimensions in the tensor.
         // Currently at most 4, but this may change in the future.
-        int n_dimensions = readInt(fileChannel); // uint32_t n_dimensions;
+        int n_dimensions = readInt(); // uint32_t n_dimensions;
         assert n_dimensions <= 4;
         // The dimensions of the tensor.
         int[] dimensions = new int[n_dimensions]; // uint64_t dimensions[n_dimensions];
         for (int i = 0; i < n_dimensions; ++i) {
-            dimensions[i] = Math.toIntExact(readLong(fileChannel));
+            dimensions[i] = Math.toIntExact(readLong());
         }
         // The type of the tensor.
-        GGMLType ggmlType = readGGMLType(fileChannel); // ggml_type type;
+        GGMLType ggmlType = readGGMLType(); // ggml_type type;
         // The offset of the tensor's data in this file in bytes.
         // This offset is relative to `tensor_data`, not to the start
         // of the file, to make it easier for writers to write the file.
         // Readers should consider exposing this offset relative to the
         // file to make it easier to read the data.
         // Must be a multiple of `ALIGNMENT`.
-        long offset = readLong(fileChannel); // uint64_t offset;
+        long offset = readLong(); // uint64_t offset;
         assert offset % getAlignment() == 0;
         return new GGUFTensorInfo(name, dimensions, ggmlType, offset);
     }
 
-    private String readString(FileChannel fileChannel) throws IOException {
+    private String readString() {
         // A string in GGUF.
         // The length of the string, in bytes.
-        int len = Math.toIntExact(readLong(fileChannel)); // uint64_t len;
+        int len = Math.toIntExact(readLong()); // uint64_t len;
         // The string as a UTF-8 non-null-terminated string.
         byte[] bytes = new byte[len]; // char string[len];
-        int bytesRead = fileChannel.read(ByteBuffer.wrap(bytes));
-        assert len == bytesRead;
+        MemorySegment.copy(segment, ValueLayout.JAVA_BYTE, position, bytes, 0, len);
+        position += len;
         return new String(bytes, StandardCharsets.UTF_8);
     }
 
-    private Pair<String, Object> readKeyValuePair(FileChannel fileChannel) throws IOException {
+    private Pair<String, Object> readKeyValuePair() {
         // The key of the metadata. It is a standard GGUF string, with the following caveats:
         // - It must be a valid ASCII string.
         // - It must be a hierarchical key, where each segment is `lower_snake_case` and separated by a `.`.
         // - It must be at most 2^16-1/65535 bytes long.
         // Any keys that do not follow these rules are invalid.
-        String key = readString(fileChannel); // gguf_string_t key;
+        String key = readString(); // gguf_string_t key;
         assert key.length() < (1 << 16);
         assert key.codePoints().allMatch(cp -> ('a' <= cp && cp <= 'z') || ('0' <= cp && cp <= '9') || cp == '_' || cp == '.');
-        Object value = readMetadataValue(fileChannel);
+        Object value = readMetadataValue();
         return new Pair<>(key, value);
     }
 
-    private Object readMetadataValue(FileChannel fileChannel) throws IOException {
+    private Object readMetadataValue() {
         // The type of the value.
         // Must be one of the `gguf_metadata_value_type` values.
-        MetadataValueType value_type = readMetadataValueType(fileChannel); // gguf_metadata_value_type value_type;
+        MetadataValueType value_type = readMetadataValueType(); // gguf_metadata_value_type value_type;
         // The value.
-        return readMetadataValueOfType(value_type, fileChannel); // gguf_metadata_value_t value;
+        return readMetadataValueOfType(value_type); // gguf_metadata_value_t value;
     }
 
-    void readHeader(FileChannel fileChannel) throws IOException {
+    void readHeader() {
         // Magic number to announce that this is a GGUF file.
         // Must be `GGUF` at the byte level: `0x47` `0x47` `0x55` `0x46`.
         // Your executor might do little-endian byte order, so it might be
         // check for 0x46554747 and letting the endianness cancel out.
         // Consider being *very* explicit about the byte order here.
-        this.magic = readInt(fileChannel); //    uint32_t magic;
+        this.magic = readInt(); //    uint32_t magic;
         if (magic != GGUF_MAGIC) {
             throw new IllegalArgumentException("unsupported header.magic " + magic);
         }
@@ -214,80 +266,81 @@ public final class GGUF {
         // This version should only be increased for structural changes to the format.
         // Changes that do not affect the structure of the file should instead update the metadata
         // to signify the change.
-        this.version = readInt(fileChannel); // uint32_t version;
+        this.version = readInt(); // uint32_t version;
         if (!SUPPORTED_GGUF_VERSIONS.contains(version)) {
             throw new IllegalArgumentException("unsupported header.version " + version);
         }
         // The number of tensors in the file.
         // This is explicit, instead of being included in the metadata, to ensure it is always present
         // for loading the tensors.
-        this.tensorCount = Math.toIntExact(readLong(fileChannel)); // uint64_t tensor_count;
+        this.tensorCount = Math.toIntExact(readLong()); // uint64_t tensor_count;
         // The number of metadata key-value pairs.
-        this.metadata_kv_count = Math.toIntExact(readLong(fileChannel)); // uint64_t metadata_kv_count;
+        this.metadata_kv_count = Math.toIntExact(readLong()); // uint64_t metadata_kv_count;
         // The metadata key-value pairs.
         // gguf_metadata_kv_t metadata_kv[metadata_kv_count];
+        if (lazyMetadata) {
+            this.metadata = readLazyMetadata();
+            return;
+        }
         this.metadata = HashMap.newHashMap(metadata_kv_count);
         for (int i = 0; i < metadata_kv_count; ++i) {
-            Pair<String, Object> keyValue = readKeyValuePair(fileChannel);
+            Pair<String, Object> keyValue = readKeyValuePair();
             assert !metadata.containsKey(keyValue.first());
             metadata.put(keyValue.first(), keyValue.second());
         }
     }
 
-    private Object readArray(FileChannel fileChannel) throws IOException {
+    private Object readArray() {
         // Any value type is valid, including arrays.
-        MetadataValueType value_type = readMetadataValueType(fileChannel); // gguf_metadata_value_type type;
+        MetadataValueType value_type = readMetadataValueType(); // gguf_metadata_value_type type;
         // Number of elements, not bytes
-        int len = Math.toIntExact(readLong(fileChannel)); // uint64_t len;
+        int len = Math.toIntExact(readLong()); // uint64_t len;
         // The array of values.
         // gguf_metadata_value_t array[len];
         switch (value_type) {
             case UINT8, INT8 -> {
                 byte[] bytes = new byte[len];
-                for (int i = 0; i < len; ++i) {
-                    bytes[i] = readByte(fileChannel);
-                }
+                MemorySegment.copy(segment, ValueLayout.JAVA_BYTE, position, bytes, 0, len);
+                position += len;
                 return bytes;
             }
             case UINT16, INT16 -> {
                 short[] shorts = new short[len];
-                for (int i = 0; i < len; ++i) {
-                    shorts[i] = readShort(fileChannel);
-                }
+                MemorySegment.copy(segment, SHORT, position, shorts, 0, len);
+                position += (long) len * Short.BYTES;
                 return shorts;
             }
             case UINT32, INT32 -> {
                 int[] ints = new int[len];
-                for (int i = 0; i < len; ++i) {
-                    ints[i] = readInt(fileChannel);
-                }
+                MemorySegment.copy(segment, INT, position, ints, 0, len);
+                position += (long) len * Integer.BYTES;
                 return ints;
             }
             case FLOAT32 -> {
                 float[] floats = new float[len];
-                for (int i = 0; i < len; ++i) {
-                    floats[i] = readFloat(fileChannel);
-                }
+                MemorySegment.copy(segment, FLOAT, position, floats, 0, len);
+                position += (long) len * Float.BYTES;
                 return floats;
             }
             case BOOL -> {
                 boolean[] booleans = new boolean[len];
                 for (int i = 0; i < len; ++i) {
-                    booleans[i] = readBoolean(fileChannel);
+                    booleans[i] = readBoolean();
                 }
                 return booleans;
             }
             case STRING -> {
-                String[] strings = new String[len];
-                for (int i = 0; i < len; ++i) {
-                    strings[i] = readString(fileChannel);
+                if (lazyMetadata) {
+                    MappedStrings strings = new MappedStrings(segment, position, len);
+                    position = strings.end();
+                    return strings;
                 }
-                return strings;
+                return readStrings(len);
             }
             case ARRAY -> {
                 Object[] arrays = new Object[len];
                 for (int i = 0; i < len; ++i) {
-                    arrays[i] = readArray(fileChannel);
+                    arrays[i] = readArray();
                 }
                 return arrays;
             }
@@ -295,61 +348,246 @@ public final class GGUF {
         }
     }
 
-    private Object readMetadataValueOfType(MetadataValueType valueType, FileChannel fileChannel) throws IOException {
+    private Object readMetadataValueOfType(MetadataValueType valueType) {
         return switch (valueType) {
-            case UINT8, INT8 -> readByte(fileChannel);
-            case UINT16, INT16 -> readShort(fileChannel);
-            case UINT32, INT32 -> readInt(fileChannel);
-            case FLOAT32 -> readFloat(fileChannel);
-            case UINT64, INT64 -> readLong(fileChannel);
-            case FLOAT64 -> readDouble(fileChannel);
-            case BOOL -> readBoolean(fileChannel);
-            case STRING -> readString(fileChannel);
-            case ARRAY -> readArray(fileChannel);
+            case UINT8, INT8 -> readByte();
+            case UINT16, INT16 -> readShort();
+            case UINT32, INT32 -> readInt();
+            case FLOAT32 -> readFloat();
+            case UINT64, INT64 -> readLong();
+            case FLOAT64 -> readDouble();
+            case BOOL -> readBoolean();
+            case STRING -> readString();
+            case ARRAY -> readArray();
         };
     }
 
-    private byte readByte(FileChannel fileChannel) throws IOException {
-        int bytesRead = fileChannel.read(BB_1);
-        assert bytesRead == 1;
-        return BB_1.clear().get(0);
+    private String[] readStrings(int len) {
+        // First pass over the lengths, then a single copy of all the (length-prefixed) strings.
+        long start = position;
+        for (int i = 0; i < len; ++i) {
+            position += Long.BYTES + segment.get(LONG, position);
+        }
+        return decodeStrings(segment, start, position, len);
     }
 
-    private boolean readBoolean(FileChannel fileChannel) throws IOException {
-        return readByte(fileChannel) != 0;
+    private static String[] decodeStrings(MemorySegment segment, long start, long end, int len) {
+        byte[] bytes = new byte[Math.toIntExact(end - start)];
+        MemorySegment.copy(segment, ValueLayout.JAVA_BYTE, start, bytes, 0, bytes.length);
+        MemorySegment heap = MemorySegment.ofArray(bytes);
+        String[] strings = new String[len];
+        int offset = 0;
+        for (int i = 0; i < len; ++i) {
+            int stringLength = (int) heap.get(LONG, offset);
+            offset += Long.BYTES;
+            strings[i] = new String(bytes, offset, stringLength, StandardCharsets.UTF_8);
+            offset += stringLength;
+        }
+        return strings;
     }
 
-    private short readShort(FileChannel fileChannel) throws IOException {
-        int bytesRead = fileChannel.read(BB_2);
-        assert bytesRead == 2;
-        return BB_2.clear().getShort(0);
+    private byte readByte() {
+        byte value = segment.get(ValueLayout.JAVA_BYTE, position);
+        position += Byte.BYTES;
+        return value;
     }
 
-    private int readInt(FileChannel fileChannel) throws IOException {
-        int bytesRead = fileChannel.read(BB_4);
-        assert bytesRead == 4;
-        return BB_4.clear().getInt(0);
+    private boolean readBoolean() {
+        return readByte() != 0;
     }
 
-    private long readLong(FileChannel fileChannel) throws IOException {
-        int bytesRead = fileChannel.read(BB_8);
-        assert bytesRead == 8;
-        return BB_8.clear().getLong(0);
+    private short readShort() {
+        short value = segment.get(SHORT, position);
+        position += Short.BYTES;
+        return value;
     }
 
-    private float readFloat(FileChannel fileChannel) throws IOException {
-        return Float.intBitsToFloat(readInt(fileChannel));
+    private int readInt() {
+        int value = segment.get(INT, position);
+        position += Integer.BYTES;
+        return value;
     }
 
-    private double readDouble(FileChannel fileChannel) throws IOException {
-        return Double.longBitsToDouble(readLong(fileChannel));
+    private long readLong() {
+        long value = segment.get(LONG, position);
+        position += Long.BYTES;
+        return value;
     }
 
-    private MetadataValueType readMetadataValueType(FileChannel fileChannel) throws IOException {
-        int index = readInt(fileChannel);
+    private float readFloat() {
+        return Float.intBitsToFloat(readInt());
+    }
+
+    private double readDouble() {
+        return Double.longBitsToDouble(readLong());
+    }
+
+    private MetadataValueType readMetadataValueType() {
+        int index = readInt();
         return MetadataValueType.fromIndex(index);
     }
 
+    private Map<String, Object> readLazyMetadata() {
+        Map<String, ValueLocation> locations = HashMap.newHashMap(metadata_kv_count);
+        for (int i = 0; i < metadata_kv_count; ++i) {
+            String key = readString(); // gguf_string_t key;
+            MetadataValueType valueType = readMetadataValueType();
+            assert !locations.containsKey(key);
+            locations.put(key, new ValueLocation(valueType, position));
+            skipMetadataValueOfType(valueType);
+        }
+        return new LazyMetadata(locations);
+    }
+
+    private void skipMetadataValueOfType(MetadataValueType valueType) {
+        switch (valueType) {
+            case STRING -> position += Long.BYTES + readLong();
+            case ARRAY -> {
+                MetadataValueType elementType = readMetadataValueType();
+                long len = readLong();
+                if (elementType.byteSize() > 0) {
+                    position += len * elementType.byteSize();
+                } else {
+                    for (long i = 0; i < len; ++i) {
+                        skipMetadataValueOfType(elementType);
+                    }
+                }
+            }
+            default -> position += valueType.byteSize();
+        }
+    }
+
+    // Decodes a value with the parser, the read position is restored: a value may be needed in the middle of parsing (general.alignment).
+    private synchronized Object readMetadataValueAt(ValueLocation location) {
+        long savedPosition = position;
+        position = location.offset();
+        try {
+            return readMetadataValueOfType(location.type());
+        } finally {
+            position = savedPosition;
+        }
+    }
+
+    private record ValueLocation(MetadataValueType type, long offset) {
+    }
+
+    /**
+     * Metadata decoded on demand: {@link #get} decodes a value once, iterating the entries decodes all of them.
+     */
+    private final class LazyMetadata extends AbstractMap<String, Object> {
+        private final Map<String, ValueLocation> locations;
+        private final Map<String, Object> values = new ConcurrentHashMap<>();
+
+        LazyMetadata(Map<String, ValueLocation> locations) {
+            this.locations = locations;
+        }
+
+        @Override
+        public Object get(Object key) {
+            ValueLocation location = locations.get(key);
+            if (location == null) {
+                return null;
+            }
+            return values.computeIfAbsent((String) key, k -> readMetadataValueAt(location));
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return locations.containsKey(key);
+        }
+
+        @Override
+        public int size() {
+            return locations.size();
+        }
+
+        @Override
+        public Set<String> keySet() {
+            return Collections.unmodifiableSet(locations.keySet());
+        }
+
+        @Override
+        public Set<Entry<String, Object>> entrySet() {
+            return new AbstractSet<>() {
+                @Override
+                public Iterator<Entry<String, Object>> iterator() {
+                    Iterator<String> keys = locations.keySet().iterator();
+                    return new Iterator<>() {
+                        @Override
+                        public boolean hasNext() {
+                            return keys.hasNext();
+                        }
+
+                        @Override
+                        public Entry<String, Object> next() {
+                            String key = keys.next();
+                            return new SimpleImmutableEntry<>(key, get(key));
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return locations.size();
+                }
+            };
+        }
+    }
+
+    /**
+     * A GGUF string array, decoded one element at a time from the mapped file.
+     */
+    public static final class MappedStrings extends AbstractList<String> implements RandomAccess {
+        private final MemorySegment segment;
+        private final long[] offsets; // of the lengths, one more for the end
+
+        MappedStrings(MemorySegment segment, long start, int len) {
+            this.segment = segment;
+            this.offsets = new long[len + 1];
+            long offset = start;
+            for (int i = 0; i < len; ++i) {
+                offsets[i] = offset;
+                offset += Long.BYTES + segment.get(LONG, offset);
+            }
+            offsets[len] = offset;
+        }
+
+        long end() {
+            return offsets[offsets.length - 1];
+        }
+
+        @Override
+        public String get(int index) {
+            long offset = offsets[Objects.checkIndex(index, size())];
+            int len = Math.toIntExact(segment.get(LONG, offset));
+            byte[] bytes = new byte[len];
+            MemorySegment.copy(segment, ValueLayout.JAVA_BYTE, offset + Long.BYTES, bytes, 0, len);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public int size() {
+            return offsets.length - 1;
+        }
+
+        /**
+         * All the strings at once, from a single copy of their bytes.
+         */
+        public String[] decodeAll() {
+            return decodeStrings(segment, offsets[0], end(), size());
+        }
+    }
+
+    /**
+     * A string array metadata value, either decoded ({@code String[]}) or lazy ({@link MappedStrings}).
+     */
+    public static String[] toStringArray(Object value) {
+        if (value instanceof String[] strings) {
+            return strings;
+        }
+        return ((MappedStrings) value).decodeAll();
+    }
+
     public int getAlignment() {
         if (alignment != 0) {
             return alignment;
@@ -1,38 +1,102 @@
 package org.llamadrama.math;
 
-import org.llamadrama.util.Pair;
+import org.llamadrama.tensor.FloatTensor;
 
+/**
+ * Rotary positional embeddings: the pair {@code i} of every head is rotated by the angle {@code position * freq_i}.
+ * <p>
+ * Only the {@code head_size / 2} frequencies are kept; the cosines and sines of a position are computed when
+ * needed, see {@link #rotation(int)}, so memory and startup do not depend on the context length.
+ */
 public final class RoPE {
-    public static Pair<float[], float[]> precomputeFreqsCis(int contextLength, int headSize, double theta,
-            boolean ropeScaling, float scaleFactor, float loFreqFactor, float hiFreqFactor, float oldContextLength) {
+
+    /**
+     * Long-context frequency scaling, from the {@code llama.rope.scaling.*} metadata.
+     *
+     * @param type                  {@code linear} (all frequencies divided by the factor) or {@code llama3} (Llama 3.1:
+     *                              only the low frequencies are divided, smoothly between the two wavelength bounds)
+     * @param originalContextLength context length the model was trained with
+     */
+    public record Scaling(String type, float factor, float lowFreqFactor, float highFreqFactor, int originalContextLength) {
+    }
+
+    private final int headSize;
+    private final float[] frequencies; // (head_size / 2,)
+
+    /**
+     * @param freqFactors per-pair divisors of the frequencies (the {@code rope_freqs.weight} tensor of Llama 3.1+ models),
+     *                    take precedence over {@code scaling}; both can be null
+     */
+    public RoPE(int headSize, double theta, float[] freqFactors, Scaling scaling) {
         assert headSize % 2 == 0;
-        float[] cr = new float[contextLength * (headSize / 2)];
-        float[] ci = new float[contextLength * (headSize / 2)];
-        int n = 0;
-        for (int pos = 0; pos < contextLength; ++pos) {
-            for (int i = 0; i < headSize; i += 2) {
-                float freq = (float) (1.0 / Math.pow(theta, i / (double) headSize));
-                if (ropeScaling) {
-                    // Llama 3.1 scaling
-                    float loFreqWavelen = oldContextLength / loFreqFactor;
-                    float hiFreqWavelen = oldContextLength / hiFreqFactor;
-                    float wavelen = (float) (2.0 * Math.PI / freq);
-                    if (wavelen < hiFreqWavelen) {
-                        freq = freq;
-                    } else if (wavelen > loFreqWavelen) {
-                        freq = freq / scaleFactor;
-                    } else {
-                        float smooth = (oldContextLength / wavelen - loFreqFactor) / (hiFreqFactor - loFreqFactor);
-                        freq = (1.0f - smooth) * freq / scaleFactor + smooth * freq;
-                    }
+        this.headSize = headSize;
+        this.frequencies = new float[headSize / 2];
+        for (int i = 0; i < headSize; i += 2) {
+            float freq = (float) (1.0 / Math.pow(theta, i / (double) headSize));
+            if (freqFactors != null) {
+                freq /= freqFactors[i / 2];
+            } else if (scaling != null) {
+                freq = scale(freq, scaling);
+            }
+            frequencies[i / 2] = freq;
+        }
+    }
+
+    private static float scale(float freq, Scaling scaling) {
+        return switch (scaling.type()) {
+            case "linear" -> freq / scaling.factor();
+            case "llama3" -> {
+                float loFreqWavelen = scaling.originalContextLength() / scaling.lowFreqFactor();
+                float hiFreqWavelen = scaling.originalContextLength() / scaling.highFreqFactor();
+                float wavelen = (float) (2.0 * Math.PI / freq);
+                if (wavelen < hiFreqWavelen) {
+                    yield freq;
+                } else if (wavelen > loFreqWavelen) {
+                    yield freq / scaling.factor();
+                } else {
+                    float smooth = (scaling.originalContextLength() / wavelen - scaling.lowFreqFactor()) / (scaling.highFreqFactor() - scaling.lowFreqFactor());
+                    yield (1.0f - smooth) * freq / scaling.factor() + smooth * freq;
                 }
-                float val = pos * freq;
-                cr[n] = (float) Math.cos(val);
-                ci[n] = (float) Math.sin(val);
-                n++;
             }
+            case "none" -> freq;
+            default -> throw new IllegalArgumentException("Unsupported RoPE scaling: " + scaling.type());
+        };
+    }
+
+    public int headSize() {
+        return headSize;
+    }
+
+    /**
+     * Cosines and sines of a position, for every element of a head, see {@link FloatTensor#rotatePairsInPlace}.
+     */
+    public record Rotation(float[] cos, float[] sin) {
+    }
+
+    /**
+     * The rotation of {@code position}; negative positions rotate backwards, e.g. to move cached keys.
+     */
+    public Rotation rotation(int position) {
+        float[] cos = new float[headSize];
+        float[] sin = new float[headSize];
+        for (int i = 0; i < headSize; i += 2) {
+            double angle = position * (double) frequencies[i / 2];
+            float c = (float) Math.cos(angle);
+            float s = (float) Math.sin(angle);
+            cos[i] = c;
+            cos[i + 1] = c;
+            sin[i] = -s;
+            sin[i + 1] = s;
+        }
+        return new Rotation(cos, sin);
+    }
+
+    /**
+     * Rotates the heads of {@code vec[offset ... offset + size)}.
+     */
+    public void rotate(FloatTensor vec, int offset, int size, Rotation rotation) {
+        for (int h = 0; h < size; h += headSize) {
+            vec.rotatePairsInPlace(offset + h, headSize, rotation.cos(), rotation.sin());
         }
-        assert contextLength * (headSize / 2) == n;
-        return new Pair<>(cr, ci);
     }
 }
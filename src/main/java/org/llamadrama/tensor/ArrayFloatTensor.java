@@ -1,15 +1,22 @@
 package org.llamadrama.tensor;
 
 import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShuffle;
 import jdk.incubator.vector.VectorSpecies;
 import org.llamadrama.gguf.GGMLType;
 
+import java.lang.foreign.MemorySegment;
+import java.nio.FloatBuffer;
 import java.util.Arrays;
 
 public final class ArrayFloatTensor extends FloatTensor {
 
     final float[] values;
 
+    // (x1, x0, x3, x2, ...)
+    private static final VectorShuffle<Float> SWAP_PAIRS = USE_VECTOR_API ? VectorShuffle.fromOp(F_SPECIES, i -> i ^ 1) : null;
+
     ArrayFloatTensor(float[] values) {
         this.values = values;
     }
@@ -52,4 +59,281 @@ public final class ArrayFloatTensor extends FloatTensor {
         }
         return FloatVector.fromArray(species, values, index);
     }
+
+    @Override
+    void dequantize(int thisOffset, float[] dst, int dstOffset, int size) {
+        System.arraycopy(values, thisOffset, dst, dstOffset, size);
+    }
+
+    @Override
+    public float dot(int thisOffset, FloatTensor that, int thatOffset, int size) {
+        if (that instanceof ArrayFloatTensor thatArray) {
+            return dot(values, thisOffset, thatArray.values, thatOffset, size);
+        }
+        // Quantized tensors have kernels against ArrayFloatTensor, the dot product is symmetric.
+        return that.dot(thatOffset, this, thisOffset, size);
+    }
+
+    @Override
+    public void copyTo(int thisOffset, FloatTensor that, int thatOffset, int size) {
+        if (that instanceof ArrayFloatTensor thatArray) {
+            System.arraycopy(values, thisOffset, thatArray.values, thatOffset, size);
+        } else {
+            that.write(thatOffset, values, thisOffset, size);
+        }
+    }
+
+    @Override
+    float sum(int thisOffset, int size) {
+        float result = 0f;
+        int j = 0;
+        if (USE_VECTOR_API) {
+            FloatVector val = FloatVector.zero(F_SPECIES);
+            int upperBound = F_SPECIES.loopBound(size);
+            for (; j < upperBound; j += F_SPECIES.length()) {
+                val = val.add(FloatVector.fromArray(F_SPECIES, values, thisOffset + j));
+            }
+            result = val.reduceLanes(VectorOperators.ADD);
+        }
+        for (; j < size; ++j) {
+            result += values[thisOffset + j];
+        }
+        return result;
+    }
+
+    @Override
+    float max(int thisOffset, int size) {
+        float result = Float.NEGATIVE_INFINITY;
+        int j = 0;
+        if (USE_VECTOR_API) {
+            FloatVector val = FloatVector.broadcast(F_SPECIES, Float.NEGATIVE_INFINITY);
+            int upperBound = F_SPECIES.loopBound(size);
+            for (; j < upperBound; j += F_SPECIES.length()) {
+                val = val.max(FloatVector.fromArray(F_SPECIES, values, thisOffset + j));
+            }
+            result = val.reduceLanes(VectorOperators.MAX);
+        }
+        for (; j < size; ++j) {
+            result = Math.max(result, values[thisOffset + j]);
+        }
+        return result;
+    }
+
+    @Override
+    FloatTensor addInPlace(int thisOffset, FloatTensor that, int thatOffset, int size) {
+        if (!(that instanceof ArrayFloatTensor thatArray)) {
+            return super.addInPlace(thisOffset, that, thatOffset, size);
+        }
+        float[] other = thatArray.values;
+        int j = 0;
+        if (USE_VECTOR_API) {
+            int upperBound = F_SPECIES.loopBound(size);
+            for (; j < upperBound; j += F_SPECIES.length()) {
+                var a = FloatVector.fromArray(F_SPECIES, values, thisOffset + j);
+                var b = FloatVector.fromArray(F_SPECIES, other, thatOffset + j);
+                a.add(b).intoArray(values, thisOffset + j);
+            }
+        }
+        for (; j < size; ++j) {
+            values[thisOffset + j] += other[thatOffset + j];
+        }
+        return this;
+    }
+
+    @Override
+    FloatTensor multiplyInPlace(int thisOffset, FloatTensor that, int thatOffset, int size) {
+        if (!(that instanceof ArrayFloatTensor thatArray)) {
+            return super.multiplyInPlace(thisOffset, that, thatOffset, size);
+        }
+        float[] other = thatArray.values;
+        int j = 0;
+        if (USE_VECTOR_API) {
+            int upperBound = F_SPECIES.loopBound(size);
+            for (; j < upperBound; j += F_SPECIES.length()) {
+                var a = FloatVector.fromArray(F_SPECIES, values, thisOffset + j);
+                var b = FloatVector.fromArray(F_SPECIES, other, thatOffset + j);
+                a.mul(b).intoArray(values, thisOffset + j);
+            }
+        }
+        for (; j < size; ++j) {
+            values[thisOffset + j] *= other[thatOffset + j];
+        }
+        return this;
+    }
+
+    @Override
+    public FloatTensor softmaxInPlace(int thisOffset, int size) {
+        if (!USE_VECTOR_API) {
+            return super.softmaxInPlace(thisOffset, size);
+        }
+        // find max value (for numerical stability)
+        float maxVal = max(thisOffset, size);
+        // exp and sum
+        int j = 0;
+        FloatVector val = FloatVector.zero(F_SPECIES);
+        int upperBound = F_SPECIES.loopBound(size);
+        for (; j < upperBound; j += F_SPECIES.length()) {
+            var e = FloatVector.fromArray(F_SPECIES, values, thisOffset + j).sub(maxVal).lanewise(VectorOperators.EXP);
+            e.intoArray(values, thisOffset + j);
+            val = val.add(e);
+        }
+        float sum = val.reduceLanes(VectorOperators.ADD);
+        for (; j < size; ++j) {
+            float e = (float) Math.exp(values[thisOffset + j] - maxVal);
+            values[thisOffset + j] = e;
+            sum += e;
+        }
+        // normalize
+        scaleInPlace(thisOffset, size, 1f / sum);
+        return this;
+    }
+
+    @Override
+    public FloatTensor scaleInPlace(int thisOffset, int size, float scale) {
+        int j = 0;
+        if (USE_VECTOR_API) {
+            int upperBound = F_SPECIES.loopBound(size);
+            for (; j < upperBound; j += F_SPECIES.length()) {
+                FloatVector.fromArray(F_SPECIES, values, thisOffset + j).mul(scale).intoArray(values, thisOffset + j);
+            }
+        }
+        for (; j < size; ++j) {
+            values[thisOffset + j] *= scale;
+        }
+        return this;
+    }
+
+    @Override
+    public FloatTensor rotatePairsInPlace(int thisOffset, int size, float[] cos, float[] sin) {
+        int j = 0;
+        if (USE_VECTOR_API) {
+            // x[j ^ 1] is a swap of the adjacent lanes
+            int upperBound = F_SPECIES.loopBound(size);
+            for (; j < upperBound; j += F_SPECIES.length()) {
+                FloatVector x = FloatVector.fromArray(F_SPECIES, values, thisOffset + j);
+                FloatVector swapped = x.rearrange(SWAP_PAIRS);
+                x.mul(FloatVector.fromArray(F_SPECIES, cos, j))
+                        .add(swapped.mul(FloatVector.fromArray(F_SPECIES, sin, j)))
+                        .intoArray(values, thisOffset + j);
+            }
+        }
+        for (; j < size; j += 2) {
+            float v0 = values[thisOffset + j];
+            float v1 = values[thisOffset + j + 1];
+            values[thisOffset + j] = v0 * cos[j] + v1 * sin[j];
+            values[thisOffset + j + 1] = v1 * cos[j + 1] + v0 * sin[j + 1];
+        }
+        return this;
+    }
+
+    @Override
+    public FloatTensor saxpyInPlace(int thisOffset, FloatTensor that, int thatOffset, int size, float a) {
+        if (!(that instanceof ArrayFloatTensor thatArray)) {
+            // Compressed tensors (e.g. the KV cache) decode themselves into this array.
+            that.saxpyTo(thatOffset, values, thisOffset, size, a);
+            return this;
+        }
+        float[] other = thatArray.values;
+        int j = 0;
+        if (USE_VECTOR_API) {
+            var va = FloatVector.broadcast(F_SPECIES, a);
+            int upperBound = F_SPECIES.loopBound(size);
+            for (; j < upperBound; j += F_SPECIES.length()) {
+                var x = FloatVector.fromArray(F_SPECIES, other, thatOffset + j);
+                var y = FloatVector.fromArray(F_SPECIES, values, thisOffset + j);
+                x.fma(va, y).intoArray(values, thisOffset + j);
+            }
+        }
+        for (; j < size; ++j) {
+            values[thisOffset + j] += a * other[thatOffset + j];
+        }
+        return this;
+    }
+
+    @Override
+    public FloatTensor rmsnorm(FloatTensor x, FloatBuffer weight, int size, float rmsNormEps) {
+        if (!USE_VECTOR_API || !(x instanceof ArrayFloatTensor xArray)) {
+            return super.rmsnorm(x, weight, size, rmsNormEps);
+        }
+        float[] in = xArray.values;
+        float ss = dot(in, 0, in, 0, size);
+        ss /= size;
+        ss += rmsNormEps;
+        ss = (float) (1.0 / Math.sqrt(ss));
+        // The weights are usually a view of the mapped model file.
+        MemorySegment w = weight.isDirect() ? MemorySegment.ofBuffer(weight) : null;
+        int j = 0;
+        if (w != null) {
+            var scale = FloatVector.broadcast(F_SPECIES, ss);
+            int upperBound = F_SPECIES.loopBound(size);
+            for (; j < upperBound; j += F_SPECIES.length()) {
+                var vw = FloatVector.fromMemorySegment(F_SPECIES, w, (long) j * Float.BYTES, weight.order());
+                FloatVector.fromArray(F_SPECIES, in, j).mul(scale).mul(vw).intoArray(values, j);
+            }
+        }
+        for (; j < size; ++j) {
+            values[j] = weight.get(j) * (ss * in[j]);
+        }
+        return this;
+    }
+
+    static float dot(float[] a, int aOffset, float[] b, int bOffset, int size) {
+        float result = 0f;
+        int j = 0;
+        if (USE_VECTOR_API) {
+            FloatVector val = FloatVector.zero(F_SPECIES);
+            int upperBound = F_SPECIES.loopBound(size);
+            for (; j < upperBound; j += F_SPECIES.length()) {
+                var va = FloatVector.fromArray(F_SPECIES, a, aOffset + j);
+                var vb = FloatVector.fromArray(F_SPECIES, b, bOffset + j);
+                val = va.fma(vb, val);
+            }
+            result = val.reduceLanes(VectorOperators.ADD);
+        }
+        // Remaining entries.
+        for (; j < size; ++j) {
+            result += a[aOffset + j] * b[bOffset + j];
+        }
+        return result;
+    }
+
+    /**
+     * Accumulates the dot products of 4 consecutive rows of {@code w} (starting at 0, {@code stride}, 2 * {@code stride}
+     * and 3 * {@code stride}) with {@code x} into {@code acc[accOffset ... accOffset + 4)}.
+     * Every vector of {@code x} is loaded once for the 4 rows.
+     */
+    static void dot4(float[] w, int stride, float[] x, int xOffset, int size, float[] acc, int accOffset) {
+        float sum0 = 0f, sum1 = 0f, sum2 = 0f, sum3 = 0f;
+        int j = 0;
+        if (USE_VECTOR_API) {
+            FloatVector val0 = FloatVector.zero(F_SPECIES);
+            FloatVector val1 = FloatVector.zero(F_SPECIES);
+            FloatVector val2 = FloatVector.zero(F_SPECIES);
+            FloatVector val3 = FloatVector.zero(F_SPECIES);
+            int upperBound = F_SPECIES.loopBound(size);
+            for (; j < upperBound; j += F_SPECIES.length()) {
+                var vx = FloatVector.fromArray(F_SPECIES, x, xOffset + j);
+                val0 = FloatVector.fromArray(F_SPECIES, w, j).fma(vx, val0);
+                val1 = FloatVector.fromArray(F_SPECIES, w, stride + j).fma(vx, val1);
+                val2 = FloatVector.fromArray(F_SPECIES, w, 2 * stride + j).fma(vx, val2);
+                val3 = FloatVector.fromArray(F_SPECIES, w, 3 * stride + j).fma(vx, val3);
+            }
+            sum0 = val0.reduceLanes(VectorOperators.ADD);
+            sum1 = val1.reduceLanes(VectorOperators.ADD);
+            sum2 = val2.reduceLanes(VectorOperators.ADD);
+            sum3 = val3.reduceLanes(VectorOperators.ADD);
+        }
+        // Remaining entries.
+        for (; j < size; ++j) {
+            float xj = x[xOffset + j];
+            sum0 += w[j] * xj;
+            sum1 += w[stride + j] * xj;
+            sum2 += w[2 * stride + j] * xj;
+            sum3 += w[3 * stride + j] * xj;
+        }
+        acc[accOffset] += sum0;
+        acc[accOffset + 1] += sum1;
+        acc[accOffset + 2] += sum2;
+        acc[accOffset + 3] += sum3;
+    }
 }
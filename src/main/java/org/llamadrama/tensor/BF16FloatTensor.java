@@ -6,6 +6,7 @@ import jdk.incubator.vector.VectorOperators;
 import jdk.incubator.vector.VectorSpecies;
 import org.llamadrama.gguf.GGMLType;
 
+import java.lang.foreign.Arena;
 import java.lang.foreign.MemorySegment;
 import java.nio.ByteOrder;
 
@@ -19,6 +20,13 @@ public final class BF16FloatTensor extends FloatTensor {
         this.memorySegment = memorySegment;
     }
 
+    /**
+     * Allocates a zeroed, writable tensor off-heap.
+     */
+    public static BF16FloatTensor allocate(int size) {
+        return new BF16FloatTensor(size, Arena.ofAuto().allocate((long) size * GGMLType.BFLOAT16_BYTES, 64));
+    }
+
     @Override
     public int size() {
         return size;
@@ -26,7 +34,8 @@ public final class BF16FloatTensor extends FloatTensor {
 
     @Override
     public void setFloat(int index, float value) {
-        throw new UnsupportedOperationException("setFloat");
+        assert 0 <= index && index < size;
+        writeShort(memorySegment, index * (long) GGMLType.BFLOAT16_BYTES, floatToBFloat16(value));
     }
 
     @Override
@@ -49,6 +58,25 @@ public final class BF16FloatTensor extends FloatTensor {
         return Float.intBitsToFloat(bfloat16 << 16);
     }
 
+    // Rounds to nearest, ties to even.
+    static short floatToBFloat16(float value) {
+        int bits = Float.floatToRawIntBits(value);
+        if (Float.isNaN(value)) {
+            return (short) ((bits >>> 16) | 0x0040); // quiet NaN
+        }
+        return (short) ((bits + 0x7FFF + ((bits >>> 16) & 1)) >>> 16);
+    }
+
+    @Override
+    public void copyTo(int thisOffset, FloatTensor that, int thatOffset, int size) {
+        if (that instanceof BF16FloatTensor thatTensor) {
+            // same encoding, raw copy
+            MemorySegment.copy(memorySegment, thisOffset * (long) GGMLType.BFLOAT16_BYTES, thatTensor.memorySegment, thatOffset * (long) GGMLType.BFLOAT16_BYTES, size * (long) GGMLType.BFLOAT16_BYTES);
+        } else {
+            super.copyTo(thisOffset, that, thatOffset, size);
+        }
+    }
+
     @Override
     public float dot(int thisOffset, FloatTensor that, int thatOffset, int size) {
         if (FloatTensor.USE_VECTOR_API) {
@@ -65,20 +93,7 @@ public final class BF16FloatTensor extends FloatTensor {
         for (int i = 0; i < upperBound; i += F_SPECIES.length()) {
             FloatVector thatVector = that.getFloatVector(F_SPECIES, thatOffset + i);
             ShortVector bfloat16 = ShortVector.fromMemorySegment(S_SPECIES_HALF, thiz.memorySegment, (thisOffset + i) * (long) GGMLType.BFLOAT16_BYTES, ByteOrder.LITTLE_ENDIAN);
-            // BFloat16 to Float32 Conversion:
-            //
-            // ┌─[15]─┬─[14]───····───[7]─┬─[6]────····────[0]─┐
-            // │ Sign │ Exponent (8 bits) │ Mantissa (7 bits)  │ BFloat16 Layout (16 bits)
-            // └──────┴───────────────────┴────────────────────┘
-            //    │             │                    │
-            //    ▼             ▼                    ▼
-            // ┌─[31]─┬─[30]───···───[23]─┬─[22]────···────[0]─┐
-            // │ Sign │ Exponent (8 bits) │ Mantissa (23 bits) │ Float32 Layout (32 bits)
-            // └──────┴───────────────────┴────────────────────┘
-            FloatVector thizVector = bfloat16
-                    .castShape(I_SPECIES, 0) // (int) vi
-                    .lanewise(VectorOperators.LSHL, 16) // vi <<= 16
-                    .reinterpretAsFloats(); // Float.intBitsToFloat(vi)
+            FloatVector thizVector = bfloat16ToFloat(bfloat16);
             val = thizVector.fma(thatVector, val);
         }
         float result = val.reduceLanes(VectorOperators.ADD);
@@ -89,4 +104,40 @@ public final class BF16FloatTensor extends FloatTensor {
 
         return result;
     }
+
+    private static FloatVector bfloat16ToFloat(ShortVector bfloat16) {
+        // BFloat16 to Float32 Conversion:
+        //
+        // ┌─[15]─┬─[14]───····───[7]─┬─[6]────····────[0]─┐
+        // │ Sign │ Exponent (8 bits) │ Mantissa (7 bits)  │ BFloat16 Layout (16 bits)
+        // └──────┴───────────────────┴────────────────────┘
+        //    │             │                    │
+        //    ▼             ▼                    ▼
+        // ┌─[31]─┬─[30]───···───[23]─┬─[22]────···────[0]─┐
+        // │ Sign │ Exponent (8 bits) │ Mantissa (23 bits) │ Float32 Layout (32 bits)
+        // └──────┴───────────────────┴────────────────────┘
+        return bfloat16
+                .castShape(I_SPECIES, 0) // (int) vi
+                .lanewise(VectorOperators.LSHL, 16) // vi <<= 16
+                .reinterpretAsFloats(); // Float.intBitsToFloat(vi)
+    }
+
+    @Override
+    void saxpyTo(int thisOffset, float[] dst, int dstOffset, int size, float a) {
+        if (!FloatTensor.USE_VECTOR_API) {
+            super.saxpyTo(thisOffset, dst, dstOffset, size, a);
+            return;
+        }
+        FloatVector va = FloatVector.broadcast(F_SPECIES, a);
+        int upperBound = F_SPECIES.loopBound(size);
+        int i = 0;
+        for (; i < upperBound; i += F_SPECIES.length()) {
+            ShortVector bfloat16 = ShortVector.fromMemorySegment(S_SPECIES_HALF, memorySegment, (thisOffset + i) * (long) GGMLType.BFLOAT16_BYTES, ByteOrder.LITTLE_ENDIAN);
+            FloatVector y = FloatVector.fromArray(F_SPECIES, dst, dstOffset + i);
+            bfloat16ToFloat(bfloat16).fma(va, y).intoArray(dst, dstOffset + i);
+        }
+        for (; i < size; ++i) {
+            dst[dstOffset + i] += a * getFloat(thisOffset + i);
+        }
+    }
 }
@@ -6,6 +6,7 @@ import jdk.incubator.vector.VectorOperators;
 import jdk.incubator.vector.VectorSpecies;
 import org.llamadrama.gguf.GGMLType;
 
+import java.lang.foreign.Arena;
 import java.lang.foreign.MemorySegment;
 import java.nio.ByteOrder;
 
@@ -19,6 +20,13 @@ public final class F16FloatTensor extends FloatTensor {
         this.memorySegment = memorySegment;
     }
 
+    /**
+     * Allocates a zeroed, writable tensor off-heap.
+     */
+    public static F16FloatTensor allocate(int size) {
+        return new F16FloatTensor(size, Arena.ofAuto().allocate((long) size * GGMLType.FLOAT16_BYTES, 64));
+    }
+
     @Override
     public int size() {
         return size;
@@ -26,7 +34,8 @@ public final class F16FloatTensor extends FloatTensor {
 
     @Override
     public void setFloat(int index, float value) {
-        throw new UnsupportedOperationException("setFloat");
+        assert 0 <= index && index < size;
+        writeShort(memorySegment, index * (long) GGMLType.FLOAT16_BYTES, Float.floatToFloat16(value));
     }
 
     @Override
@@ -45,6 +54,16 @@ public final class F16FloatTensor extends FloatTensor {
         return Float.float16ToFloat(readShort(memorySegment, index * GGMLType.FLOAT16_BYTES));
     }
 
+    @Override
+    public void copyTo(int thisOffset, FloatTensor that, int thatOffset, int size) {
+        if (that instanceof F16FloatTensor thatTensor) {
+            // same encoding, raw copy
+            MemorySegment.copy(memorySegment, thisOffset * (long) GGMLType.FLOAT16_BYTES, thatTensor.memorySegment, thatOffset * (long) GGMLType.FLOAT16_BYTES, size * (long) GGMLType.FLOAT16_BYTES);
+        } else {
+            super.copyTo(thisOffset, that, thatOffset, size);
+        }
+    }
+
     @Override
     public float dot(int thisOffset, FloatTensor that, int thatOffset, int size) {
         if (FloatTensor.USE_VECTOR_API) {
@@ -62,37 +81,7 @@ public final class F16FloatTensor extends FloatTensor {
             FloatVector thatVector = that.getFloatVector(F_SPECIES, thatOffset + i);
             ShortVector bits16 = ShortVector.fromMemorySegment(S_SPECIES_HALF, thiz.memorySegment, (thisOffset + i) * (long) GGMLType.FLOAT16_BYTES, ByteOrder.LITTLE_ENDIAN);
 
-            var bits32 = bits16.castShape(I_SPECIES, 0).reinterpretAsInts(); // (int) bits16
-            // Does not support infinities nor NaNs, preserves sign, emulate DAZ (denormals-are-zero).
-            // Expects well-formed float16 values only (e.g. model weights).
-            // Fast Float16 to Float32 Conversion:
-            //
-            // ┌─[15]─┬─[14]───···───[10]─┬─[9]────····────[0]─┐
-            // │ Sign │ Exponent (5 bits) │ Mantissa (10 bits) │ Float16 Layout (16 bits)
-            // └──────┴───────────────────┴────────────────────┘
-            //    │             │                    │
-            //    ▼             ▼                    ▼
-            // ┌─[31]─┬─[30]───···───[23]─┬─[22]────···────[0]─┐
-            // │ Sign │ Exponent (8 bits) │ Mantissa (23 bits) │ Float32 Layout (32 bits)
-            // └──────┴───────────────────┴────────────────────┘
-            //
-            // Shifts and adjustments:
-            // - Sign:       float16[15] -> float32[31] (shift 16 bits up)
-            // - Exponent:   float16[10-14] -> float32[23-30] (+ bias adjustment)
-            // - Mantissa:   float16[0-9] -> float32[13-22] (shift 13 bits up)
-            //
-            // exp = bits32 & 0x7C00
-            // zeroExponentMask = exp == 0 ? 0 : ~0
-            var zeroExponentMask = bits32.and(0x7C00).neg().lanewise(VectorOperators.ASHR, 31); // = (-exp) >> 31
-            bits32 = bits32.and(0x8000).lanewise(VectorOperators.LSHL, 16) // sign
-                    .or(
-                            // exponent and mantissa combined
-                            bits32.and(0x7FFF).add(0x1C000).lanewise(VectorOperators.LSHL, 13)
-                                    .and(zeroExponentMask) // -0, +0 and DAZ (denormals-are-zero)
-
-                    );
-
-            FloatVector thizVector = bits32.reinterpretAsFloats(); // Float.intBitsToFloat(vi)
+            FloatVector thizVector = float16ToFloat(bits16);
             val = thizVector.fma(thatVector, val);
         }
         float result = val.reduceLanes(VectorOperators.ADD);
@@ -103,4 +92,57 @@ public final class F16FloatTensor extends FloatTensor {
 
         return result;
     }
+
+    private static FloatVector float16ToFloat(ShortVector bits16) {
+        var bits32 = bits16.castShape(I_SPECIES, 0).reinterpretAsInts(); // (int) bits16
+        // Does not support infinities nor NaNs, preserves sign, emulate DAZ (denormals-are-zero).
+        // Expects well-formed float16 values only (e.g. model weights).
+        // Fast Float16 to Float32 Conversion:
+        //
+        // ┌─[15]─┬─[14]───···───[10]─┬─[9]────····────[0]─┐
+        // │ Sign │ Exponent (5 bits) │ Mantissa (10 bits) │ Float16 Layout (16 bits)
+        // └──────┴───────────────────┴────────────────────┘
+        //    │             │                    │
+        //    ▼             ▼                    ▼
+        // ┌─[31]─┬─[30]───···───[23]─┬─[22]────···────[0]─┐
+        // │ Sign │ Exponent (8 bits) │ Mantissa (23 bits) │ Float32 Layout (32 bits)
+        // └──────┴───────────────────┴────────────────────┘
+        //
+        // Shifts and adjustments:
+        // - Sign:       float16[15] -> float32[31] (shift 16 bits up)
+        // - Exponent:   float16[10-14] -> float32[23-30] (+ bias adjustment)
+        // - Mantissa:   float16[0-9] -> float32[13-22] (shift 13 bits up)
+        //
+        // exp = bits32 & 0x7C00
+        // zeroExponentMask = exp == 0 ? 0 : ~0
+        var zeroExponentMask = bits32.and(0x7C00).neg().lanewise(VectorOperators.ASHR, 31); // = (-exp) >> 31
+        bits32 = bits32.and(0x8000).lanewise(VectorOperators.LSHL, 16) // sign
+                .or(
+                        // exponent and mantissa combined
+                        bits32.and(0x7FFF).add(0x1C000).lanewise(VectorOperators.LSHL, 13)
+                                .and(zeroExponentMask) // -0, +0 and DAZ (denormals-are-zero)
+
+                );
+
+        return bits32.reinterpretAsFloats(); // Float.intBitsToFloat(vi)
+    }
+
+    @Override
+    void saxpyTo(int thisOffset, float[] dst, int dstOffset, int size, float a) {
+        if (!FloatTensor.USE_VECTOR_API) {
+            super.saxpyTo(thisOffset, dst, dstOffset, size, a);
+            return;
+        }
+        FloatVector va = FloatVector.broadcast(F_SPECIES, a);
+        int upperBound = F_SPECIES.loopBound(size);
+        int i = 0;
+        for (; i < upperBound; i += F_SPECIES.length()) {
+            ShortVector bits16 = ShortVector.fromMemorySegment(S_SPECIES_HALF, memorySegment, (thisOffset + i) * (long) GGMLType.FLOAT16_BYTES, ByteOrder.LITTLE_ENDIAN);
+            FloatVector y = FloatVector.fromArray(F_SPECIES, dst, dstOffset + i);
+            float16ToFloat(bits16).fma(va, y).intoArray(dst, dstOffset + i);
+        }
+        for (; i < size; ++i) {
+            dst[dstOffset + i] += a * getFloat(thisOffset + i);
+        }
+    }
 }
@@ -0,0 +1,128 @@
+package org.llamadrama.tensor;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+import org.llamadrama.gguf.GGMLType;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+
+/**
+ * Floats stored in a {@link MemorySegment} (off-heap or memory-mapped), little-endian.
+ */
+public final class F32FloatTensor extends FloatTensor {
+
+    static final ValueLayout.OfFloat JAVA_FLOAT_LE = ValueLayout.JAVA_FLOAT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+    final int size;
+    final MemorySegment memorySegment;
+
+    public F32FloatTensor(int size, MemorySegment memorySegment) {
+        this.size = size;
+        this.memorySegment = memorySegment;
+    }
+
+    /**
+     * Allocates a zeroed, off-heap tensor, aligned to 64 bytes (a cache line).
+     */
+    public static F32FloatTensor allocate(int size) {
+        return new F32FloatTensor(size, Arena.ofAuto().allocate((long) size * Float.BYTES, 64));
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public float getFloat(int index) {
+        assert 0 <= index && index < size;
+        return memorySegment.get(JAVA_FLOAT_LE, index * (long) Float.BYTES);
+    }
+
+    @Override
+    public void setFloat(int index, float value) {
+        assert 0 <= index && index < size;
+        memorySegment.set(JAVA_FLOAT_LE, index * (long) Float.BYTES, value);
+    }
+
+    @Override
+    FloatVector getFloatVector(VectorSpecies<Float> species, int index) {
+        if (!USE_VECTOR_API) {
+            throw new UnsupportedOperationException();
+        }
+        return FloatVector.fromMemorySegment(species, memorySegment, index * (long) Float.BYTES, ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @Override
+    public GGMLType type() {
+        return GGMLType.F32;
+    }
+
+    @Override
+    void dequantize(int thisOffset, float[] dst, int dstOffset, int size) {
+        MemorySegment.copy(memorySegment, JAVA_FLOAT_LE, thisOffset * (long) Float.BYTES, dst, dstOffset, size);
+    }
+
+    @Override
+    void write(int thisOffset, float[] src, int srcOffset, int size) {
+        MemorySegment.copy(src, srcOffset, memorySegment, JAVA_FLOAT_LE, thisOffset * (long) Float.BYTES, size);
+    }
+
+    @Override
+    public void copyTo(int thisOffset, FloatTensor that, int thatOffset, int size) {
+        if (that instanceof ArrayFloatTensor thatArray) {
+            dequantize(thisOffset, thatArray.values, thatOffset, size);
+        } else if (that instanceof F32FloatTensor thatTensor) {
+            MemorySegment.copy(memorySegment, thisOffset * (long) Float.BYTES, thatTensor.memorySegment, thatOffset * (long) Float.BYTES, size * (long) Float.BYTES);
+        } else {
+            super.copyTo(thisOffset, that, thatOffset, size);
+        }
+    }
+
+    @Override
+    public float dot(int thisOffset, FloatTensor that, int thatOffset, int size) {
+        if (FloatTensor.USE_VECTOR_API && that instanceof ArrayFloatTensor thatArray) {
+            return vectorDot(this, thisOffset, thatArray, thatOffset, size);
+        } else {
+            return FloatTensor.scalarDot(this, thisOffset, that, thatOffset, size);
+        }
+    }
+
+    private static float vectorDot(F32FloatTensor thiz, int thisOffset, ArrayFloatTensor that, int thatOffset, int size) {
+        FloatVector val = FloatVector.zero(F_SPECIES);
+        int upperBound = F_SPECIES.loopBound(size);
+        for (int i = 0; i < upperBound; i += F_SPECIES.length()) {
+            FloatVector thatVector = that.getFloatVector(F_SPECIES, thatOffset + i);
+            FloatVector thizVector = thiz.getFloatVector(F_SPECIES, thisOffset + i);
+            val = thizVector.fma(thatVector, val);
+        }
+        float result = val.reduceLanes(VectorOperators.ADD);
+        // Remaining entries.
+        if (upperBound < size) {
+            result += scalarDot(thiz, thisOffset + upperBound, that, thatOffset + upperBound, size - upperBound);
+        }
+        return result;
+    }
+
+    @Override
+    void saxpyTo(int thisOffset, float[] dst, int dstOffset, int size, float a) {
+        if (!FloatTensor.USE_VECTOR_API) {
+            super.saxpyTo(thisOffset, dst, dstOffset, size, a);
+            return;
+        }
+        FloatVector va = FloatVector.broadcast(F_SPECIES, a);
+        int upperBound = F_SPECIES.loopBound(size);
+        int i = 0;
+        for (; i < upperBound; i += F_SPECIES.length()) {
+            FloatVector y = FloatVector.fromArray(F_SPECIES, dst, dstOffset + i);
+            getFloatVector(F_SPECIES, thisOffset + i).fma(va, y).intoArray(dst, dstOffset + i);
+        }
+        for (; i < size; ++i) {
+            dst[dstOffset + i] += a * getFloat(thisOffset + i);
+        }
+    }
+}
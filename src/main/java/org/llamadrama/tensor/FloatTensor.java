@@ -9,6 +9,7 @@ import sun.misc.Unsafe;
 
 import java.lang.foreign.MemorySegment;
 import java.lang.reflect.Field;
+import java.nio.FloatBuffer;
 import java.util.Arrays;
 
 /**
@@ -48,6 +49,16 @@ public abstract class FloatTensor {
         return UNSAFE.getByte(memorySegment.address() + offset);
     }
 
+    static void writeShort(MemorySegment memorySegment, long offset, short value) {
+        // The MemorySegment.set* methods should be used instead.
+        UNSAFE.putShort(memorySegment.address() + offset, value);
+    }
+
+    static void writeByte(MemorySegment memorySegment, long offset, byte value) {
+        // The MemorySegment.set* methods should be used instead.
+        UNSAFE.putByte(memorySegment.address() + offset, value);
+    }
+
     // Preferred vector size for the fast multiplication routines.
     // (Apple Silicon) NEON only supports up-to 128bit vectors.
     static final VectorSpecies<Float> F_SPECIES;
@@ -67,6 +78,34 @@ public abstract class FloatTensor {
         }
     }
 
+    /**
+     * Allocates a zeroed, writable tensor stored in the given format, e.g. for the KV cache.
+     * Supported formats: {@link GGMLType#F32}, {@link GGMLType#F16}, {@link GGMLType#BF16} and {@link GGMLType#Q8_0}.
+     */
+    public static FloatTensor allocate(GGMLType type, int size) {
+        return switch (type) {
+            case F32 -> ArrayFloatTensor.allocate(size);
+            case F16 -> F16FloatTensor.allocate(size);
+            case BF16 -> BF16FloatTensor.allocate(size);
+            case Q8_0 -> Q8_0FloatTensor.allocate(size);
+            default -> throw new UnsupportedOperationException("Cannot allocate a writable " + type + " tensor");
+        };
+    }
+
+    /**
+     * Views {@code segment} as a tensor of {@code size} elements stored in the given format, without copying.
+     * Supported formats: the ones of {@link #allocate(GGMLType, int)}.
+     */
+    public static FloatTensor of(GGMLType type, int size, MemorySegment segment) {
+        return switch (type) {
+            case F32 -> new F32FloatTensor(size, segment);
+            case F16 -> new F16FloatTensor(size, segment);
+            case BF16 -> new BF16FloatTensor(size, segment);
+            case Q8_0 -> new Q8_0FloatTensor(size, segment);
+            default -> throw new UnsupportedOperationException("Cannot view a " + type + " tensor");
+        };
+    }
+
     public abstract int size();
 
     public abstract float getFloat(int index);
@@ -94,21 +133,111 @@ public abstract class FloatTensor {
         return scalarDot(this, thisOffset, that, thatOffset, size);
     }
 
+    /**
+     * Whether {@link #dot} has an integer kernel for {@link Q8_0ArrayFloatTensor} operands, any other tensor
+     * may only be multiplied with float activations.
+     */
+    public boolean supportsQ8_0Activations() {
+        return false;
+    }
+
     public void matmul(FloatTensor that, FloatTensor out, int dim0, int dim1) {
         Parallel.parallelFor(0, dim0, i -> out.setFloat(i, dot(i * dim1, that, 0, dim1)));
     }
 
+    /**
+     * Multiplies this (dim0, dim1) matrix with the first {@code context} vectors of {@code that}.
+     * <p>
+     * A batch of more than one token goes through {@link #gemm}, which decodes every weight block only once
+     * for the whole batch instead of once per token.
+     */
     public void matmul(int context, FloatTensor[] that, FloatTensor[] out, int dim0, int dim1) {
         if (that.length != out.length) {
             throw new IllegalArgumentException(String.format("that.len=%d, out.len=%d", that.length, out.length));
         }
-        Parallel.parallelForLong(0, dim0 * context, ti -> {
+        if (context > 1 && Arrays.stream(that, 0, context).allMatch(t -> t instanceof ArrayFloatTensor)) {
+            gemm(context, that, out, dim0, dim1);
+            return;
+        }
+        Parallel.parallelForLong(0, (long) dim0 * context, ti -> {
             int idxArr = (int) (ti / dim0);
             int i = (int) (ti % dim0);
             out[idxArr].setFloat(i, dot(i * dim1, that[idxArr], 0, dim1));
         });
     }
 
+    // Rows decoded together and applied to every token of the batch, see ArrayFloatTensor.dot4.
+    static final int GEMM_ROW_TILE = 4;
+    // Columns decoded at once, a multiple of the largest block size (QK_K) so that decoding stays block aligned.
+    static final int GEMM_COLUMN_BLOCK = 512;
+
+    private static final ThreadLocal<float[]> GEMM_SCRATCH = ThreadLocal.withInitial(() -> new float[GEMM_ROW_TILE * GEMM_COLUMN_BLOCK]);
+
+    /**
+     * Weight-stationary matrix-matrix multiplication.
+     * <p>
+     * Every task owns a tile of {@link #GEMM_ROW_TILE} rows, it decodes the rows {@link #GEMM_COLUMN_BLOCK} columns
+     * at a time into a small scratch buffer (fits in L1) and accumulates the partial dot products of all the
+     * tokens in the batch before moving to the next column block.
+     */
+    void gemm(int context, FloatTensor[] that, FloatTensor[] out, int dim0, int dim1) {
+        int numberOfTiles = (dim0 + GEMM_ROW_TILE - 1) / GEMM_ROW_TILE;
+        Parallel.parallelFor(0, numberOfTiles, tile -> {
+            float[] rows = GEMM_SCRATCH.get();
+            float[] acc = new float[GEMM_ROW_TILE * context];
+            int row0 = tile * GEMM_ROW_TILE;
+            int numberOfRows = Math.min(GEMM_ROW_TILE, dim0 - row0);
+            for (int k0 = 0; k0 < dim1; k0 += GEMM_COLUMN_BLOCK) {
+                int k = Math.min(GEMM_COLUMN_BLOCK, dim1 - k0);
+                for (int r = 0; r < numberOfRows; ++r) {
+                    dequantize((row0 + r) * dim1 + k0, rows, r * GEMM_COLUMN_BLOCK, k);
+                }
+                for (int t = 0; t < context; ++t) {
+                    float[] x = ((ArrayFloatTensor) that[t]).values;
+                    if (numberOfRows == GEMM_ROW_TILE) {
+                        ArrayFloatTensor.dot4(rows, GEMM_COLUMN_BLOCK, x, k0, k, acc, t * GEMM_ROW_TILE);
+                    } else {
+                        for (int r = 0; r < numberOfRows; ++r) {
+                            acc[t * GEMM_ROW_TILE + r] += ArrayFloatTensor.dot(rows, r * GEMM_COLUMN_BLOCK, x, k0, k);
+                        }
+                    }
+                }
+            }
+            for (int t = 0; t < context; ++t) {
+                for (int r = 0; r < numberOfRows; ++r) {
+                    out[t].setFloat(row0 + r, acc[t * GEMM_ROW_TILE + r]);
+                }
+            }
+        });
+    }
+
+    /**
+     * Decodes {@code size} elements, starting at {@code thisOffset}, into {@code dst}.
+     * Whole blocks are decoded with {@link #dequantizeBlock}, unaligned ends element by element.
+     */
+    void dequantize(int thisOffset, float[] dst, int dstOffset, int size) {
+        int blockSize = type().getBlockSize();
+        int j = 0;
+        if (blockSize > 1) {
+            for (; j < size && (thisOffset + j) % blockSize != 0; ++j) {
+                dst[dstOffset + j] = getFloat(thisOffset + j);
+            }
+            for (; j + blockSize <= size; j += blockSize) {
+                dequantizeBlock((thisOffset + j) / blockSize, dst, dstOffset + j);
+            }
+        }
+        for (; j < size; ++j) {
+            dst[dstOffset + j] = getFloat(thisOffset + j);
+        }
+    }
+
+    void dequantizeBlock(int blockIndex, float[] dst, int dstOffset) {
+        int blockSize = type().getBlockSize();
+        for (int i = 0; i < blockSize; ++i) {
+            dst[dstOffset + i] = getFloat(blockIndex * blockSize + i);
+        }
+    }
+
     @FunctionalInterface
     public interface AggregateFunction {
         float apply(float acc, float value);
@@ -134,6 +263,15 @@ public abstract class FloatTensor {
         that.mapWithIndexInPlace(thatOffset, size, (value, index) -> this.getFloat(index - thatOffset + thisOffset));
     }
 
+    /**
+     * Encodes {@code src[srcOffset ... srcOffset + size)} into {@code this[thisOffset ... thisOffset + size)}.
+     */
+    void write(int thisOffset, float[] src, int srcOffset, int size) {
+        for (int i = 0; i < size; ++i) {
+            setFloat(thisOffset + i, src[srcOffset + i]);
+        }
+    }
+
     int argmax(int thisOffset, int size) {
         assert size > 0;
         int maxIndex = thisOffset;
@@ -207,6 +345,25 @@ public abstract class FloatTensor {
         return mapInPlace(thisOffset, size, unused -> value);
     }
 
+    public FloatTensor scaleInPlace(int thisOffset, int size, float value) {
+        return mapInPlace(thisOffset, size, f -> f * value);
+    }
+
+    /**
+     * Rotates the consecutive pairs {@code (x[2i], x[2i + 1])} of {@code [thisOffset, thisOffset + size)}, as complex
+     * numbers (RoPE): {@code x[j] = x[j] * cos[j] + x[j ^ 1] * sin[j]}, where {@code cos} repeats the cosine of the
+     * angle of every pair twice and {@code sin} holds its sine negated for the even element of the pair.
+     */
+    public FloatTensor rotatePairsInPlace(int thisOffset, int size, float[] cos, float[] sin) {
+        for (int j = 0; j < size; j += 2) {
+            float v0 = getFloat(thisOffset + j);
+            float v1 = getFloat(thisOffset + j + 1);
+            setFloat(thisOffset + j, v0 * cos[j] + v1 * sin[j]);
+            setFloat(thisOffset + j + 1, v1 * cos[j + 1] + v0 * sin[j + 1]);
+        }
+        return this;
+    }
+
     public FloatTensor softmaxInPlace(int thisOffset, int size) {
         // find max value (for numerical stability)
         float maxVal = max(thisOffset, size);
@@ -217,6 +374,29 @@ public abstract class FloatTensor {
         return divideInPlace(thisOffset, size, sum);
     }
 
+    /**
+     * Normalizes {@code x[0 ... size)} by its root mean square and scales it by {@code weight}, into this tensor.
+     */
+    public FloatTensor rmsnorm(FloatTensor x, FloatBuffer weight, int size, float rmsNormEps) {
+        // calculate sum of squares
+        float ss = x.reduce(0, size, 0f, (acc, xi) -> acc + xi * xi);
+        ss /= size;
+        ss += rmsNormEps;
+        ss = (float) (1.0 / Math.sqrt(ss));
+        // normalize and scale
+        final float finalss = ss; // for the lambda
+        return mapWithIndexInPlace(0, size, (value, index) -> weight.get(index) * (finalss * x.getFloat(index)));
+    }
+
+    /**
+     * {@code dst[dstOffset ... dstOffset + size) += a * this[thisOffset ... thisOffset + size)}, decoding this tensor on the fly.
+     */
+    void saxpyTo(int thisOffset, float[] dst, int dstOffset, int size, float a) {
+        for (int i = 0; i < size; ++i) {
+            dst[dstOffset + i] += a * getFloat(thisOffset + i);
+        }
+    }
+
     public FloatTensor saxpyInPlace(int thisOffset, FloatTensor that, int thatOffset, int size, float a) {
         // this[thatOffset ... thatOffset + size) = a * that[thatOffset ... thatOffset + size) + this[thisOffset ... thisOffset + size)
         for (int i = 0; i < size; ++i) {
@@ -0,0 +1,258 @@
+package org.llamadrama.tensor;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+import org.llamadrama.gguf.GGMLType;
+import org.llamadrama.util.Parallel;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteOrder;
+
+/**
+ * (dim0, dim1) matrix in the {@link GGMLType#Q4_0} format, repacked at load time so that groups of 4
+ * ({@link GGMLType#Q4_0_4_4}) or 8 ({@link GGMLType#Q4_0_8_8}) consecutive rows are interleaved block by block:
+ * <pre>
+ * struct block_q4_0xR {
+ *     half d[R];         // scales of the R rows
+ *     uint8 qs[R * 16];  // quants of the R rows, 16 bytes per row, same nibble order as Q4_0
+ * };
+ * </pre>
+ * The blocks of a group are stored in column order, the matmul kernels compute R output rows per pass over
+ * the activation vector, reading the weights of the group sequentially.
+ */
+public final class InterleavedQ4_0FloatTensor extends FloatTensor {
+
+    private static final int BLOCK_SIZE = GGMLType.Q4_0.getBlockSize();
+    private static final int QUANTS_BYTES = BLOCK_SIZE / 2;
+
+    final int dim0;
+    final int dim1;
+    final int rowsPerGroup;
+    final MemorySegment memorySegment;
+
+    InterleavedQ4_0FloatTensor(int dim0, int dim1, int rowsPerGroup, MemorySegment memorySegment) {
+        if (rowsPerGroup != 4 && rowsPerGroup != 8) {
+            throw new IllegalArgumentException("rowsPerGroup " + rowsPerGroup);
+        }
+        if (dim0 % rowsPerGroup != 0 || dim1 % BLOCK_SIZE != 0) {
+            throw new IllegalArgumentException(String.format("cannot interleave (%d, %d) in groups of %d rows", dim0, dim1, rowsPerGroup));
+        }
+        this.dim0 = dim0;
+        this.dim1 = dim1;
+        this.rowsPerGroup = rowsPerGroup;
+        this.memorySegment = memorySegment;
+    }
+
+    /**
+     * Whether a (dim0, dim1) matrix can be repacked in groups of {@code rowsPerGroup} rows.
+     */
+    public static boolean canRepack(int dim0, int dim1, int rowsPerGroup) {
+        return (rowsPerGroup == 4 || rowsPerGroup == 8) && dim0 % rowsPerGroup == 0 && dim1 % BLOCK_SIZE == 0;
+    }
+
+    /**
+     * Copies the (dim0, dim1) Q4_0 matrix {@code tensor} into a new off-heap segment, in the interleaved layout.
+     */
+    public static InterleavedQ4_0FloatTensor repack(Q4_0FloatTensor tensor, int dim0, int dim1, int rowsPerGroup) {
+        assert tensor.size() == dim0 * dim1;
+        int blocksPerRow = dim1 / BLOCK_SIZE;
+        int typeSize = GGMLType.Q4_0.getTypeSize();
+        MemorySegment repacked = Arena.ofAuto().allocate((long) dim0 * blocksPerRow * typeSize, 64);
+        InterleavedQ4_0FloatTensor result = new InterleavedQ4_0FloatTensor(dim0, dim1, rowsPerGroup, repacked);
+        Parallel.parallelFor(0, dim0 / rowsPerGroup, group -> {
+            for (int r = 0; r < rowsPerGroup; ++r) {
+                int row = group * rowsPerGroup + r;
+                for (int b = 0; b < blocksPerRow; ++b) {
+                    long src = ((long) row * blocksPerRow + b) * typeSize;
+                    long dst = result.blockOffset(group, b);
+                    MemorySegment.copy(tensor.memorySegment, src, repacked, dst + (long) r * GGMLType.FLOAT16_BYTES, GGMLType.FLOAT16_BYTES);
+                    MemorySegment.copy(tensor.memorySegment, src + GGMLType.FLOAT16_BYTES, repacked, dst + result.quantsOffset(r), QUANTS_BYTES);
+                }
+            }
+        });
+        return result;
+    }
+
+    // Offset of the interleaved block holding the column block b of the rows of the given group.
+    private long blockOffset(int group, int b) {
+        return ((long) group * (dim1 / BLOCK_SIZE) + b) * rowsPerGroup * GGMLType.Q4_0.getTypeSize();
+    }
+
+    // Offset of the quants of row r within an interleaved block.
+    private long quantsOffset(int r) {
+        return (long) rowsPerGroup * GGMLType.FLOAT16_BYTES + (long) r * QUANTS_BYTES;
+    }
+
+    @Override
+    public int size() {
+        return dim0 * dim1;
+    }
+
+    @Override
+    public void setFloat(int index, float value) {
+        throw new UnsupportedOperationException("setFloat");
+    }
+
+    @Override
+    FloatVector getFloatVector(VectorSpecies<Float> species, int index) {
+        throw new UnsupportedOperationException("getFloatVector");
+    }
+
+    @Override
+    public GGMLType type() {
+        return rowsPerGroup == 4 ? GGMLType.Q4_0_4_4 : GGMLType.Q4_0_8_8;
+    }
+
+    @Override
+    public float getFloat(int index) {
+        assert 0 <= index && index < size();
+        int row = index / dim1;
+        int column = index % dim1;
+        int r = row % rowsPerGroup;
+        long blockOffset = blockOffset(row / rowsPerGroup, column / BLOCK_SIZE);
+        float scale = Float.float16ToFloat(readShort(memorySegment, blockOffset + (long) r * GGMLType.FLOAT16_BYTES));
+        int modIndex = column % BLOCK_SIZE;
+        byte quants = readByte(memorySegment, blockOffset + quantsOffset(r) + modIndex % QUANTS_BYTES);
+        int quant = modIndex < QUANTS_BYTES ? (quants & 0x0F) : ((quants >>> 4) & 0x0F);
+        return (quant - 8) * scale;
+    }
+
+    @Override
+    void dequantizeBlock(int blockIndex, float[] dst, int dstOffset) {
+        int blocksPerRow = dim1 / BLOCK_SIZE;
+        int row = blockIndex / blocksPerRow;
+        int r = row % rowsPerGroup;
+        long blockOffset = blockOffset(row / rowsPerGroup, blockIndex % blocksPerRow);
+        float scale = Float.float16ToFloat(readShort(memorySegment, blockOffset + (long) r * GGMLType.FLOAT16_BYTES));
+        long qs = blockOffset + quantsOffset(r);
+        for (int i = 0; i < QUANTS_BYTES; ++i) {
+            int quants = readByte(memorySegment, qs + i) & 0xFF;
+            dst[dstOffset + i] = ((quants & 0x0F) - 8) * scale;
+            dst[dstOffset + i + QUANTS_BYTES] = ((quants >>> 4) - 8) * scale;
+        }
+    }
+
+    @Override
+    public void matmul(FloatTensor that, FloatTensor out, int dim0, int dim1) {
+        if (!FloatTensor.USE_VECTOR_API || !(that instanceof ArrayFloatTensor) || dim0 != this.dim0 || dim1 != this.dim1) {
+            super.matmul(that, out, dim0, dim1);
+            return;
+        }
+        Parallel.parallelFor(0, dim0 / rowsPerGroup, group -> vectorDotGroup(group, (ArrayFloatTensor) that, out));
+    }
+
+    @Override
+    public void matmul(int context, FloatTensor[] that, FloatTensor[] out, int dim0, int dim1) {
+        if (context > 1 || !FloatTensor.USE_VECTOR_API || !(that[0] instanceof ArrayFloatTensor) || dim0 != this.dim0 || dim1 != this.dim1) {
+            // Batches go through the GEMM, which dequantizes whole blocks.
+            super.matmul(context, that, out, dim0, dim1);
+            return;
+        }
+        matmul(that[0], out[0], dim0, dim1);
+    }
+
+    private void vectorDotGroup(int group, ArrayFloatTensor that, FloatTensor out) {
+        if (rowsPerGroup == 4) {
+            vectorDotGroup4(this, group, that, out);
+        } else {
+            vectorDotGroup8(this, group, that, out);
+        }
+    }
+
+    private static void vectorDotGroup4(InterleavedQ4_0FloatTensor thiz, int group, ArrayFloatTensor that, FloatTensor out) {
+        MemorySegment segment = thiz.memorySegment;
+        FloatVector acc0 = FloatVector.zero(F_SPECIES);
+        FloatVector acc1 = FloatVector.zero(F_SPECIES);
+        FloatVector acc2 = FloatVector.zero(F_SPECIES);
+        FloatVector acc3 = FloatVector.zero(F_SPECIES);
+        long blockOffset = thiz.blockOffset(group, 0);
+        long qs = blockOffset + 4 * GGMLType.FLOAT16_BYTES;
+        for (int j = 0; j < thiz.dim1; j += BLOCK_SIZE, blockOffset += 4 * GGMLType.Q4_0.getTypeSize(), qs += 4 * GGMLType.Q4_0.getTypeSize()) {
+            acc0 = blockDot(segment, qs + 0 * QUANTS_BYTES, that, j).fma(scale(segment, blockOffset, 0), acc0);
+            acc1 = blockDot(segment, qs + 1 * QUANTS_BYTES, that, j).fma(scale(segment, blockOffset, 1), acc1);
+            acc2 = blockDot(segment, qs + 2 * QUANTS_BYTES, that, j).fma(scale(segment, blockOffset, 2), acc2);
+            acc3 = blockDot(segment, qs + 3 * QUANTS_BYTES, that, j).fma(scale(segment, blockOffset, 3), acc3);
+        }
+        int row = group * 4;
+        out.setFloat(row + 0, acc0.reduceLanes(VectorOperators.ADD));
+        out.setFloat(row + 1, acc1.reduceLanes(VectorOperators.ADD));
+        out.setFloat(row + 2, acc2.reduceLanes(VectorOperators.ADD));
+        out.setFloat(row + 3, acc3.reduceLanes(VectorOperators.ADD));
+    }
+
+    private static void vectorDotGroup8(InterleavedQ4_0FloatTensor thiz, int group, ArrayFloatTensor that, FloatTensor out) {
+        MemorySegment segment = thiz.memorySegment;
+        FloatVector acc0 = FloatVector.zero(F_SPECIES);
+        FloatVector acc1 = FloatVector.zero(F_SPECIES);
+        FloatVector acc2 = FloatVector.zero(F_SPECIES);
+        FloatVector acc3 = FloatVector.zero(F_SPECIES);
+        FloatVector acc4 = FloatVector.zero(F_SPECIES);
+        FloatVector acc5 = FloatVector.zero(F_SPECIES);
+        FloatVector acc6 = FloatVector.zero(F_SPECIES);
+        FloatVector acc7 = FloatVector.zero(F_SPECIES);
+        long blockOffset = thiz.blockOffset(group, 0);
+        long qs = blockOffset + 8 * GGMLType.FLOAT16_BYTES;
+        for (int j = 0; j < thiz.dim1; j += BLOCK_SIZE, blockOffset += 8 * GGMLType.Q4_0.getTypeSize(), qs += 8 * GGMLType.Q4_0.getTypeSize()) {
+            acc0 = blockDot(segment, qs + 0 * QUANTS_BYTES, that, j).fma(scale(segment, blockOffset, 0), acc0);
+            acc1 = blockDot(segment, qs + 1 * QUANTS_BYTES, that, j).fma(scale(segment, blockOffset, 1), acc1);
+            acc2 = blockDot(segment, qs + 2 * QUANTS_BYTES, that, j).fma(scale(segment, blockOffset, 2), acc2);
+            acc3 = blockDot(segment, qs + 3 * QUANTS_BYTES, that, j).fma(scale(segment, blockOffset, 3), acc3);
+            acc4 = blockDot(segment, qs + 4 * QUANTS_BYTES, that, j).fma(scale(segment, blockOffset, 4), acc4);
+            acc5 = blockDot(segment, qs + 5 * QUANTS_BYTES, that, j).fma(scale(segment, blockOffset, 5), acc5);
+            acc6 = blockDot(segment, qs + 6 * QUANTS_BYTES, that, j).fma(scale(segment, blockOffset, 6), acc6);
+            acc7 = blockDot(segment, qs + 7 * QUANTS_BYTES, that, j).fma(scale(segment, blockOffset, 7), acc7);
+        }
+        int row = group * 8;
+        out.setFloat(row + 0, acc0.reduceLanes(VectorOperators.ADD));
+        out.setFloat(row + 1, acc1.reduceLanes(VectorOperators.ADD));
+        out.setFloat(row + 2, acc2.reduceLanes(VectorOperators.ADD));
+        out.setFloat(row + 3, acc3.reduceLanes(VectorOperators.ADD));
+        out.setFloat(row + 4, acc4.reduceLanes(VectorOperators.ADD));
+        out.setFloat(row + 5, acc5.reduceLanes(VectorOperators.ADD));
+        out.setFloat(row + 6, acc6.reduceLanes(VectorOperators.ADD));
+        out.setFloat(row + 7, acc7.reduceLanes(VectorOperators.ADD));
+    }
+
+    private static FloatVector scale(MemorySegment segment, long blockOffset, int r) {
+        return FloatVector.broadcast(F_SPECIES, Float.float16ToFloat(readShort(segment, blockOffset + (long) r * GGMLType.FLOAT16_BYTES)));
+    }
+
+    /**
+     * Unscaled dot product of one row block (16 bytes of quants) with the 32 activations starting at {@code xOffset}.
+     * The activation loads are the same for every row of a group, they stay in L1 (or in registers once inlined).
+     */
+    private static FloatVector blockDot(MemorySegment segment, long qsOffset, ArrayFloatTensor that, int xOffset) {
+        var wBytes = ByteVector.fromMemorySegment(ByteVector.SPECIES_128, segment, qsOffset, ByteOrder.LITTLE_ENDIAN);
+        var loBytes = wBytes.and((byte) 0xF).sub((byte) 8);
+        var hiBytes = wBytes.lanewise(VectorOperators.LSHR, 4).sub((byte) 8);
+        return switch (F_SPECIES.vectorBitSize()) {
+            case 512 -> {
+                var sum0 = that.getFloatVector(F_SPECIES, xOffset + 0 * F_SPECIES.length()).mul(loBytes.castShape(F_SPECIES, 0));
+                var sum2 = that.getFloatVector(F_SPECIES, xOffset + 1 * F_SPECIES.length()).mul(hiBytes.castShape(F_SPECIES, 0));
+                yield sum0.add(sum2);
+            }
+            case 256 -> {
+                var sum0 = that.getFloatVector(F_SPECIES, xOffset + 0 * F_SPECIES.length()).mul(loBytes.castShape(F_SPECIES, 0));
+                var sum1 = that.getFloatVector(F_SPECIES, xOffset + 1 * F_SPECIES.length()).mul(loBytes.castShape(F_SPECIES, 1));
+                var sum2 = that.getFloatVector(F_SPECIES, xOffset + 2 * F_SPECIES.length()).mul(hiBytes.castShape(F_SPECIES, 0));
+                var sum3 = that.getFloatVector(F_SPECIES, xOffset + 3 * F_SPECIES.length()).mul(hiBytes.castShape(F_SPECIES, 1));
+                yield sum0.add(sum1).add(sum2).add(sum3);
+            }
+            case 128 -> {
+                var sum0 = that.getFloatVector(F_SPECIES, xOffset + 0 * F_SPECIES.length()).mul(loBytes.castShape(F_SPECIES, 0));
+                var sum1 = that.getFloatVector(F_SPECIES, xOffset + 1 * F_SPECIES.length()).mul(loBytes.castShape(F_SPECIES, 1));
+                var sum2 = that.getFloatVector(F_SPECIES, xOffset + 2 * F_SPECIES.length()).mul(loBytes.castShape(F_SPECIES, 2));
+                var sum3 = that.getFloatVector(F_SPECIES, xOffset + 3 * F_SPECIES.length()).mul(loBytes.castShape(F_SPECIES, 3));
+                var sum4 = that.getFloatVector(F_SPECIES, xOffset + 4 * F_SPECIES.length()).mul(hiBytes.castShape(F_SPECIES, 0));
+                var sum5 = that.getFloatVector(F_SPECIES, xOffset + 5 * F_SPECIES.length()).mul(hiBytes.castShape(F_SPECIES, 1));
+                var sum6 = that.getFloatVector(F_SPECIES, xOffset + 6 * F_SPECIES.length()).mul(hiBytes.castShape(F_SPECIES, 2));
+                var sum7 = that.getFloatVector(F_SPECIES, xOffset + 7 * F_SPECIES.length()).mul(hiBytes.castShape(F_SPECIES, 3));
+                yield sum0.add(sum1).add(sum2).add(sum3).add(sum4).add(sum5).add(sum6).add(sum7);
+            }
+            default -> throw new UnsupportedOperationException(F_SPECIES.toString());
+        };
+    }
+}
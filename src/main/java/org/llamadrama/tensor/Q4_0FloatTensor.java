@@ -2,6 +2,7 @@ package org.llamadrama.tensor;
 
 import jdk.incubator.vector.ByteVector;
 import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
 import jdk.incubator.vector.VectorOperators;
 import jdk.incubator.vector.VectorSpecies;
 import org.llamadrama.gguf.GGMLType;
@@ -63,15 +64,78 @@ public final class Q4_0FloatTensor extends FloatTensor {
         return quant * scale;
     }
 
+    @Override
+    void dequantizeBlock(int blockIndex, float[] dst, int dstOffset) {
+        long blockOffset = (long) blockIndex * GGMLType.Q4_0.getTypeSize();
+        float scale = Float.float16ToFloat(readShort(memorySegment, blockOffset));
+        for (int i = 0; i < GGMLType.Q4_0.getBlockSize() / 2; ++i) {
+            int quants = readByte(memorySegment, blockOffset + GGMLType.FLOAT16_BYTES + i) & 0xFF;
+            dst[dstOffset + i] = ((quants & 0x0F) - 8) * scale;
+            dst[dstOffset + i + GGMLType.Q4_0.getBlockSize() / 2] = ((quants >>> 4) - 8) * scale;
+        }
+    }
+
+    @Override
+    public boolean supportsQ8_0Activations() {
+        return true;
+    }
+
     @Override
     public float dot(int thisOffset, FloatTensor that, int thatOffset, int size) {
-        if (FloatTensor.USE_VECTOR_API) {
+        if (FloatTensor.USE_VECTOR_API && that instanceof Q8_0ArrayFloatTensor q8) {
+            return vectorDotQ8_0(this, thisOffset, q8, thatOffset, size);
+        } else if (FloatTensor.USE_VECTOR_API) {
             return vectorDot(this, thisOffset, (ArrayFloatTensor) that, thatOffset, size);
         } else {
             return FloatTensor.scalarDot(this, thisOffset, that, thatOffset, size);
         }
     }
 
+    /**
+     * Integer dot product against a quantized activation, block by block: {@code sum(w * x)} is accumulated
+     * as ints and scaled once by both block scales.
+     */
+    private static float vectorDotQ8_0(Q4_0FloatTensor thiz, int thisOffset, Q8_0ArrayFloatTensor that, int thatOffset, int size) {
+        int blockSize = GGMLType.Q4_0.getBlockSize();
+        if ((thisOffset - thatOffset) % blockSize != 0) {
+            // Blocks of both operands must line up.
+            return FloatTensor.scalarDot(thiz, thisOffset, that, thatOffset, size);
+        }
+        float result = 0f;
+        int j = 0;
+
+        // Align thisOffset + j to type().getBlockSize().
+        int alignmentBound = Math.min(size, -thisOffset & (blockSize - 1));
+        if (alignmentBound > 0) {
+            result += FloatTensor.scalarDot(thiz, thisOffset, that, thatOffset, alignmentBound);
+            j += alignmentBound;
+        }
+        assert (thisOffset + j) % blockSize == 0 && (thatOffset + j) % blockSize == 0;
+
+        FloatVector val = FloatVector.zero(F_SPECIES);
+        long blockOffset = (long) (thisOffset + j) / blockSize * GGMLType.Q4_0.getTypeSize();
+        int upperBound = j + (size - j) / blockSize * blockSize;
+        for (; j < upperBound; j += blockSize, blockOffset += GGMLType.Q4_0.getTypeSize()) {
+            float wScale = Float.float16ToFloat(readShort(thiz.memorySegment, blockOffset));
+            var wBytes = ByteVector.fromMemorySegment(ByteVector.SPECIES_128, thiz.memorySegment, blockOffset + GGMLType.FLOAT16_BYTES, ByteOrder.LITTLE_ENDIAN);
+            var w0 = wBytes.and((byte) 0xF).sub((byte) 8);
+            var w1 = wBytes.lanewise(VectorOperators.LSHR, 4).sub((byte) 8);
+            var x0 = ByteVector.fromArray(ByteVector.SPECIES_128, that.quants, thatOffset + j);
+            var x1 = ByteVector.fromArray(ByteVector.SPECIES_128, that.quants, thatOffset + j + 16);
+            IntVector sumi = Q8_0ArrayFloatTensor.dot16(w0, x0, IntVector.zero(I_SPECIES));
+            sumi = Q8_0ArrayFloatTensor.dot16(w1, x1, sumi);
+            val = Q8_0ArrayFloatTensor.fmaBlock(sumi, wScale * that.scales[(thatOffset + j) / blockSize], val);
+        }
+        result += val.reduceLanes(VectorOperators.ADD);
+
+        // Remaining entries.
+        if (j < size) {
+            result += FloatTensor.scalarDot(thiz, thisOffset + j, that, thatOffset + j, size - j);
+        }
+
+        return result;
+    }
+
     private static float vectorDot(Q4_0FloatTensor thiz, int thisOffset, ArrayFloatTensor that, int thatOffset, int size) {
         float result = 0f;
         int j = 0;
@@ -87,7 +151,7 @@ public final class Q4_0FloatTensor extends FloatTensor {
 
         FloatVector val = FloatVector.zero(F_SPECIES);
         int blockOffset = (thisOffset + j) / GGMLType.Q4_0.getBlockSize() * GGMLType.Q4_0.getTypeSize();
-        int upperBound = size / GGMLType.Q4_0.getBlockSize() * GGMLType.Q4_0.getBlockSize();
+        int upperBound = j + (size - j) / GGMLType.Q4_0.getBlockSize() * GGMLType.Q4_0.getBlockSize();
         for (; j < upperBound; j += GGMLType.Q4_0.getBlockSize(), blockOffset += GGMLType.Q4_0.getTypeSize()) {
             float wScaleValue = Float.float16ToFloat(readShort(thiz.memorySegment, blockOffset));
             var wScale = FloatVector.broadcast(F_SPECIES, wScaleValue);
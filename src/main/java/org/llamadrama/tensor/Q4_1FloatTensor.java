@@ -0,0 +1,156 @@
+package org.llamadrama.tensor;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+import org.llamadrama.gguf.GGMLType;
+
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteOrder;
+
+/**
+ * {@link FloatTensor} quantized in the {@link GGMLType#Q4_1} format.
+ * <p>
+ * Same nibble layout as {@link Q4_0FloatTensor}, but unsigned quants with a per-block min:
+ * {@code x = d * q + m}.
+ */
+public final class Q4_1FloatTensor extends FloatTensor {
+
+    final int size;
+    final MemorySegment memorySegment;
+
+    public Q4_1FloatTensor(int size, MemorySegment memorySegment) {
+        this.size = size;
+        this.memorySegment = memorySegment;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void setFloat(int index, float value) {
+        throw new UnsupportedOperationException("setFloat");
+    }
+
+    @Override
+    FloatVector getFloatVector(VectorSpecies<Float> species, int index) {
+        throw new UnsupportedOperationException("getFloatVector");
+    }
+
+    @Override
+    public GGMLType type() {
+        return GGMLType.Q4_1;
+    }
+
+    @Override
+    public float getFloat(int index) {
+        assert 0 <= index && index < size;
+        int blockIndex = index / GGMLType.Q4_1.getBlockSize();
+        long blockOffset = (long) blockIndex * GGMLType.Q4_1.getTypeSize();
+        float scale = Float.float16ToFloat(readShort(memorySegment, blockOffset));
+        float min = Float.float16ToFloat(readShort(memorySegment, blockOffset + GGMLType.FLOAT16_BYTES));
+        int quant;
+        int modIndex = index % GGMLType.Q4_1.getBlockSize();
+        if (modIndex < GGMLType.Q4_1.getBlockSize() / 2) {
+            quant = readByte(memorySegment, blockOffset + 2 * GGMLType.FLOAT16_BYTES + modIndex) & 0x0F;
+        } else {
+            quant = (readByte(memorySegment, blockOffset + 2 * GGMLType.FLOAT16_BYTES + modIndex - GGMLType.Q4_1.getBlockSize() / 2) >>> 4) & 0x0F;
+        }
+        return quant * scale + min;
+    }
+
+    @Override
+    void dequantizeBlock(int blockIndex, float[] dst, int dstOffset) {
+        long blockOffset = (long) blockIndex * GGMLType.Q4_1.getTypeSize();
+        float scale = Float.float16ToFloat(readShort(memorySegment, blockOffset));
+        float min = Float.float16ToFloat(readShort(memorySegment, blockOffset + GGMLType.FLOAT16_BYTES));
+        for (int i = 0; i < GGMLType.Q4_1.getBlockSize() / 2; ++i) {
+            int quants = readByte(memorySegment, blockOffset + 2 * GGMLType.FLOAT16_BYTES + i) & 0xFF;
+            dst[dstOffset + i] = (quants & 0x0F) * scale + min;
+            dst[dstOffset + i + GGMLType.Q4_1.getBlockSize() / 2] = (quants >>> 4) * scale + min;
+        }
+    }
+
+    @Override
+    public float dot(int thisOffset, FloatTensor that, int thatOffset, int size) {
+        if (FloatTensor.USE_VECTOR_API) {
+            return vectorDot(this, thisOffset, (ArrayFloatTensor) that, thatOffset, size);
+        } else {
+            return FloatTensor.scalarDot(this, thisOffset, that, thatOffset, size);
+        }
+    }
+
+    private static float vectorDot(Q4_1FloatTensor thiz, int thisOffset, ArrayFloatTensor that, int thatOffset, int size) {
+        float result = 0f;
+        int j = 0;
+
+        // Align thisOffset + j to type().getBlockSize().
+        assert Integer.bitCount(GGMLType.Q4_1.getBlockSize()) == 1 : "power of 2";
+        int alignmentBound = Math.min(size, -thisOffset & (GGMLType.Q4_1.getBlockSize() - 1));
+        if (alignmentBound > 0) {
+            result += FloatTensor.scalarDot(thiz, thisOffset, that, thatOffset, alignmentBound);
+            j += alignmentBound;
+        }
+        assert (thisOffset + j) % GGMLType.Q4_1.getBlockSize() == 0;
+
+        FloatVector val = FloatVector.zero(F_SPECIES);
+        long blockOffset = (long) (thisOffset + j) / GGMLType.Q4_1.getBlockSize() * GGMLType.Q4_1.getTypeSize();
+        int upperBound = j + (size - j) / GGMLType.Q4_1.getBlockSize() * GGMLType.Q4_1.getBlockSize();
+        for (; j < upperBound; j += GGMLType.Q4_1.getBlockSize(), blockOffset += GGMLType.Q4_1.getTypeSize()) {
+            var wScale = FloatVector.broadcast(F_SPECIES, Float.float16ToFloat(readShort(thiz.memorySegment, blockOffset)));
+            var wMin = FloatVector.broadcast(F_SPECIES, Float.float16ToFloat(readShort(thiz.memorySegment, blockOffset + GGMLType.FLOAT16_BYTES)));
+            var wBytes = ByteVector.fromMemorySegment(ByteVector.SPECIES_128, thiz.memorySegment, blockOffset + 2 * GGMLType.FLOAT16_BYTES, ByteOrder.LITTLE_ENDIAN);
+            var loBytes = wBytes.and((byte) 0xF);
+            var hiBytes = wBytes.lanewise(VectorOperators.LSHR, 4);
+            switch (F_SPECIES.vectorBitSize()) {
+                case 512 -> {
+                    var x0 = that.getFloatVector(F_SPECIES, thatOffset + j + 0 * F_SPECIES.length());
+                    var x1 = that.getFloatVector(F_SPECIES, thatOffset + j + 1 * F_SPECIES.length());
+                    var sum0 = x0.mul(loBytes.castShape(F_SPECIES, 0));
+                    var sum2 = x1.mul(hiBytes.castShape(F_SPECIES, 0));
+                    val = sum0.add(sum2).fma(wScale, val);
+                    val = x0.add(x1).fma(wMin, val);
+                }
+                case 256 -> {
+                    var x0 = that.getFloatVector(F_SPECIES, thatOffset + j + 0 * F_SPECIES.length());
+                    var x1 = that.getFloatVector(F_SPECIES, thatOffset + j + 1 * F_SPECIES.length());
+                    var x2 = that.getFloatVector(F_SPECIES, thatOffset + j + 2 * F_SPECIES.length());
+                    var x3 = that.getFloatVector(F_SPECIES, thatOffset + j + 3 * F_SPECIES.length());
+                    var sum0 = x0.mul(loBytes.castShape(F_SPECIES, 0));
+                    var sum1 = x1.mul(loBytes.castShape(F_SPECIES, 1));
+                    var sum2 = x2.mul(hiBytes.castShape(F_SPECIES, 0));
+                    var sum3 = x3.mul(hiBytes.castShape(F_SPECIES, 1));
+                    val = sum0.add(sum1).add(sum2).add(sum3).fma(wScale, val);
+                    val = x0.add(x1).add(x2).add(x3).fma(wMin, val);
+                }
+                case 128 -> {
+                    for (int i = 0; i < 2; ++i) {
+                        var tmp = i == 0 ? loBytes : hiBytes;
+                        var x0 = that.getFloatVector(F_SPECIES, thatOffset + j + (i * 4 + 0) * F_SPECIES.length());
+                        var x1 = that.getFloatVector(F_SPECIES, thatOffset + j + (i * 4 + 1) * F_SPECIES.length());
+                        var x2 = that.getFloatVector(F_SPECIES, thatOffset + j + (i * 4 + 2) * F_SPECIES.length());
+                        var x3 = that.getFloatVector(F_SPECIES, thatOffset + j + (i * 4 + 3) * F_SPECIES.length());
+                        var sum0 = x0.mul(tmp.castShape(F_SPECIES, 0));
+                        var sum1 = x1.mul(tmp.castShape(F_SPECIES, 1));
+                        var sum2 = x2.mul(tmp.castShape(F_SPECIES, 2));
+                        var sum3 = x3.mul(tmp.castShape(F_SPECIES, 3));
+                        val = sum0.add(sum1).add(sum2).add(sum3).fma(wScale, val);
+                        val = x0.add(x1).add(x2).add(x3).fma(wMin, val);
+                    }
+                }
+                default -> throw new UnsupportedOperationException(F_SPECIES.toString());
+            }
+        }
+        result += val.reduceLanes(VectorOperators.ADD);
+
+        // Remaining entries.
+        if (j < size) {
+            result += FloatTensor.scalarDot(thiz, thisOffset + j, that, thatOffset + j, size - j);
+        }
+
+        return result;
+    }
+}
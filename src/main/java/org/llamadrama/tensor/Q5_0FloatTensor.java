@@ -0,0 +1,181 @@
+package org.llamadrama.tensor;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+import org.llamadrama.gguf.GGMLType;
+
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteOrder;
+
+/**
+ * {@link FloatTensor} quantized in the {@link GGMLType#Q5_0} format.
+ * <p>
+ * Same nibble layout as {@link Q4_0FloatTensor}, plus a 32-bit little-endian word {@code qh} holding the 5th bit
+ * of every quant (bit j for element j): {@code x = d * (q - 16)}.
+ */
+public final class Q5_0FloatTensor extends FloatTensor {
+
+    static final int QH_OFFSET = GGMLType.FLOAT16_BYTES;
+    static final int QS_OFFSET = QH_OFFSET + Integer.BYTES;
+
+    // Expands every bit of a byte into a byte lane holding 0x10 or 0 (table_b2b in ggml).
+    private static final long[] BIT_TO_BYTE = new long[256];
+
+    static {
+        for (int b = 0; b < 256; ++b) {
+            long v = 0;
+            for (int k = 0; k < 8; ++k) {
+                if ((b & (1 << k)) != 0) {
+                    v |= 0x10L << (8 * k);
+                }
+            }
+            BIT_TO_BYTE[b] = v;
+        }
+    }
+
+    /**
+     * Returns 16 byte lanes, lane j holds the bit {@code shift + j} of {@code qh}, moved to bit 4.
+     */
+    static ByteVector highBits(int qh, int shift) {
+        return LongVector.zero(LongVector.SPECIES_128)
+                .withLane(0, BIT_TO_BYTE[(qh >>> shift) & 0xFF])
+                .withLane(1, BIT_TO_BYTE[(qh >>> (shift + 8)) & 0xFF])
+                .reinterpretAsBytes();
+    }
+
+    static int readInt(MemorySegment memorySegment, long offset) {
+        return (readShort(memorySegment, offset) & 0xFFFF) | (readShort(memorySegment, offset + Short.BYTES) << 16);
+    }
+
+    final int size;
+    final MemorySegment memorySegment;
+
+    public Q5_0FloatTensor(int size, MemorySegment memorySegment) {
+        this.size = size;
+        this.memorySegment = memorySegment;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void setFloat(int index, float value) {
+        throw new UnsupportedOperationException("setFloat");
+    }
+
+    @Override
+    FloatVector getFloatVector(VectorSpecies<Float> species, int index) {
+        throw new UnsupportedOperationException("getFloatVector");
+    }
+
+    @Override
+    public GGMLType type() {
+        return GGMLType.Q5_0;
+    }
+
+    @Override
+    public float getFloat(int index) {
+        assert 0 <= index && index < size;
+        int blockIndex = index / GGMLType.Q5_0.getBlockSize();
+        long blockOffset = (long) blockIndex * GGMLType.Q5_0.getTypeSize();
+        float scale = Float.float16ToFloat(readShort(memorySegment, blockOffset));
+        int qh = readInt(memorySegment, blockOffset + QH_OFFSET);
+        int modIndex = index % GGMLType.Q5_0.getBlockSize();
+        int quant;
+        if (modIndex < GGMLType.Q5_0.getBlockSize() / 2) {
+            quant = readByte(memorySegment, blockOffset + QS_OFFSET + modIndex) & 0x0F;
+        } else {
+            quant = (readByte(memorySegment, blockOffset + QS_OFFSET + modIndex - GGMLType.Q5_0.getBlockSize() / 2) >>> 4) & 0x0F;
+        }
+        quant |= ((qh >>> modIndex) & 1) << 4;
+        quant -= 16;
+        return quant * scale;
+    }
+
+    @Override
+    void dequantizeBlock(int blockIndex, float[] dst, int dstOffset) {
+        long blockOffset = (long) blockIndex * GGMLType.Q5_0.getTypeSize();
+        float scale = Float.float16ToFloat(readShort(memorySegment, blockOffset));
+        int qh = readInt(memorySegment, blockOffset + QH_OFFSET);
+        for (int i = 0; i < GGMLType.Q5_0.getBlockSize() / 2; ++i) {
+            int quants = readByte(memorySegment, blockOffset + QS_OFFSET + i) & 0xFF;
+            int lo = (quants & 0x0F) | (((qh >>> i) & 1) << 4);
+            int hi = (quants >>> 4) | (((qh >>> (i + 16)) & 1) << 4);
+            dst[dstOffset + i] = (lo - 16) * scale;
+            dst[dstOffset + i + GGMLType.Q5_0.getBlockSize() / 2] = (hi - 16) * scale;
+        }
+    }
+
+    @Override
+    public float dot(int thisOffset, FloatTensor that, int thatOffset, int size) {
+        if (FloatTensor.USE_VECTOR_API) {
+            return vectorDot(this, thisOffset, (ArrayFloatTensor) that, thatOffset, size);
+        } else {
+            return FloatTensor.scalarDot(this, thisOffset, that, thatOffset, size);
+        }
+    }
+
+    private static float vectorDot(Q5_0FloatTensor thiz, int thisOffset, ArrayFloatTensor that, int thatOffset, int size) {
+        float result = 0f;
+        int j = 0;
+
+        // Align thisOffset + j to type().getBlockSize().
+        assert Integer.bitCount(GGMLType.Q5_0.getBlockSize()) == 1 : "power of 2";
+        int alignmentBound = Math.min(size, -thisOffset & (GGMLType.Q5_0.getBlockSize() - 1));
+        if (alignmentBound > 0) {
+            result += FloatTensor.scalarDot(thiz, thisOffset, that, thatOffset, alignmentBound);
+            j += alignmentBound;
+        }
+        assert (thisOffset + j) % GGMLType.Q5_0.getBlockSize() == 0;
+
+        FloatVector val = FloatVector.zero(F_SPECIES);
+        long blockOffset = (long) (thisOffset + j) / GGMLType.Q5_0.getBlockSize() * GGMLType.Q5_0.getTypeSize();
+        int upperBound = j + (size - j) / GGMLType.Q5_0.getBlockSize() * GGMLType.Q5_0.getBlockSize();
+        for (; j < upperBound; j += GGMLType.Q5_0.getBlockSize(), blockOffset += GGMLType.Q5_0.getTypeSize()) {
+            float wScaleValue = Float.float16ToFloat(readShort(thiz.memorySegment, blockOffset));
+            var wScale = FloatVector.broadcast(F_SPECIES, wScaleValue);
+            int qh = readInt(thiz.memorySegment, blockOffset + QH_OFFSET);
+            var wBytes = ByteVector.fromMemorySegment(ByteVector.SPECIES_128, thiz.memorySegment, blockOffset + QS_OFFSET, ByteOrder.LITTLE_ENDIAN);
+            var loBytes = wBytes.and((byte) 0xF).or(highBits(qh, 0)).sub((byte) 16);
+            var hiBytes = wBytes.lanewise(VectorOperators.LSHR, 4).or(highBits(qh, 16)).sub((byte) 16);
+            switch (F_SPECIES.vectorBitSize()) {
+                case 512 -> {
+                    var sum0 = that.getFloatVector(F_SPECIES, thatOffset + j + 0 * F_SPECIES.length()).mul(loBytes.castShape(F_SPECIES, 0));
+                    var sum2 = that.getFloatVector(F_SPECIES, thatOffset + j + 1 * F_SPECIES.length()).mul(hiBytes.castShape(F_SPECIES, 0));
+                    val = sum0.add(sum2).fma(wScale, val);
+                }
+                case 256 -> {
+                    var sum0 = that.getFloatVector(F_SPECIES, thatOffset + j + 0 * F_SPECIES.length()).mul(loBytes.castShape(F_SPECIES, 0));
+                    var sum1 = that.getFloatVector(F_SPECIES, thatOffset + j + 1 * F_SPECIES.length()).mul(loBytes.castShape(F_SPECIES, 1));
+                    var sum2 = that.getFloatVector(F_SPECIES, thatOffset + j + 2 * F_SPECIES.length()).mul(hiBytes.castShape(F_SPECIES, 0));
+                    var sum3 = that.getFloatVector(F_SPECIES, thatOffset + j + 3 * F_SPECIES.length()).mul(hiBytes.castShape(F_SPECIES, 1));
+                    val = sum0.add(sum1).add(sum2).add(sum3).fma(wScale, val);
+                }
+                case 128 -> {
+                    for (int i = 0; i < 2; ++i) {
+                        var tmp = i == 0 ? loBytes : hiBytes;
+                        var sum0 = that.getFloatVector(F_SPECIES, thatOffset + j + (i * 4 + 0) * F_SPECIES.length()).mul(tmp.castShape(F_SPECIES, 0));
+                        var sum1 = that.getFloatVector(F_SPECIES, thatOffset + j + (i * 4 + 1) * F_SPECIES.length()).mul(tmp.castShape(F_SPECIES, 1));
+                        var sum2 = that.getFloatVector(F_SPECIES, thatOffset + j + (i * 4 + 2) * F_SPECIES.length()).mul(tmp.castShape(F_SPECIES, 2));
+                        var sum3 = that.getFloatVector(F_SPECIES, thatOffset + j + (i * 4 + 3) * F_SPECIES.length()).mul(tmp.castShape(F_SPECIES, 3));
+                        val = sum0.add(sum1).add(sum2).add(sum3).fma(wScale, val);
+                    }
+                }
+                default -> throw new UnsupportedOperationException(F_SPECIES.toString());
+            }
+        }
+        result += val.reduceLanes(VectorOperators.ADD);
+
+        // Remaining entries.
+        if (j < size) {
+            result += FloatTensor.scalarDot(thiz, thisOffset + j, that, thatOffset + j, size - j);
+        }
+
+        return result;
+    }
+}
@@ -0,0 +1,165 @@
+package org.llamadrama.tensor;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+import org.llamadrama.gguf.GGMLType;
+
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteOrder;
+
+/**
+ * {@link FloatTensor} quantized in the {@link GGMLType#Q5_1} format.
+ * <p>
+ * Same quant layout as {@link Q5_0FloatTensor}, but unsigned quants with a per-block min: {@code x = d * q + m}.
+ */
+public final class Q5_1FloatTensor extends FloatTensor {
+
+    static final int QH_OFFSET = 2 * GGMLType.FLOAT16_BYTES;
+    static final int QS_OFFSET = QH_OFFSET + Integer.BYTES;
+
+    final int size;
+    final MemorySegment memorySegment;
+
+    public Q5_1FloatTensor(int size, MemorySegment memorySegment) {
+        this.size = size;
+        this.memorySegment = memorySegment;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void setFloat(int index, float value) {
+        throw new UnsupportedOperationException("setFloat");
+    }
+
+    @Override
+    FloatVector getFloatVector(VectorSpecies<Float> species, int index) {
+        throw new UnsupportedOperationException("getFloatVector");
+    }
+
+    @Override
+    public GGMLType type() {
+        return GGMLType.Q5_1;
+    }
+
+    @Override
+    public float getFloat(int index) {
+        assert 0 <= index && index < size;
+        int blockIndex = index / GGMLType.Q5_1.getBlockSize();
+        long blockOffset = (long) blockIndex * GGMLType.Q5_1.getTypeSize();
+        float scale = Float.float16ToFloat(readShort(memorySegment, blockOffset));
+        float min = Float.float16ToFloat(readShort(memorySegment, blockOffset + GGMLType.FLOAT16_BYTES));
+        int qh = Q5_0FloatTensor.readInt(memorySegment, blockOffset + QH_OFFSET);
+        int modIndex = index % GGMLType.Q5_1.getBlockSize();
+        int quant;
+        if (modIndex < GGMLType.Q5_1.getBlockSize() / 2) {
+            quant = readByte(memorySegment, blockOffset + QS_OFFSET + modIndex) & 0x0F;
+        } else {
+            quant = (readByte(memorySegment, blockOffset + QS_OFFSET + modIndex - GGMLType.Q5_1.getBlockSize() / 2) >>> 4) & 0x0F;
+        }
+        quant |= ((qh >>> modIndex) & 1) << 4;
+        return quant * scale + min;
+    }
+
+    @Override
+    void dequantizeBlock(int blockIndex, float[] dst, int dstOffset) {
+        long blockOffset = (long) blockIndex * GGMLType.Q5_1.getTypeSize();
+        float scale = Float.float16ToFloat(readShort(memorySegment, blockOffset));
+        float min = Float.float16ToFloat(readShort(memorySegment, blockOffset + GGMLType.FLOAT16_BYTES));
+        int qh = Q5_0FloatTensor.readInt(memorySegment, blockOffset + QH_OFFSET);
+        for (int i = 0; i < GGMLType.Q5_1.getBlockSize() / 2; ++i) {
+            int quants = readByte(memorySegment, blockOffset + QS_OFFSET + i) & 0xFF;
+            int lo = (quants & 0x0F) | (((qh >>> i) & 1) << 4);
+            int hi = (quants >>> 4) | (((qh >>> (i + 16)) & 1) << 4);
+            dst[dstOffset + i] = lo * scale + min;
+            dst[dstOffset + i + GGMLType.Q5_1.getBlockSize() / 2] = hi * scale + min;
+        }
+    }
+
+    @Override
+    public float dot(int thisOffset, FloatTensor that, int thatOffset, int size) {
+        if (FloatTensor.USE_VECTOR_API) {
+            return vectorDot(this, thisOffset, (ArrayFloatTensor) that, thatOffset, size);
+        } else {
+            return FloatTensor.scalarDot(this, thisOffset, that, thatOffset, size);
+        }
+    }
+
+    private static float vectorDot(Q5_1FloatTensor thiz, int thisOffset, ArrayFloatTensor that, int thatOffset, int size) {
+        float result = 0f;
+        int j = 0;
+
+        // Align thisOffset + j to type().getBlockSize().
+        assert Integer.bitCount(GGMLType.Q5_1.getBlockSize()) == 1 : "power of 2";
+        int alignmentBound = Math.min(size, -thisOffset & (GGMLType.Q5_1.getBlockSize() - 1));
+        if (alignmentBound > 0) {
+            result += FloatTensor.scalarDot(thiz, thisOffset, that, thatOffset, alignmentBound);
+            j += alignmentBound;
+        }
+        assert (thisOffset + j) % GGMLType.Q5_1.getBlockSize() == 0;
+
+        FloatVector val = FloatVector.zero(F_SPECIES);
+        long blockOffset = (long) (thisOffset + j) / GGMLType.Q5_1.getBlockSize() * GGMLType.Q5_1.getTypeSize();
+        int upperBound = j + (size - j) / GGMLType.Q5_1.getBlockSize() * GGMLType.Q5_1.getBlockSize();
+        for (; j < upperBound; j += GGMLType.Q5_1.getBlockSize(), blockOffset += GGMLType.Q5_1.getTypeSize()) {
+            float wScaleValue = Float.float16ToFloat(readShort(thiz.memorySegment, blockOffset));
+            var wScale = FloatVector.broadcast(F_SPECIES, wScaleValue);
+            var wMin = FloatVector.broadcast(F_SPECIES, Float.float16ToFloat(readShort(thiz.memorySegment, blockOffset + GGMLType.FLOAT16_BYTES)));
+            int qh = Q5_0FloatTensor.readInt(thiz.memorySegment, blockOffset + QH_OFFSET);
+            var wBytes = ByteVector.fromMemorySegment(ByteVector.SPECIES_128, thiz.memorySegment, blockOffset + QS_OFFSET, ByteOrder.LITTLE_ENDIAN);
+            var loBytes = wBytes.and((byte) 0xF).or(Q5_0FloatTensor.highBits(qh, 0));
+            var hiBytes = wBytes.lanewise(VectorOperators.LSHR, 4).or(Q5_0FloatTensor.highBits(qh, 16));
+            switch (F_SPECIES.vectorBitSize()) {
+                case 512 -> {
+                    var x0 = that.getFloatVector(F_SPECIES, thatOffset + j + 0 * F_SPECIES.length());
+                    var x1 = that.getFloatVector(F_SPECIES, thatOffset + j + 1 * F_SPECIES.length());
+                    var sum0 = x0.mul(loBytes.castShape(F_SPECIES, 0));
+                    var sum2 = x1.mul(hiBytes.castShape(F_SPECIES, 0));
+                    val = sum0.add(sum2).fma(wScale, val);
+                    val = x0.add(x1).fma(wMin, val);
+                }
+                case 256 -> {
+                    var x0 = that.getFloatVector(F_SPECIES, thatOffset + j + 0 * F_SPECIES.length());
+                    var x1 = that.getFloatVector(F_SPECIES, thatOffset + j + 1 * F_SPECIES.length());
+                    var x2 = that.getFloatVector(F_SPECIES, thatOffset + j + 2 * F_SPECIES.length());
+                    var x3 = that.getFloatVector(F_SPECIES, thatOffset + j + 3 * F_SPECIES.length());
+                    var sum0 = x0.mul(loBytes.castShape(F_SPECIES, 0));
+                    var sum1 = x1.mul(loBytes.castShape(F_SPECIES, 1));
+                    var sum2 = x2.mul(hiBytes.castShape(F_SPECIES, 0));
+                    var sum3 = x3.mul(hiBytes.castShape(F_SPECIES, 1));
+                    val = sum0.add(sum1).add(sum2).add(sum3).fma(wScale, val);
+                    val = x0.add(x1).add(x2).add(x3).fma(wMin, val);
+                }
+                case 128 -> {
+                    for (int i = 0; i < 2; ++i) {
+                        var tmp = i == 0 ? loBytes : hiBytes;
+                        var x0 = that.getFloatVector(F_SPECIES, thatOffset + j + (i * 4 + 0) * F_SPECIES.length());
+                        var x1 = that.getFloatVector(F_SPECIES, thatOffset + j + (i * 4 + 1) * F_SPECIES.length());
+                        var x2 = that.getFloatVector(F_SPECIES, thatOffset + j + (i * 4 + 2) * F_SPECIES.length());
+                        var x3 = that.getFloatVector(F_SPECIES, thatOffset + j + (i * 4 + 3) * F_SPECIES.length());
+                        var sum0 = x0.mul(tmp.castShape(F_SPECIES, 0));
+                        var sum1 = x1.mul(tmp.castShape(F_SPECIES, 1));
+                        var sum2 = x2.mul(tmp.castShape(F_SPECIES, 2));
+                        var sum3 = x3.mul(tmp.castShape(F_SPECIES, 3));
+                        val = sum0.add(sum1).add(sum2).add(sum3).fma(wScale, val);
+                        val = x0.add(x1).add(x2).add(x3).fma(wMin, val);
+                    }
+                }
+                default -> throw new UnsupportedOperationException(F_SPECIES.toString());
+            }
+        }
+        result += val.reduceLanes(VectorOperators.ADD);
+
+        // Remaining entries.
+        if (j < size) {
+            result += FloatTensor.scalarDot(thiz, thisOffset + j, that, thatOffset + j, size - j);
+        }
+
+        return result;
+    }
+}
@@ -0,0 +1,203 @@
+package org.llamadrama.tensor;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+import org.llamadrama.gguf.GGMLType;
+
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteOrder;
+
+/**
+ * {@link FloatTensor} quantized in the {@link GGMLType#Q5_K} format.
+ * <p>
+ * Same super-block structure as {@link Q4_KFloatTensor}, with an extra high bit per quant:
+ * <pre>
+ * struct block_q5_K {
+ *     half d;
+ *     half dmin;
+ *     uint8 scales[12];
+ *     uint8 qh[32];    // 5th bit of the quants, bit 2*g (low nibbles) and 2*g+1 (high nibbles) for group g
+ *     uint8 qs[128];
+ * };
+ * </pre>
+ */
+public final class Q5_KFloatTensor extends FloatTensor {
+
+    static final int SCALES_OFFSET = 2 * GGMLType.FLOAT16_BYTES;
+    static final int QH_OFFSET = SCALES_OFFSET + 12;
+    static final int QS_OFFSET = QH_OFFSET + GGMLType.QK_K / 8;
+
+    final int size;
+    final MemorySegment memorySegment;
+
+    public Q5_KFloatTensor(int size, MemorySegment memorySegment) {
+        this.size = size;
+        this.memorySegment = memorySegment;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void setFloat(int index, float value) {
+        throw new UnsupportedOperationException("setFloat");
+    }
+
+    @Override
+    FloatVector getFloatVector(VectorSpecies<Float> species, int index) {
+        throw new UnsupportedOperationException("getFloatVector");
+    }
+
+    @Override
+    public GGMLType type() {
+        return GGMLType.Q5_K;
+    }
+
+    @Override
+    public float getFloat(int index) {
+        assert 0 <= index && index < size;
+        int blockIndex = index / GGMLType.Q5_K.getBlockSize();
+        int withinBlockIndex = index % GGMLType.Q5_K.getBlockSize();
+        long blockOffset = (long) blockIndex * GGMLType.Q5_K.getTypeSize();
+        float d = Float.float16ToFloat(readShort(memorySegment, blockOffset));
+        float dmin = Float.float16ToFloat(readShort(memorySegment, blockOffset + GGMLType.FLOAT16_BYTES));
+        int group = withinBlockIndex / 64;
+        int inGroup = withinBlockIndex % 64;
+        int subBlock = group * 2 + inGroup / 32;
+        int sc = Q4_KFloatTensor.scaleMinK4(memorySegment, blockOffset + SCALES_OFFSET, subBlock, false);
+        int m = Q4_KFloatTensor.scaleMinK4(memorySegment, blockOffset + SCALES_OFFSET, subBlock, true);
+        int l = inGroup % 32;
+        byte qs = readByte(memorySegment, blockOffset + QS_OFFSET + group * 32 + l);
+        byte qh = readByte(memorySegment, blockOffset + QH_OFFSET + l);
+        int quant = (inGroup < 32 ? (qs & 0x0F) : ((qs >>> 4) & 0x0F)) | (((qh >>> subBlock) & 1) << 4);
+        return d * sc * quant - dmin * m;
+    }
+
+    @Override
+    void dequantizeBlock(int blockIndex, float[] dst, int dstOffset) {
+        long blockOffset = (long) blockIndex * GGMLType.Q5_K.getTypeSize();
+        float d = Float.float16ToFloat(readShort(memorySegment, blockOffset));
+        float dmin = Float.float16ToFloat(readShort(memorySegment, blockOffset + GGMLType.FLOAT16_BYTES));
+        for (int g = 0; g < 4; ++g) {
+            float loScale = d * Q4_KFloatTensor.scaleMinK4(memorySegment, blockOffset + SCALES_OFFSET, 2 * g, false);
+            float loMin = dmin * Q4_KFloatTensor.scaleMinK4(memorySegment, blockOffset + SCALES_OFFSET, 2 * g, true);
+            float hiScale = d * Q4_KFloatTensor.scaleMinK4(memorySegment, blockOffset + SCALES_OFFSET, 2 * g + 1, false);
+            float hiMin = dmin * Q4_KFloatTensor.scaleMinK4(memorySegment, blockOffset + SCALES_OFFSET, 2 * g + 1, true);
+            for (int l = 0; l < 32; ++l) {
+                int quants = readByte(memorySegment, blockOffset + QS_OFFSET + g * 32 + l) & 0xFF;
+                int qh = readByte(memorySegment, blockOffset + QH_OFFSET + l) & 0xFF;
+                dst[dstOffset + g * 64 + l] = loScale * ((quants & 0x0F) | (((qh >>> (2 * g)) & 1) << 4)) - loMin;
+                dst[dstOffset + g * 64 + 32 + l] = hiScale * ((quants >>> 4) | (((qh >>> (2 * g + 1)) & 1) << 4)) - hiMin;
+            }
+        }
+    }
+
+    @Override
+    public float dot(int thisOffset, FloatTensor that, int thatOffset, int size) {
+        if (FloatTensor.USE_VECTOR_API) {
+            return vectorDot(this, thisOffset, (ArrayFloatTensor) that, thatOffset, size);
+        } else {
+            return FloatTensor.scalarDot(this, thisOffset, that, thatOffset, size);
+        }
+    }
+
+    private static float vectorDot(Q5_KFloatTensor thiz, int thisOffset, ArrayFloatTensor that, int thatOffset, int size) {
+        float result = 0f;
+        int j = 0;
+
+        // Align thisOffset + j to type().getBlockSize().
+        assert Integer.bitCount(GGMLType.Q5_K.getBlockSize()) == 1 : "power of 2";
+        int alignmentBound = Math.min(size, -thisOffset & (GGMLType.Q5_K.getBlockSize() - 1));
+        if (alignmentBound > 0) {
+            result += FloatTensor.scalarDot(thiz, thisOffset, that, thatOffset, alignmentBound);
+            j += alignmentBound;
+        }
+        assert (thisOffset + j) % GGMLType.Q5_K.getBlockSize() == 0;
+
+        FloatVector val = FloatVector.zero(F_SPECIES);
+        long blockOffset = (long) (thisOffset + j) / GGMLType.Q5_K.getBlockSize() * GGMLType.Q5_K.getTypeSize();
+        int upperBound = j + (size - j) / GGMLType.Q5_K.getBlockSize() * GGMLType.Q5_K.getBlockSize();
+        for (; j < upperBound; j += GGMLType.Q5_K.getBlockSize(), blockOffset += GGMLType.Q5_K.getTypeSize()) {
+            float d = Float.float16ToFloat(readShort(thiz.memorySegment, blockOffset));
+            float dmin = Float.float16ToFloat(readShort(thiz.memorySegment, blockOffset + GGMLType.FLOAT16_BYTES));
+            for (int g = 0; g < 4; ++g) {
+                var loScale = FloatVector.broadcast(F_SPECIES, d * Q4_KFloatTensor.scaleMinK4(thiz.memorySegment, blockOffset + SCALES_OFFSET, 2 * g, false));
+                var loMin = FloatVector.broadcast(F_SPECIES, -dmin * Q4_KFloatTensor.scaleMinK4(thiz.memorySegment, blockOffset + SCALES_OFFSET, 2 * g, true));
+                var hiScale = FloatVector.broadcast(F_SPECIES, d * Q4_KFloatTensor.scaleMinK4(thiz.memorySegment, blockOffset + SCALES_OFFSET, 2 * g + 1, false));
+                var hiMin = FloatVector.broadcast(F_SPECIES, -dmin * Q4_KFloatTensor.scaleMinK4(thiz.memorySegment, blockOffset + SCALES_OFFSET, 2 * g + 1, true));
+                long qsOffset = blockOffset + QS_OFFSET + g * 32;
+                int xOffset = thatOffset + j + g * 64;
+                switch (F_SPECIES.vectorBitSize()) {
+                    case 512 -> {
+                        var wBytes = ByteVector.fromMemorySegment(ByteVector.SPECIES_256, thiz.memorySegment, qsOffset, ByteOrder.LITTLE_ENDIAN);
+                        var hBytes = ByteVector.fromMemorySegment(ByteVector.SPECIES_256, thiz.memorySegment, blockOffset + QH_OFFSET, ByteOrder.LITTLE_ENDIAN);
+                        var loBytes = wBytes.and((byte) 0xF).or(hBytes.lanewise(VectorOperators.LSHR, 2 * g).and((byte) 1).lanewise(VectorOperators.LSHL, 4));
+                        var hiBytes = wBytes.lanewise(VectorOperators.LSHR, 4).or(hBytes.lanewise(VectorOperators.LSHR, 2 * g + 1).and((byte) 1).lanewise(VectorOperators.LSHL, 4));
+                        var x0 = that.getFloatVector(F_SPECIES, xOffset + 0 * F_SPECIES.length());
+                        var x1 = that.getFloatVector(F_SPECIES, xOffset + 1 * F_SPECIES.length());
+                        var x2 = that.getFloatVector(F_SPECIES, xOffset + 2 * F_SPECIES.length());
+                        var x3 = that.getFloatVector(F_SPECIES, xOffset + 3 * F_SPECIES.length());
+                        var lo = x0.mul(loBytes.castShape(F_SPECIES, 0)).add(x1.mul(loBytes.castShape(F_SPECIES, 1)));
+                        var hi = x2.mul(hiBytes.castShape(F_SPECIES, 0)).add(x3.mul(hiBytes.castShape(F_SPECIES, 1)));
+                        val = lo.fma(loScale, val);
+                        val = x0.add(x1).fma(loMin, val);
+                        val = hi.fma(hiScale, val);
+                        val = x2.add(x3).fma(hiMin, val);
+                    }
+                    case 256 -> {
+                        var wBytes = ByteVector.fromMemorySegment(ByteVector.SPECIES_256, thiz.memorySegment, qsOffset, ByteOrder.LITTLE_ENDIAN);
+                        var hBytes = ByteVector.fromMemorySegment(ByteVector.SPECIES_256, thiz.memorySegment, blockOffset + QH_OFFSET, ByteOrder.LITTLE_ENDIAN);
+                        for (int i = 0; i < 2; ++i) {
+                            var tmp = (i == 0 ? wBytes.and((byte) 0xF) : wBytes.lanewise(VectorOperators.LSHR, 4))
+                                    .or(hBytes.lanewise(VectorOperators.LSHR, 2 * g + i).and((byte) 1).lanewise(VectorOperators.LSHL, 4));
+                            var x0 = that.getFloatVector(F_SPECIES, xOffset + (i * 4 + 0) * F_SPECIES.length());
+                            var x1 = that.getFloatVector(F_SPECIES, xOffset + (i * 4 + 1) * F_SPECIES.length());
+                            var x2 = that.getFloatVector(F_SPECIES, xOffset + (i * 4 + 2) * F_SPECIES.length());
+                            var x3 = that.getFloatVector(F_SPECIES, xOffset + (i * 4 + 3) * F_SPECIES.length());
+                            var sum0 = x0.mul(tmp.castShape(F_SPECIES, 0));
+                            var sum1 = x1.mul(tmp.castShape(F_SPECIES, 1));
+                            var sum2 = x2.mul(tmp.castShape(F_SPECIES, 2));
+                            var sum3 = x3.mul(tmp.castShape(F_SPECIES, 3));
+                            val = sum0.add(sum1).add(sum2).add(sum3).fma(i == 0 ? loScale : hiScale, val);
+                            val = x0.add(x1).add(x2).add(x3).fma(i == 0 ? loMin : hiMin, val);
+                        }
+                    }
+                    case 128 -> {
+                        for (int k = 0; k < 2; ++k) {
+                            var wBytes = ByteVector.fromMemorySegment(ByteVector.SPECIES_128, thiz.memorySegment, qsOffset + k * 16, ByteOrder.LITTLE_ENDIAN);
+                            var hBytes = ByteVector.fromMemorySegment(ByteVector.SPECIES_128, thiz.memorySegment, blockOffset + QH_OFFSET + k * 16, ByteOrder.LITTLE_ENDIAN);
+                            for (int i = 0; i < 2; ++i) {
+                                var tmp = (i == 0 ? wBytes.and((byte) 0xF) : wBytes.lanewise(VectorOperators.LSHR, 4))
+                                        .or(hBytes.lanewise(VectorOperators.LSHR, 2 * g + i).and((byte) 1).lanewise(VectorOperators.LSHL, 4));
+                                int base = xOffset + i * 32 + k * 16;
+                                var x0 = that.getFloatVector(F_SPECIES, base + 0 * F_SPECIES.length());
+                                var x1 = that.getFloatVector(F_SPECIES, base + 1 * F_SPECIES.length());
+                                var x2 = that.getFloatVector(F_SPECIES, base + 2 * F_SPECIES.length());
+                                var x3 = that.getFloatVector(F_SPECIES, base + 3 * F_SPECIES.length());
+                                var sum0 = x0.mul(tmp.castShape(F_SPECIES, 0));
+                                var sum1 = x1.mul(tmp.castShape(F_SPECIES, 1));
+                                var sum2 = x2.mul(tmp.castShape(F_SPECIES, 2));
+                                var sum3 = x3.mul(tmp.castShape(F_SPECIES, 3));
+                                val = sum0.add(sum1).add(sum2).add(sum3).fma(i == 0 ? loScale : hiScale, val);
+                                val = x0.add(x1).add(x2).add(x3).fma(i == 0 ? loMin : hiMin, val);
+                            }
+                        }
+                    }
+                    default -> throw new UnsupportedOperationException(F_SPECIES.toString());
+                }
+            }
+        }
+        result += val.reduceLanes(VectorOperators.ADD);
+
+        // Remaining entries.
+        if (j < size) {
+            result += FloatTensor.scalarDot(thiz, thisOffset + j, that, thatOffset + j, size - j);
+        }
+
+        return result;
+    }
+}
@@ -0,0 +1,193 @@
+package org.llamadrama.tensor;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+import org.llamadrama.gguf.GGMLType;
+
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteOrder;
+
+/**
+ * {@link FloatTensor} quantized in the {@link GGMLType#Q6_K} format.
+ * <p>
+ * A super-block of 256 elements is split into 16 sub-blocks of 16 elements, each with its own 8-bit scale:
+ * <pre>
+ * struct block_q6_K {
+ *     uint8 ql[128];    // lower 4 bits of the quants
+ *     uint8 qh[64];     // upper 2 bits of the quants
+ *     int8 scales[16];
+ *     half d;           // super-block scale
+ * };
+ * </pre>
+ * Each half of the super-block (128 elements) uses 64 bytes of {@code ql}, 32 bytes of {@code qh} and 8 scales.
+ */
+public final class Q6_KFloatTensor extends FloatTensor {
+
+    static final int QH_OFFSET = GGMLType.QK_K / 2;
+    static final int SCALES_OFFSET = QH_OFFSET + GGMLType.QK_K / 4;
+    static final int D_OFFSET = SCALES_OFFSET + GGMLType.QK_K / 16;
+
+    final int size;
+    final MemorySegment memorySegment;
+
+    public Q6_KFloatTensor(int size, MemorySegment memorySegment) {
+        this.size = size;
+        this.memorySegment = memorySegment;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void setFloat(int index, float value) {
+        throw new UnsupportedOperationException("setFloat");
+    }
+
+    @Override
+    FloatVector getFloatVector(VectorSpecies<Float> species, int index) {
+        throw new UnsupportedOperationException("getFloatVector");
+    }
+
+    @Override
+    public GGMLType type() {
+        return GGMLType.Q6_K;
+    }
+
+    @Override
+    public float getFloat(int index) {
+        assert 0 <= index && index < size;
+        int blockIndex = index / GGMLType.Q6_K.getBlockSize();
+        int withinBlockIndex = index % GGMLType.Q6_K.getBlockSize();
+        long blockOffset = (long) blockIndex * GGMLType.Q6_K.getTypeSize();
+        float d = Float.float16ToFloat(readShort(memorySegment, blockOffset + D_OFFSET));
+        int half = withinBlockIndex / 128;
+        int inHalf = withinBlockIndex % 128;
+        int quarter = inHalf / 32; // selects the nibble of ql and the 2 bits of qh
+        int l = inHalf % 32;
+        byte ql = readByte(memorySegment, blockOffset + half * 64 + l + (quarter & 1) * 32);
+        byte qh = readByte(memorySegment, blockOffset + QH_OFFSET + half * 32 + l);
+        int lo = quarter < 2 ? (ql & 0xF) : ((ql >>> 4) & 0xF);
+        int hi = (qh >>> (2 * quarter)) & 3;
+        int quant = (lo | (hi << 4)) - 32;
+        byte scale = readByte(memorySegment, blockOffset + SCALES_OFFSET + half * 8 + quarter * 2 + l / 16);
+        return d * scale * quant;
+    }
+
+    @Override
+    void dequantizeBlock(int blockIndex, float[] dst, int dstOffset) {
+        long blockOffset = (long) blockIndex * GGMLType.Q6_K.getTypeSize();
+        float d = Float.float16ToFloat(readShort(memorySegment, blockOffset + D_OFFSET));
+        for (int half = 0; half < 2; ++half) {
+            long ql = blockOffset + half * 64;
+            long qh = blockOffset + QH_OFFSET + half * 32;
+            long sc = blockOffset + SCALES_OFFSET + half * 8;
+            int y = dstOffset + half * 128;
+            for (int l = 0; l < 32; ++l) {
+                int is = l / 16;
+                int a = readByte(memorySegment, ql + l) & 0xFF;
+                int b = readByte(memorySegment, ql + l + 32) & 0xFF;
+                int h = readByte(memorySegment, qh + l) & 0xFF;
+                dst[y + l] = d * readByte(memorySegment, sc + is) * (((a & 0xF) | ((h & 3) << 4)) - 32);
+                dst[y + l + 32] = d * readByte(memorySegment, sc + is + 2) * (((b & 0xF) | (((h >>> 2) & 3) << 4)) - 32);
+                dst[y + l + 64] = d * readByte(memorySegment, sc + is + 4) * (((a >>> 4) | (((h >>> 4) & 3) << 4)) - 32);
+                dst[y + l + 96] = d * readByte(memorySegment, sc + is + 6) * (((b >>> 4) | (((h >>> 6) & 3) << 4)) - 32);
+            }
+        }
+    }
+
+    @Override
+    public float dot(int thisOffset, FloatTensor that, int thatOffset, int size) {
+        if (FloatTensor.USE_VECTOR_API) {
+            return vectorDot(this, thisOffset, (ArrayFloatTensor) that, thatOffset, size);
+        } else {
+            return FloatTensor.scalarDot(this, thisOffset, that, thatOffset, size);
+        }
+    }
+
+    private static float vectorDot(Q6_KFloatTensor thiz, int thisOffset, ArrayFloatTensor that, int thatOffset, int size) {
+        float result = 0f;
+        int j = 0;
+
+        // Align thisOffset + j to type().getBlockSize().
+        assert Integer.bitCount(GGMLType.Q6_K.getBlockSize()) == 1 : "power of 2";
+        int alignmentBound = Math.min(size, -thisOffset & (GGMLType.Q6_K.getBlockSize() - 1));
+        if (alignmentBound > 0) {
+            result += FloatTensor.scalarDot(thiz, thisOffset, that, thatOffset, alignmentBound);
+            j += alignmentBound;
+        }
+        assert (thisOffset + j) % GGMLType.Q6_K.getBlockSize() == 0;
+
+        FloatVector val = FloatVector.zero(F_SPECIES);
+        long blockOffset = (long) (thisOffset + j) / GGMLType.Q6_K.getBlockSize() * GGMLType.Q6_K.getTypeSize();
+        int upperBound = j + (size - j) / GGMLType.Q6_K.getBlockSize() * GGMLType.Q6_K.getBlockSize();
+        for (; j < upperBound; j += GGMLType.Q6_K.getBlockSize(), blockOffset += GGMLType.Q6_K.getTypeSize()) {
+            float d = Float.float16ToFloat(readShort(thiz.memorySegment, blockOffset + D_OFFSET));
+            for (int half = 0; half < 2; ++half) {
+                long qlOffset = blockOffset + half * 64;
+                long qhOffset = blockOffset + QH_OFFSET + half * 32;
+                long scalesOffset = blockOffset + SCALES_OFFSET + half * 8;
+                int xOffset = thatOffset + j + half * 128;
+                switch (F_SPECIES.vectorBitSize()) {
+                    case 512, 256 -> {
+                        var qlA = ByteVector.fromMemorySegment(ByteVector.SPECIES_256, thiz.memorySegment, qlOffset, ByteOrder.LITTLE_ENDIAN);
+                        var qlB = ByteVector.fromMemorySegment(ByteVector.SPECIES_256, thiz.memorySegment, qlOffset + 32, ByteOrder.LITTLE_ENDIAN);
+                        var qh = ByteVector.fromMemorySegment(ByteVector.SPECIES_256, thiz.memorySegment, qhOffset, ByteOrder.LITTLE_ENDIAN);
+                        for (int quarter = 0; quarter < 4; ++quarter) {
+                            var ql = (quarter & 1) == 0 ? qlA : qlB;
+                            var lo = quarter < 2 ? ql.and((byte) 0xF) : ql.lanewise(VectorOperators.LSHR, 4);
+                            var quants = lo.or(qh.lanewise(VectorOperators.LSHR, 2 * quarter).and((byte) 3).lanewise(VectorOperators.LSHL, 4)).sub((byte) 32);
+                            var scale0 = FloatVector.broadcast(F_SPECIES, d * readByte(thiz.memorySegment, scalesOffset + quarter * 2));
+                            var scale1 = FloatVector.broadcast(F_SPECIES, d * readByte(thiz.memorySegment, scalesOffset + quarter * 2 + 1));
+                            int base = xOffset + quarter * 32;
+                            if (F_SPECIES.vectorBitSize() == 512) {
+                                var sum0 = that.getFloatVector(F_SPECIES, base + 0 * F_SPECIES.length()).mul(quants.castShape(F_SPECIES, 0));
+                                var sum1 = that.getFloatVector(F_SPECIES, base + 1 * F_SPECIES.length()).mul(quants.castShape(F_SPECIES, 1));
+                                val = sum0.fma(scale0, val);
+                                val = sum1.fma(scale1, val);
+                            } else {
+                                var sum0 = that.getFloatVector(F_SPECIES, base + 0 * F_SPECIES.length()).mul(quants.castShape(F_SPECIES, 0));
+                                var sum1 = that.getFloatVector(F_SPECIES, base + 1 * F_SPECIES.length()).mul(quants.castShape(F_SPECIES, 1));
+                                var sum2 = that.getFloatVector(F_SPECIES, base + 2 * F_SPECIES.length()).mul(quants.castShape(F_SPECIES, 2));
+                                var sum3 = that.getFloatVector(F_SPECIES, base + 3 * F_SPECIES.length()).mul(quants.castShape(F_SPECIES, 3));
+                                val = sum0.add(sum1).fma(scale0, val);
+                                val = sum2.add(sum3).fma(scale1, val);
+                            }
+                        }
+                    }
+                    case 128 -> {
+                        for (int k = 0; k < 2; ++k) {
+                            var qlA = ByteVector.fromMemorySegment(ByteVector.SPECIES_128, thiz.memorySegment, qlOffset + k * 16, ByteOrder.LITTLE_ENDIAN);
+                            var qlB = ByteVector.fromMemorySegment(ByteVector.SPECIES_128, thiz.memorySegment, qlOffset + 32 + k * 16, ByteOrder.LITTLE_ENDIAN);
+                            var qh = ByteVector.fromMemorySegment(ByteVector.SPECIES_128, thiz.memorySegment, qhOffset + k * 16, ByteOrder.LITTLE_ENDIAN);
+                            for (int quarter = 0; quarter < 4; ++quarter) {
+                                var ql = (quarter & 1) == 0 ? qlA : qlB;
+                                var lo = quarter < 2 ? ql.and((byte) 0xF) : ql.lanewise(VectorOperators.LSHR, 4);
+                                var quants = lo.or(qh.lanewise(VectorOperators.LSHR, 2 * quarter).and((byte) 3).lanewise(VectorOperators.LSHL, 4)).sub((byte) 32);
+                                var scale = FloatVector.broadcast(F_SPECIES, d * readByte(thiz.memorySegment, scalesOffset + quarter * 2 + k));
+                                int base = xOffset + quarter * 32 + k * 16;
+                                var sum0 = that.getFloatVector(F_SPECIES, base + 0 * F_SPECIES.length()).mul(quants.castShape(F_SPECIES, 0));
+                                var sum1 = that.getFloatVector(F_SPECIES, base + 1 * F_SPECIES.length()).mul(quants.castShape(F_SPECIES, 1));
+                                var sum2 = that.getFloatVector(F_SPECIES, base + 2 * F_SPECIES.length()).mul(quants.castShape(F_SPECIES, 2));
+                                var sum3 = that.getFloatVector(F_SPECIES, base + 3 * F_SPECIES.length()).mul(quants.castShape(F_SPECIES, 3));
+                                val = sum0.add(sum1).add(sum2).add(sum3).fma(scale, val);
+                            }
+                        }
+                    }
+                    default -> throw new UnsupportedOperationException(F_SPECIES.toString());
+                }
+            }
+        }
+        result += val.reduceLanes(VectorOperators.ADD);
+
+        // Remaining entries.
+        if (j < size) {
+            result += FloatTensor.scalarDot(thiz, thisOffset + j, that, thatOffset + j, size - j);
+        }
+
+        return result;
+    }
+}
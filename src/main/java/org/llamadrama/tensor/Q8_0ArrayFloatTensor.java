@@ -0,0 +1,112 @@
+package org.llamadrama.tensor;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+import org.llamadrama.gguf.GGMLType;
+
+/**
+ * On-heap activation vector quantized in the {@link GGMLType#Q8_0} format, quants and scales stored in
+ * separate arrays.
+ * <p>
+ * An activation is quantized once with {@link #quantize} and then multiplied against many weight rows:
+ * {@link Q4_0FloatTensor} and {@link Q8_0FloatTensor} use integer multiply-accumulate kernels when the
+ * other operand of {@link FloatTensor#dot} is a {@code Q8_0ArrayFloatTensor}.
+ */
+public final class Q8_0ArrayFloatTensor extends FloatTensor {
+
+    final byte[] quants;
+    final float[] scales;
+
+    Q8_0ArrayFloatTensor(int size) {
+        if (size % GGMLType.Q8_0.getBlockSize() != 0) {
+            throw new IllegalArgumentException("size " + size + " is not a multiple of " + GGMLType.Q8_0.getBlockSize());
+        }
+        this.quants = new byte[size];
+        this.scales = new float[size / GGMLType.Q8_0.getBlockSize()];
+    }
+
+    public static FloatTensor allocate(int size) {
+        return new Q8_0ArrayFloatTensor(size);
+    }
+
+    @Override
+    public int size() {
+        return quants.length;
+    }
+
+    @Override
+    public float getFloat(int index) {
+        return quants[index] * scales[index / GGMLType.Q8_0.getBlockSize()];
+    }
+
+    @Override
+    public void setFloat(int index, float value) {
+        throw new UnsupportedOperationException("setFloat");
+    }
+
+    @Override
+    FloatVector getFloatVector(VectorSpecies<Float> species, int index) {
+        throw new UnsupportedOperationException("getFloatVector");
+    }
+
+    @Override
+    public GGMLType type() {
+        return GGMLType.Q8_0;
+    }
+
+    /**
+     * Quantizes the first {@link #size()} elements of {@code x} into this tensor, see quantize_row_q8_0 in ggml.
+     */
+    public void quantize(FloatTensor x) {
+        int blockSize = GGMLType.Q8_0.getBlockSize();
+        for (int b = 0; b < scales.length; ++b) {
+            int offset = b * blockSize;
+            float amax = 0f;
+            for (int i = 0; i < blockSize; ++i) {
+                amax = Math.max(amax, Math.abs(x.getFloat(offset + i)));
+            }
+            float d = amax / 127f;
+            float id = d != 0f ? 1f / d : 0f;
+            for (int i = 0; i < blockSize; ++i) {
+                quants[offset + i] = (byte) Math.round(x.getFloat(offset + i) * id);
+            }
+            scales[b] = d;
+        }
+    }
+
+    /**
+     * Adds the products of the 16 signed bytes of {@code w} and {@code x} to the lanes of {@code acc}.
+     * A single product always fits in a short, the sums are accumulated as ints.
+     */
+    static IntVector dot16(ByteVector w, ByteVector x, IntVector acc) {
+        assert w.length() == 16 && x.length() == 16;
+        switch (I_SPECIES.vectorBitSize()) {
+            case 512 -> {
+                var p = (ShortVector) w.castShape(ShortVector.SPECIES_256, 0).mul(x.castShape(ShortVector.SPECIES_256, 0));
+                return acc.add(p.castShape(I_SPECIES, 0));
+            }
+            case 256 -> {
+                var p = (ShortVector) w.castShape(ShortVector.SPECIES_256, 0).mul(x.castShape(ShortVector.SPECIES_256, 0));
+                return acc.add(p.castShape(I_SPECIES, 0)).add(p.castShape(I_SPECIES, 1));
+            }
+            case 128 -> {
+                var p0 = (ShortVector) w.castShape(ShortVector.SPECIES_128, 0).mul(x.castShape(ShortVector.SPECIES_128, 0));
+                var p1 = (ShortVector) w.castShape(ShortVector.SPECIES_128, 1).mul(x.castShape(ShortVector.SPECIES_128, 1));
+                return acc.add(p0.castShape(I_SPECIES, 0)).add(p0.castShape(I_SPECIES, 1))
+                        .add(p1.castShape(I_SPECIES, 0)).add(p1.castShape(I_SPECIES, 1));
+            }
+            default -> throw new UnsupportedOperationException(I_SPECIES.toString());
+        }
+    }
+
+    /**
+     * Accumulates the integer block sum {@code sumi}, scaled by {@code scale}, into {@code val}.
+     */
+    static FloatVector fmaBlock(IntVector sumi, float scale, FloatVector val) {
+        return ((FloatVector) sumi.convert(VectorOperators.I2F, 0)).fma(FloatVector.broadcast(F_SPECIES, scale), val);
+    }
+}
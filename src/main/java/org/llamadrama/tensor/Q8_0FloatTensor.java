@@ -2,10 +2,12 @@ package org.llamadrama.tensor;
 
 import jdk.incubator.vector.ByteVector;
 import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
 import jdk.incubator.vector.VectorOperators;
 import jdk.incubator.vector.VectorSpecies;
 import org.llamadrama.gguf.GGMLType;
 
+import java.lang.foreign.Arena;
 import java.lang.foreign.MemorySegment;
 import java.lang.foreign.ValueLayout;
 import java.nio.ByteOrder;
@@ -20,6 +22,16 @@ public final class Q8_0FloatTensor extends FloatTensor {
         this.memorySegment = memorySegment;
     }
 
+    /**
+     * Allocates a zeroed, writable tensor off-heap, the size must be a multiple of the block size.
+     */
+    public static Q8_0FloatTensor allocate(int size) {
+        if (size % GGMLType.Q8_0.getBlockSize() != 0) {
+            throw new IllegalArgumentException("size " + size + " is not a multiple of " + GGMLType.Q8_0.getBlockSize());
+        }
+        return new Q8_0FloatTensor(size, Arena.ofAuto().allocate(GGMLType.Q8_0.byteSizeFor(size), 64));
+    }
+
     @Override
     public int size() {
         return size;
@@ -53,15 +65,162 @@ public final class Q8_0FloatTensor extends FloatTensor {
 
     public static final ValueLayout.OfShort JAVA_SHORT_LE = ValueLayout.JAVA_SHORT.withOrder(ByteOrder.LITTLE_ENDIAN);
 
+    @Override
+    void dequantizeBlock(int blockIndex, float[] dst, int dstOffset) {
+        long blockOffset = (long) blockIndex * GGMLType.Q8_0.getTypeSize();
+        float scale = Float.float16ToFloat(readShort(memorySegment, blockOffset));
+        for (int i = 0; i < GGMLType.Q8_0.getBlockSize(); ++i) {
+            dst[dstOffset + i] = readByte(memorySegment, blockOffset + GGMLType.FLOAT16_BYTES + i) * scale;
+        }
+    }
+
+    @Override
+    public void copyTo(int thisOffset, FloatTensor that, int thatOffset, int size) {
+        int blockSize = GGMLType.Q8_0.getBlockSize();
+        if (that instanceof Q8_0FloatTensor thatTensor && thisOffset % blockSize == 0 && thatOffset % blockSize == 0 && size % blockSize == 0) {
+            // whole blocks, raw copy
+            MemorySegment.copy(memorySegment, GGMLType.Q8_0.byteSizeFor(thisOffset), thatTensor.memorySegment, GGMLType.Q8_0.byteSizeFor(thatOffset), GGMLType.Q8_0.byteSizeFor(size));
+        } else {
+            super.copyTo(thisOffset, that, thatOffset, size);
+        }
+    }
+
+    /**
+     * Quantizes whole blocks, {@code thisOffset} and {@code size} must be multiples of the block size.
+     */
+    @Override
+    void write(int thisOffset, float[] src, int srcOffset, int size) {
+        int blockSize = GGMLType.Q8_0.getBlockSize();
+        if (thisOffset % blockSize != 0 || size % blockSize != 0) {
+            throw new IllegalArgumentException("Q8_0 writes must cover whole blocks: offset " + thisOffset + ", size " + size);
+        }
+        for (int j = 0; j < size; j += blockSize) {
+            long blockOffset = (long) (thisOffset + j) / blockSize * GGMLType.Q8_0.getTypeSize();
+            float amax = 0f;
+            for (int i = 0; i < blockSize; ++i) {
+                amax = Math.max(amax, Math.abs(src[srcOffset + j + i]));
+            }
+            // quantize against the stored (float16) scale
+            short scale = Float.floatToFloat16(amax / 127f);
+            float d = Float.float16ToFloat(scale);
+            float id = d != 0f ? 1f / d : 0f;
+            writeShort(memorySegment, blockOffset, scale);
+            for (int i = 0; i < blockSize; ++i) {
+                writeByte(memorySegment, blockOffset + GGMLType.FLOAT16_BYTES + i, (byte) Math.round(src[srcOffset + j + i] * id));
+            }
+        }
+    }
+
+    @Override
+    void saxpyTo(int thisOffset, float[] dst, int dstOffset, int size, float a) {
+        if (!FloatTensor.USE_VECTOR_API) {
+            super.saxpyTo(thisOffset, dst, dstOffset, size, a);
+            return;
+        }
+        int blockSize = GGMLType.Q8_0.getBlockSize();
+        int j = 0;
+        // Align thisOffset + j to the block size.
+        int alignmentBound = Math.min(size, -thisOffset & (blockSize - 1));
+        for (; j < alignmentBound; ++j) {
+            dst[dstOffset + j] += a * getFloat(thisOffset + j);
+        }
+        long blockOffset = (long) (thisOffset + j) / blockSize * GGMLType.Q8_0.getTypeSize();
+        int upperBound = j + (size - j) / blockSize * blockSize;
+        for (; j < upperBound; j += blockSize, blockOffset += GGMLType.Q8_0.getTypeSize()) {
+            var scale = FloatVector.broadcast(F_SPECIES, a * Float.float16ToFloat(readShort(memorySegment, blockOffset)));
+            switch (F_SPECIES.vectorBitSize()) {
+                case 512 -> {
+                    var wBytes = ByteVector.fromMemorySegment(ByteVector.SPECIES_256, memorySegment, blockOffset + GGMLType.FLOAT16_BYTES, ByteOrder.LITTLE_ENDIAN);
+                    for (int p = 0; p < 2; ++p) {
+                        int k = dstOffset + j + p * F_SPECIES.length();
+                        ((FloatVector) wBytes.castShape(F_SPECIES, p)).fma(scale, FloatVector.fromArray(F_SPECIES, dst, k)).intoArray(dst, k);
+                    }
+                }
+                case 256 -> {
+                    var wBytes = ByteVector.fromMemorySegment(ByteVector.SPECIES_256, memorySegment, blockOffset + GGMLType.FLOAT16_BYTES, ByteOrder.LITTLE_ENDIAN);
+                    for (int p = 0; p < 4; ++p) {
+                        int k = dstOffset + j + p * F_SPECIES.length();
+                        ((FloatVector) wBytes.castShape(F_SPECIES, p)).fma(scale, FloatVector.fromArray(F_SPECIES, dst, k)).intoArray(dst, k);
+                    }
+                }
+                case 128 -> {
+                    for (int i = 0; i < 2; ++i) {
+                        var wBytes = ByteVector.fromMemorySegment(ByteVector.SPECIES_128, memorySegment, blockOffset + GGMLType.FLOAT16_BYTES + i * ByteVector.SPECIES_128.vectorByteSize(), ByteOrder.LITTLE_ENDIAN);
+                        for (int p = 0; p < 4; ++p) {
+                            int k = dstOffset + j + i * 16 + p * F_SPECIES.length();
+                            ((FloatVector) wBytes.castShape(F_SPECIES, p)).fma(scale, FloatVector.fromArray(F_SPECIES, dst, k)).intoArray(dst, k);
+                        }
+                    }
+                }
+                default -> throw new UnsupportedOperationException(F_SPECIES.toString());
+            }
+        }
+        // Remaining entries.
+        for (; j < size; ++j) {
+            dst[dstOffset + j] += a * getFloat(thisOffset + j);
+        }
+    }
+
+    @Override
+    public boolean supportsQ8_0Activations() {
+        return true;
+    }
+
     @Override
     public float dot(int thisOffset, FloatTensor that, int thatOffset, int size) {
-        if (FloatTensor.USE_VECTOR_API) {
+        if (FloatTensor.USE_VECTOR_API && that instanceof Q8_0ArrayFloatTensor q8) {
+            return vectorDotQ8_0(this, thisOffset, q8, thatOffset, size);
+        } else if (FloatTensor.USE_VECTOR_API) {
             return vectorDot(this, thisOffset, (ArrayFloatTensor) that, thatOffset, size);
         } else {
             return FloatTensor.scalarDot(this, thisOffset, that, thatOffset, size);
         }
     }
 
+    /**
+     * Integer dot product against a quantized activation, block by block: {@code sum(w * x)} is accumulated
+     * as ints and scaled once by both block scales.
+     */
+    private static float vectorDotQ8_0(Q8_0FloatTensor thiz, int thisOffset, Q8_0ArrayFloatTensor that, int thatOffset, int size) {
+        int blockSize = GGMLType.Q8_0.getBlockSize();
+        if ((thisOffset - thatOffset) % blockSize != 0) {
+            // Blocks of both operands must line up.
+            return FloatTensor.scalarDot(thiz, thisOffset, that, thatOffset, size);
+        }
+        float result = 0f;
+        int j = 0;
+
+        // Align thisOffset + j to type().getBlockSize().
+        int alignmentBound = Math.min(size, -thisOffset & (blockSize - 1));
+        if (alignmentBound > 0) {
+            result += FloatTensor.scalarDot(thiz, thisOffset, that, thatOffset, alignmentBound);
+            j += alignmentBound;
+        }
+        assert (thisOffset + j) % blockSize == 0 && (thatOffset + j) % blockSize == 0;
+
+        FloatVector val = FloatVector.zero(F_SPECIES);
+        long blockOffset = (long) (thisOffset + j) / blockSize * GGMLType.Q8_0.getTypeSize();
+        int upperBound = j + (size - j) / blockSize * blockSize;
+        for (; j < upperBound; j += blockSize, blockOffset += GGMLType.Q8_0.getTypeSize()) {
+            float wScale = Float.float16ToFloat(readShort(thiz.memorySegment, blockOffset));
+            var w0 = ByteVector.fromMemorySegment(ByteVector.SPECIES_128, thiz.memorySegment, blockOffset + GGMLType.FLOAT16_BYTES, ByteOrder.LITTLE_ENDIAN);
+            var w1 = ByteVector.fromMemorySegment(ByteVector.SPECIES_128, thiz.memorySegment, blockOffset + GGMLType.FLOAT16_BYTES + 16, ByteOrder.LITTLE_ENDIAN);
+            var x0 = ByteVector.fromArray(ByteVector.SPECIES_128, that.quants, thatOffset + j);
+            var x1 = ByteVector.fromArray(ByteVector.SPECIES_128, that.quants, thatOffset + j + 16);
+            IntVector sumi = Q8_0ArrayFloatTensor.dot16(w0, x0, IntVector.zero(I_SPECIES));
+            sumi = Q8_0ArrayFloatTensor.dot16(w1, x1, sumi);
+            val = Q8_0ArrayFloatTensor.fmaBlock(sumi, wScale * that.scales[(thatOffset + j) / blockSize], val);
+        }
+        result += val.reduceLanes(VectorOperators.ADD);
+
+        // Remaining entries.
+        if (j < size) {
+            result += FloatTensor.scalarDot(thiz, thisOffset + j, that, thatOffset + j, size - j);
+        }
+
+        return result;
+    }
+
     private static float vectorDot(Q8_0FloatTensor thiz, int thisOffset, ArrayFloatTensor that, int thatOffset, int size) {
         float result = 0f;
         int j = 0;
@@ -77,7 +236,7 @@ public final class Q8_0FloatTensor extends FloatTensor {
 
         FloatVector val = FloatVector.zero(F_SPECIES);
         int blockOffset = (thisOffset + j) / GGMLType.Q8_0.getBlockSize() * GGMLType.Q8_0.getTypeSize();
-        int upperBound = size / GGMLType.Q8_0.getBlockSize() * GGMLType.Q8_0.getBlockSize();
+        int upperBound = j + (size - j) / GGMLType.Q8_0.getBlockSize() * GGMLType.Q8_0.getBlockSize();
         for (; j < upperBound; j += GGMLType.Q8_0.getBlockSize(), blockOffset += GGMLType.Q8_0.getTypeSize()) {
             float wScaleValue = Float.float16ToFloat(readShort(thiz.memorySegment, blockOffset));
             var wScale = FloatVector.broadcast(F_SPECIES, wScaleValue);
@@ -0,0 +1,122 @@
+package org.llamadrama.tokenizer;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of encoded pre-tokenizer chunks: common words, whitespace runs, JSON keys, identifiers...
+ * are encoded once instead of running the BPE merges every time.
+ * <p>
+ * Lookups are lock-free ({@link ConcurrentHashMap} reads and a reference bit); insertions take a lock to evict with
+ * the CLOCK algorithm (second chance, an approximation of LRU): the hand sweeps the entries, clearing their reference
+ * bits, and evicts the first one not referenced since its last pass. The cached arrays are shared, never modify them.
+ */
+public final class ChunkCache {
+
+    /**
+     * Longer chunks are not cached, they rarely repeat and would take the room of many short ones.
+     */
+    static final int MAX_CHUNK_LENGTH = 64;
+
+    private static final class Entry {
+        final String chunk;
+        final int[] ids;
+        volatile boolean referenced;
+
+        Entry(String chunk, int[] ids) {
+            this.chunk = chunk;
+            this.ids = ids;
+        }
+    }
+
+    private final int capacity;
+    private final ConcurrentHashMap<String, Entry> entries;
+    private final Entry[] clock; // guarded by this
+    private int hand; // guarded by this
+    private int size; // guarded by this
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param capacity maximum number of chunks, at least 1
+     */
+    public ChunkCache(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Invalid chunk cache capacity: " + capacity);
+        }
+        this.capacity = capacity;
+        this.entries = new ConcurrentHashMap<>(capacity);
+        this.clock = new Entry[capacity];
+    }
+
+    /**
+     * The cached encoding of {@code chunk}, null on a miss.
+     */
+    int[] get(String chunk) {
+        Entry entry = entries.get(chunk);
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        if (!entry.referenced) {
+            entry.referenced = true; // only written when changed, hot entries stay in shared cache lines
+        }
+        hits.increment();
+        return entry.ids;
+    }
+
+    void put(String chunk, int[] ids) {
+        if (chunk.length() > MAX_CHUNK_LENGTH) {
+            return;
+        }
+        synchronized (this) {
+            if (entries.containsKey(chunk)) {
+                return; // encoded concurrently
+            }
+            Entry entry = new Entry(chunk, ids);
+            if (size < capacity) {
+                clock[size++] = entry;
+            } else {
+                while (clock[hand].referenced) {
+                    clock[hand].referenced = false;
+                    hand = (hand + 1) % capacity;
+                }
+                entries.remove(clock[hand].chunk);
+                evictions.increment();
+                clock[hand] = entry;
+                hand = (hand + 1) % capacity;
+            }
+            entries.put(chunk, entry);
+        }
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public String toString() {
+        long hits = hits();
+        long total = hits + misses();
+        return "ChunkCache[size=%d/%d, hits=%d, misses=%d, evictions=%d, hitRate=%.1f%%]"
+                .formatted(size(), capacity, hits, misses(), evictions(), total > 0 ? 100.0 * hits / total : 0.0);
+    }
+}
@@ -0,0 +1,146 @@
+package org.llamadrama.tokenizer;
+
+/**
+ * Splits text into the chunks of the Llama 3 pre-tokenizer {@link #PATTERN}, without {@link java.util.regex}.
+ * <p>
+ * A hand-written scanner over code points which finds the same boundaries as the pattern, with Java's regex
+ * semantics: {@code \s} is ASCII whitespace only and {@code (?i)} ASCII case-insensitive. Every position starts a
+ * chunk, so the chunks cover the whole text.
+ */
+public final class Llama3PreTokenizer {
+
+    public static final String PATTERN = "(?i:'s|'t|'re|'ve|'m|'ll|'d)|[^\\r\\n\\p{L}\\p{N}]?\\p{L}+|\\p{N}{1,3}| ?[^\\s\\p{L}\\p{N}]+[\\r\\n]*|\\s*[\\r\\n]+|\\s+(?!\\S)|\\s+";
+
+    private Llama3PreTokenizer() {
+    }
+
+    /**
+     * The end (exclusive) of the chunk starting at {@code start < text.length()}.
+     */
+    public static int chunkEnd(String text, int start) {
+        int length = text.length();
+        int c = text.codePointAt(start);
+        int afterC = start + Character.charCount(c);
+
+        // (?i:'s|'t|'re|'ve|'m|'ll|'d)
+        if (c == '\'' && afterC < length) {
+            int end = contraction(text, afterC);
+            if (end > 0) {
+                return end;
+            }
+        }
+        // [^\r\n\p{L}\p{N}]?\p{L}+
+        if (isLetter(c)) {
+            return skipLetters(text, afterC);
+        }
+        if (c != '\r' && c != '\n' && !isNumber(c) && afterC < length && isLetter(text.codePointAt(afterC))) {
+            return skipLetters(text, afterC);
+        }
+        // \p{N}{1,3}
+        if (isNumber(c)) {
+            int end = afterC;
+            for (int n = 1; n < 3 && end < length; ++n) {
+                int cp = text.codePointAt(end);
+                if (!isNumber(cp)) {
+                    break;
+                }
+                end += Character.charCount(cp);
+            }
+            return end;
+        }
+        // ' ?[^\s\p{L}\p{N}]+[\r\n]*'
+        int symbolsStart = c == ' ' ? afterC : start;
+        if (symbolsStart < length && isSymbol(text.codePointAt(symbolsStart))) {
+            int end = symbolsStart;
+            while (end < length) {
+                int cp = text.codePointAt(end);
+                if (!isSymbol(cp)) {
+                    break;
+                }
+                end += Character.charCount(cp);
+            }
+            while (end < length && (text.charAt(end) == '\r' || text.charAt(end) == '\n')) {
+                end++;
+            }
+            return end;
+        }
+        // c is whitespace from here on (anything else is a symbol), the run ends at spaceEnd
+        assert isSpace(c);
+        int spaceEnd = start;
+        int lastNewline = -1;
+        while (spaceEnd < length && isSpace(text.charAt(spaceEnd))) {
+            char ch = text.charAt(spaceEnd);
+            if (ch == '\r' || ch == '\n') {
+                lastNewline = spaceEnd;
+            }
+            spaceEnd++;
+        }
+        // \s*[\r\n]+ backtracks to the last newline of the run
+        if (lastNewline >= 0) {
+            return lastNewline + 1;
+        }
+        // \s+(?!\S) leaves the last whitespace to the next chunk, unless at the end of the text
+        if (spaceEnd == length || spaceEnd - start == 1) {
+            return spaceEnd; // or \s+
+        }
+        return spaceEnd - 1;
+    }
+
+    // The end of 's, 't, 're, 've, 'm, 'll, 'd (ignoring ASCII case) at from, after the apostrophe, 0 if none.
+    private static int contraction(String text, int from) {
+        char c1 = asciiLowerCase(text.charAt(from));
+        if (c1 == 's' || c1 == 't' || c1 == 'm' || c1 == 'd') {
+            return from + 1;
+        }
+        if (from + 1 < text.length()) {
+            char c2 = asciiLowerCase(text.charAt(from + 1));
+            if ((c1 == 'r' || c1 == 'v') && c2 == 'e' || c1 == 'l' && c2 == 'l') {
+                return from + 2;
+            }
+        }
+        return 0;
+    }
+
+    private static char asciiLowerCase(char c) {
+        return 'A' <= c && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    }
+
+    private static int skipLetters(String text, int from) {
+        int end = from;
+        while (end < text.length()) {
+            int cp = text.codePointAt(end);
+            if (!isLetter(cp)) {
+                break;
+            }
+            end += Character.charCount(cp);
+        }
+        return end;
+    }
+
+    // \p{L}
+    private static boolean isLetter(int cp) {
+        return Character.isLetter(cp);
+    }
+
+    // \p{N}
+    private static boolean isNumber(int cp) {
+        if ('0' <= cp && cp <= '9') {
+            return true;
+        }
+        if (cp < 0x80) {
+            return false;
+        }
+        int type = Character.getType(cp);
+        return type == Character.DECIMAL_DIGIT_NUMBER || type == Character.LETTER_NUMBER || type == Character.OTHER_NUMBER;
+    }
+
+    // \s, ASCII only
+    private static boolean isSpace(int cp) {
+        return cp == ' ' || (0x09 <= cp && cp <= 0x0D);
+    }
+
+    // [^\s\p{L}\p{N}]
+    private static boolean isSymbol(int cp) {
+        return !isSpace(cp) && !isLetter(cp) && !isNumber(cp);
+    }
+}
@@ -0,0 +1,71 @@
+package org.llamadrama.tokenizer;
+
+import java.util.Arrays;
+
+/**
+ * BPE merges: (left token, right token) to merged token, without boxing.
+ * <p>
+ * Open addressing with linear probing, the pair is packed in a {@code long} key.
+ */
+final class MergeTable {
+    private static final long EMPTY = -1L; // token indices are non-negative
+
+    private final long[] keys;
+    private final int[] values;
+    private final int mask;
+    private int size;
+
+    MergeTable(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(2, expectedSize) * 2 - 1) << 1; // load factor <= 0.5
+        this.keys = new long[capacity];
+        this.values = new int[capacity];
+        this.mask = capacity - 1;
+        Arrays.fill(keys, EMPTY);
+    }
+
+    private static long key(int left, int right) {
+        return ((long) left << 32) | (right & 0xFFFFFFFFL);
+    }
+
+    private static int slot(long key) {
+        long h = key * 0x9E3779B97F4A7C15L; // Fibonacci hashing, the high bits are the best mixed
+        return (int) (h ^ (h >>> 32));
+    }
+
+    void put(int left, int right, int merged) {
+        assert left >= 0 && right >= 0 && merged >= 0;
+        if (2 * (size + 1) > keys.length) {
+            throw new IllegalStateException("MergeTable is full: " + size);
+        }
+        long key = key(left, right);
+        int i = slot(key) & mask;
+        while (keys[i] != EMPTY && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        if (keys[i] == EMPTY) {
+            keys[i] = key;
+            size++;
+        }
+        values[i] = merged;
+    }
+
+    /**
+     * The merged token, -1 if the pair is not a merge.
+     */
+    int get(int left, int right) {
+        long key = key(left, right);
+        int i = slot(key) & mask;
+        long k;
+        while ((k = keys[i]) != EMPTY) {
+            if (k == key) {
+                return values[i];
+            }
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    int size() {
+        return size;
+    }
+}
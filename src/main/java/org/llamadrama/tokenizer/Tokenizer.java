@@ -5,14 +5,13 @@ import org.llamadrama.util.Pair;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HexFormat;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
-import java.util.regex.MatchResult;
+import java.util.concurrent.ForkJoinPool;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
@@ -25,9 +24,19 @@ import java.util.stream.IntStream;
  * <a href="https://github.com/openai/gpt-2/blob/master/src/encoder.py">GPT 2 tokenizer</a>
  */
 public class Tokenizer {
+    // Capacity (chunks) of the chunk encoding cache, 0 to disable it.
+    private static final int CHUNK_CACHE_SIZE = Integer.getInteger("llama.TokenizerCacheSize", 16384);
+    // Texts of at least this many chars (byte-level encoded) are encoded in parallel.
+    private static final int PARALLEL_THRESHOLD = Integer.getInteger("llama.TokenizerParallelThreshold", 1 << 16);
+    // Chunks per parallel task.
+    private static final int SEGMENT_CHUNKS = 1024;
+
     private final Pattern compiledPattern;
+    private final boolean llama3PreTokenizer; // the pattern is Llama3PreTokenizer.PATTERN, scanned without regex
     private final Vocabulary vocabulary;
-    private final Map<Pair<Integer, Integer>, Integer> merges;
+    private final MergeTable merges;
+    private final int[] charToToken; // single char tokens, -1 if none; covers the byte-level alphabet
+    private final ChunkCache chunkCache; // null if disabled
     private final Map<String, Integer> specialTokens;
 
     public Map<String, Integer> getSpecialTokens() {
@@ -39,20 +48,33 @@ public class Tokenizer {
     }
 
     public Tokenizer(Vocabulary vocabulary, List<Pair<Integer, Integer>> merges, String acceptingPattern, Map<String, Integer> specialTokens) {
+        this(vocabulary, merges, acceptingPattern, specialTokens, CHUNK_CACHE_SIZE);
+    }
+
+    /**
+     * @param chunkCacheSize capacity of the {@link ChunkCache}, 0 to disable it
+     */
+    public Tokenizer(Vocabulary vocabulary, List<Pair<Integer, Integer>> merges, String acceptingPattern, Map<String, Integer> specialTokens, int chunkCacheSize) {
         this.vocabulary = vocabulary;
+        this.chunkCache = chunkCacheSize > 0 ? new ChunkCache(chunkCacheSize) : null;
         this.compiledPattern = acceptingPattern != null ? Pattern.compile(acceptingPattern) : null;
+        this.llama3PreTokenizer = Llama3PreTokenizer.PATTERN.equals(acceptingPattern);
         this.specialTokens = new HashMap<>(specialTokens);
-        this.merges = new HashMap<>();
+        this.merges = new MergeTable(merges.size());
         for (Pair<Integer, Integer> pair : merges) {
             int firstIndex = pair.first();
             int secondIndex = pair.second();
             int mergeIndex = vocabulary.getIndex(vocabulary.get(firstIndex) + vocabulary.get(secondIndex)).orElseThrow();
-            this.merges.put(pair, mergeIndex);
+            this.merges.put(firstIndex, secondIndex, mergeIndex);
+        }
+        this.charToToken = new int[512];
+        for (char c = 0; c < charToToken.length; ++c) {
+            charToToken[c] = vocabulary.getIndex(String.valueOf(c)).orElse(-1);
         }
     }
 
     private int[] encodeImpl(String text) {
-        return encode(text, Set.of()).stream().mapToInt(i -> i).toArray();
+        return encodeOrdinaryIds(text); // same as encode(text, Set.of()), without boxing
     }
 
     /**
@@ -97,76 +119,324 @@ public class Tokenizer {
         return ids;
     }
 
-    private static List<String> findAll(Pattern pattern, String text) {
-        Matcher matcher = pattern.matcher(text);
-        return matcher.results().map(MatchResult::group).toList();
-    }
-
     /**
      * Encoding that ignores any special tokens.
      */
     public List<Integer> encodeOrdinary(String text) {
+        int[] encoded = encodeOrdinaryIds(text);
+        List<Integer> ids = new ArrayList<>(encoded.length);
+        addAll(ids, encoded);
+        return ids;
+    }
+
+    private int[] encodeOrdinaryIds(String text) {
+        if (text.length() >= PARALLEL_THRESHOLD && ForkJoinPool.getCommonPoolParallelism() > 1) {
+            return encodeParallel(text);
+        }
+        return encodeSequential(text);
+    }
+
+    int[] encodeSequential(String text) {
         // split text into chunks of text by categories defined in regex pattern
-        List<String> textChunks = findAll(compiledPattern, text);
         // all chunks of text are encoded separately, then results are joined
-        List<Integer> ids = new ArrayList<>();
-        for (String chunk : textChunks) {
-            List<Integer> chunkIds = encodeChunk(chunk);
-            ids.addAll(chunkIds);
+        IntList ids = new IntList(text.length() / 2);
+        if (llama3PreTokenizer) {
+            for (int start = 0, end; start < text.length(); start = end) {
+                end = Llama3PreTokenizer.chunkEnd(text, start);
+                ids.addAll(encodeCachedChunk(text.substring(start, end)));
+            }
+        } else {
+            Matcher matcher = compiledPattern.matcher(text);
+            while (matcher.find()) {
+                ids.addAll(encodeCachedChunk(matcher.group()));
+            }
+        }
+        return ids.toArray();
+    }
+
+    /**
+     * Same as {@link #encodeSequential(String)}, on the common {@link ForkJoinPool}.
+     * BPE never merges across chunks: the chunk bounds are found in one sequential pass (cheap, no merges), then
+     * runs of {@link #SEGMENT_CHUNKS} chunks are encoded in parallel and the results stitched in order.
+     */
+    int[] encodeParallel(String text) {
+        IntList bounds = new IntList(text.length() / 2); // start, end of every chunk
+        if (llama3PreTokenizer) {
+            for (int start = 0, end; start < text.length(); start = end) {
+                end = Llama3PreTokenizer.chunkEnd(text, start);
+                bounds.add(start);
+                bounds.add(end);
+            }
+        } else {
+            Matcher matcher = compiledPattern.matcher(text);
+            while (matcher.find()) {
+                bounds.add(matcher.start());
+                bounds.add(matcher.end());
+            }
+        }
+        int chunkCount = bounds.size() / 2;
+        int segmentCount = (chunkCount + SEGMENT_CHUNKS - 1) / SEGMENT_CHUNKS;
+        int[][] segments = new int[segmentCount][];
+        IntStream.range(0, segmentCount).parallel().forEach(s -> {
+            int first = s * SEGMENT_CHUNKS;
+            int last = Math.min(first + SEGMENT_CHUNKS, chunkCount);
+            IntList ids = new IntList(2 * (last - first));
+            for (int i = first; i < last; ++i) {
+                ids.addAll(encodeCachedChunk(text.substring(bounds.get(2 * i), bounds.get(2 * i + 1))));
+            }
+            segments[s] = ids.toArray();
+        });
+        IntList ids = new IntList(text.length() / 2);
+        for (int[] segment : segments) {
+            ids.addAll(segment);
+        }
+        return ids.toArray();
+    }
+
+    /**
+     * Encodes the texts in parallel on the common {@link ForkJoinPool}, same as {@link #encode(String)} on each.
+     */
+    public List<int[]> encodeBatch(List<String> texts) {
+        return texts.parallelStream().map(this::encode).toList();
+    }
+
+    /**
+     * The chunk encoding cache, null if disabled.
+     */
+    public ChunkCache chunkCache() {
+        return chunkCache;
+    }
+
+    private int[] encodeCachedChunk(String chunk) {
+        if (chunkCache == null || chunk.length() > ChunkCache.MAX_CHUNK_LENGTH) {
+            return encodeChunk(chunk);
+        }
+        int[] ids = chunkCache.get(chunk);
+        if (ids == null) {
+            ids = encodeChunk(chunk);
+            chunkCache.put(chunk, ids);
         }
         return ids;
     }
 
-    private Map<Pair<Integer, Integer>, Integer> getStats(List<Integer> ids) {
-        Map<Pair<Integer, Integer>, Integer> map = new HashMap<>();
-        for (int i = 0; i + 1 < ids.size(); i++) {
-            Pair<Integer, Integer> key = new Pair<>(ids.get(i), ids.get(i + 1));
-            map.put(key, map.getOrDefault(key, 0) + 1);
+    private static void addAll(List<Integer> ids, int[] chunkIds) {
+        for (int id : chunkIds) {
+            ids.add(id);
         }
-        return map;
     }
 
-    private List<Integer> encodeChunk(String chunk) {
-        // return the token ids
+    // Growable int[], token ids without boxing.
+    private static final class IntList {
+        private int[] values;
+        private int size;
+
+        IntList(int initialCapacity) {
+            this.values = new int[Math.max(16, initialCapacity)];
+        }
+
+        int size() {
+            return size;
+        }
+
+        int get(int index) {
+            return values[index];
+        }
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, 2 * size);
+            }
+            values[size++] = value;
+        }
+
+        void addAll(int[] array) {
+            if (size + array.length > values.length) {
+                values = Arrays.copyOf(values, Math.max(2 * values.length, size + array.length));
+            }
+            System.arraycopy(array, 0, values, size, array.length);
+            size += array.length;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+
+    private int tokenOf(String chunk, char c) {
+        int tokenIndex = c < charToToken.length ? charToToken[c] : vocabulary.getIndex(String.valueOf(c)).orElse(-1);
+        if (tokenIndex < 0) {
+            throw new NoSuchElementException("Token or special token \"%s\" not present, failed on \"%c\".".formatted(chunk, c));
+        }
+        return tokenIndex;
+    }
+
+    /**
+     * Byte pair encoding of a chunk: repeatedly merges all the occurrences, left to right, of the pair with the
+     * lowest merge index, until no pair can be merged.
+     * <p>
+     * The tokens form a linked list over {@code int[]} arrays (a merged token takes the place of the left one) and
+     * the mergeable pairs are in a min-heap ordered by (merge index, position), O(n log n) instead of a full rescan
+     * per merge. Pairs created while merging a pair are only queued once all its occurrences are merged, as the
+     * rescan would; ties between different pairs with the same merge index are broken by position.
+     */
+    int[] encodeChunk(String chunk) {
         // let's begin. first, convert all bytes to integers in range 0..255
-        List<Integer> ids = new ArrayList<>();
-        for (int b : chunk.toCharArray()) {
-            int tokenIndex = this.vocabulary.getIndex(String.valueOf((char) b)).orElseThrow(() -> new NoSuchElementException("Token or special token \"%s\" not present, failed on \"%c\".".formatted(chunk, b)));
-            ids.add(tokenIndex);
-        }
-
-        while (ids.size() >= 2) {
-            // find the pair with the lowest merge index
-            Map<Pair<Integer, Integer>, Integer> stats = getStats(ids);
-            Pair<Integer, Integer> pair = stats.keySet().stream().min(Comparator.comparingInt(key -> this.merges.getOrDefault(key, Integer.MAX_VALUE))).orElseThrow();
-            // subtle: if there are no more merges available, the key will
-            // result in an inf for every single pair, and the min will be
-            // just the first pair in the list, arbitrarily
-            // we can detect this terminating case by a membership check
-            if (!this.merges.containsKey(pair)) {
-                break; // nothing else can be merged anymore
+        int n = chunk.length();
+        int[] ids = new int[n];
+        for (int i = 0; i < n; ++i) {
+            ids[i] = tokenOf(chunk, chunk.charAt(i));
+        }
+        if (n < 2) {
+            return ids;
+        }
+
+        int[] prev = new int[n];
+        int[] next = new int[n];
+        for (int i = 0; i < n; ++i) {
+            prev[i] = i - 1;
+            next[i] = i + 1 < n ? i + 1 : -1;
+        }
+        LongHeap heap = new LongHeap(n);
+        for (int i = 0; i + 1 < n; ++i) {
+            int merged = merges.get(ids[i], ids[i + 1]);
+            if (merged >= 0) {
+                heap.push(entry(merged, i));
             }
-            // otherwise let's merge the best pair (lowest merge index)
-            int idx = this.merges.get(pair);
-            ids = merge(ids, pair, idx);
         }
-        return ids;
+
+        LongHeap pending = new LongHeap(8);
+        int length = n;
+        while (!heap.isEmpty()) {
+            long top = heap.pop();
+            int rank = (int) (top >>> 32);
+            int position = (int) top;
+            if (mergeAt(ids, next, position) != rank) {
+                continue; // stale, one of the tokens was merged since
+            }
+            int left = ids[position];
+            int right = ids[next[position]];
+            // all the occurrences of (left, right), in order
+            while (true) {
+                merge(ids, prev, next, position, rank, pending);
+                length--;
+                position = -1;
+                while (!heap.isEmpty() && (int) (heap.peek() >>> 32) == rank) {
+                    long entry = heap.pop();
+                    int p = (int) entry;
+                    if (mergeAt(ids, next, p) != rank) {
+                        continue;
+                    }
+                    if (ids[p] == left && ids[next[p]] == right) {
+                        position = p;
+                        break;
+                    }
+                    pending.push(entry); // same merge index, another pair
+                }
+                if (position < 0) {
+                    break;
+                }
+            }
+            while (!pending.isEmpty()) {
+                heap.push(pending.pop());
+            }
+        }
+
+        int[] result = new int[length];
+        int j = 0;
+        for (int i = 0; i != -1; i = next[i]) {
+            result[j++] = ids[i];
+        }
+        assert j == length;
+        return result;
     }
 
-    private static List<Integer> merge(List<Integer> ids, Pair<Integer, Integer> pair, int idx) {
-        List<Integer> newids = new ArrayList<>();
-        int i = 0;
-        while (i < ids.size()) {
-            // if not at the very last position AND the pair matches, replace it
-            if (ids.get(i).equals(pair.first()) && i < ids.size() - 1 && ids.get(i + 1).equals(pair.second())) {
-                newids.add(idx);
-                i += 2;
-            } else {
-                newids.add(ids.get(i));
-                i += 1;
+    private static long entry(int merged, int position) {
+        return ((long) merged << 32) | position;
+    }
+
+    // The token the pair at position merges into, -1 if none.
+    private int mergeAt(int[] ids, int[] next, int position) {
+        if (ids[position] < 0 || next[position] < 0) {
+            return -1;
+        }
+        return merges.get(ids[position], ids[next[position]]);
+    }
+
+    // Replaces the pair at position by the merged token, queues the pairs it forms with its neighbors.
+    private void merge(int[] ids, int[] prev, int[] next, int position, int merged, LongHeap pending) {
+        int right = next[position];
+        ids[position] = merged;
+        ids[right] = -1;
+        next[position] = next[right];
+        if (next[right] >= 0) {
+            prev[next[right]] = position;
+        }
+        if (prev[position] >= 0) {
+            int m = mergeAt(ids, next, prev[position]);
+            if (m >= 0) {
+                pending.push(entry(m, prev[position]));
+            }
+        }
+        int m = mergeAt(ids, next, position);
+        if (m >= 0) {
+            pending.push(entry(m, position));
+        }
+    }
+
+    /**
+     * Binary min-heap of {@code long}s.
+     */
+    private static final class LongHeap {
+        private long[] heap;
+        private int size;
+
+        LongHeap(int initialCapacity) {
+            this.heap = new long[Math.max(1, initialCapacity)];
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        long peek() {
+            return heap[0];
+        }
+
+        void push(long value) {
+            if (size == heap.length) {
+                heap = Arrays.copyOf(heap, 2 * size);
+            }
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (heap[parent] <= value) {
+                    break;
+                }
+                heap[i] = heap[parent];
+                i = parent;
+            }
+            heap[i] = value;
+        }
+
+        long pop() {
+            long min = heap[0];
+            long last = heap[--size];
+            int i = 0;
+            int half = size >>> 1;
+            while (i < half) {
+                int child = 2 * i + 1;
+                if (child + 1 < size && heap[child + 1] < heap[child]) {
+                    child++;
+                }
+                if (last <= heap[child]) {
+                    break;
+                }
+                heap[i] = heap[child];
+                i = child;
             }
+            heap[i] = last;
+            return min;
         }
-        return newids;
     }
 
     public String decodeImpl(List<Integer> tokens) {
@@ -0,0 +1,168 @@
+package org.llamadrama.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongConsumer;
+
+/**
+ * Fixed pool of compute threads for the data-parallel loops of the inference, isolated from the common
+ * {@link java.util.concurrent.ForkJoinPool}.
+ * <p>
+ * A range is split statically into one contiguous chunk per thread, the calling thread runs the first chunk.
+ * Chunks are rounded to {@link #GRAIN} elements (a cache line of floats) so that threads do not write into
+ * the same cache lines of the output. Between jobs, workers spin for a short while before parking: during
+ * decoding the next matmul usually arrives before they park, which avoids the wake-up latency.
+ * <p>
+ * One job runs at a time, concurrent callers wait for the pool; nested calls from a worker run inline.
+ */
+public final class ComputePool {
+
+    static final int GRAIN = 16;
+    private static final int SPIN_ITERATIONS = 1 << 14;
+
+    private static final ComputePool SHARED = new ComputePool(Integer.getInteger("llama.Threads", Runtime.getRuntime().availableProcessors()));
+
+    public static ComputePool shared() {
+        return SHARED;
+    }
+
+    private final int parallelism;
+    private final Thread[] workers;
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // Current job, published by the volatile write to generation.
+    private LongConsumer action;
+    private long start;
+    private long chunkSize;
+    private long end;
+    private volatile long generation;
+
+    private final AtomicInteger pending = new AtomicInteger();
+    private volatile Thread waiter;
+    private volatile Throwable failure;
+
+    public ComputePool(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism " + parallelism);
+        }
+        this.parallelism = parallelism;
+        this.workers = new Thread[parallelism - 1];
+        for (int i = 0; i < workers.length; ++i) {
+            int chunk = i + 1;
+            workers[i] = new Worker(() -> workerLoop(chunk), "llama-compute-" + chunk);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    public int parallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Runs {@code action} for every index of [startInclusive, endExclusive) and returns once all are done.
+     */
+    public void parallelFor(long startInclusive, long endExclusive, LongConsumer action) {
+        long n = endExclusive - startInclusive;
+        if (n <= 0) {
+            return;
+        }
+        if (n == 1 || parallelism == 1 || Thread.currentThread() instanceof Worker || lock.isHeldByCurrentThread()) {
+            // Nothing to split, or a nested call.
+            runRange(action, startInclusive, endExclusive);
+            return;
+        }
+        lock.lock();
+        try {
+            long chunk = (n + parallelism - 1) / parallelism;
+            if (chunk > GRAIN) {
+                chunk = (chunk + GRAIN - 1) / GRAIN * GRAIN;
+            }
+            this.action = action;
+            this.start = startInclusive;
+            this.chunkSize = chunk;
+            this.end = endExclusive;
+            this.failure = null;
+            this.waiter = Thread.currentThread();
+            pending.set(workers.length);
+            generation++; // publishes the job
+            for (Thread worker : workers) {
+                LockSupport.unpark(worker);
+            }
+
+            try {
+                runChunk(0);
+            } catch (Throwable t) {
+                failure = t;
+            }
+            // The workers must be done with the job before the next one can be published.
+            awaitWorkers();
+            this.action = null;
+
+            Throwable t = failure;
+            if (t != null) {
+                if (t instanceof RuntimeException e) {
+                    throw e;
+                }
+                if (t instanceof Error e) {
+                    throw e;
+                }
+                throw new RuntimeException(t);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void runChunk(int chunk) {
+        long lo = start + chunk * chunkSize;
+        long hi = Math.min(end, lo + chunkSize);
+        runRange(action, lo, hi);
+    }
+
+    private static void runRange(LongConsumer action, long lo, long hi) {
+        for (long i = lo; i < hi; ++i) {
+            action.accept(i);
+        }
+    }
+
+    private void awaitWorkers() {
+        for (int spins = 0; pending.get() != 0; ++spins) {
+            if (spins < SPIN_ITERATIONS) {
+                Thread.onSpinWait();
+            } else {
+                LockSupport.park(this);
+            }
+        }
+    }
+
+    private void workerLoop(int chunk) {
+        long seen = 0;
+        while (true) {
+            for (int spins = 0; generation == seen; ++spins) {
+                if (spins < SPIN_ITERATIONS) {
+                    Thread.onSpinWait();
+                } else {
+                    LockSupport.park(this);
+                }
+            }
+            seen = generation;
+            try {
+                runChunk(chunk);
+            } catch (Throwable t) {
+                failure = t;
+            }
+            if (pending.decrementAndGet() == 0) {
+                LockSupport.unpark(waiter);
+            }
+        }
+    }
+
+    // Marker for the pool threads, used to run nested calls inline.
+    private static final class Worker extends Thread {
+        Worker(Runnable runnable, String name) {
+            super(runnable, name);
+        }
+    }
+}
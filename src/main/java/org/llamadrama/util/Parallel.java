@@ -2,16 +2,17 @@ package org.llamadrama.util;
 
 import java.util.function.IntConsumer;
 import java.util.function.LongConsumer;
-import java.util.stream.IntStream;
-import java.util.stream.LongStream;
 
+/**
+ * Data-parallel loops of the inference, run on the {@link ComputePool#shared() shared compute pool}.
+ */
 public final class Parallel {
     public static void parallelFor(int startInclusive, int endExclusive, IntConsumer action) {
         if (startInclusive == 0 && endExclusive == 1) {
             action.accept(0);
             return;
         }
-        IntStream.range(startInclusive, endExclusive).parallel().forEach(action);
+        ComputePool.shared().parallelFor(startInclusive, endExclusive, i -> action.accept((int) i));
     }
 
     public static void parallelForLong(long startInclusive, long endExclusive, LongConsumer action) {
@@ -19,6 +20,6 @@ public final class Parallel {
             action.accept(0);
             return;
         }
-        LongStream.range(startInclusive, endExclusive).parallel().forEach(action);
+        ComputePool.shared().parallelFor(startInclusive, endExclusive, action);
     }
 }
@@ -0,0 +1,202 @@
+package org.llamadrama.core;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+import org.llamadrama.gguf.GGMLType;
+import org.llamadrama.tensor.ArrayFloatTensor;
+import org.llamadrama.tensor.FloatTensor;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class AttentionTest {
+
+    // 4 query heads sharing 2 KV heads, head size 16
+    private static final LlamaModel.Configuration CONFIG =
+            new LlamaModel.Configuration(64, 128, 1, 4, 2, 8, 1100, 1e-5f, 500000f);
+
+    private static FloatTensor random(int size, Random random) {
+        FloatTensor tensor = ArrayFloatTensor.allocate(size);
+        for (int i = 0; i < size; ++i) {
+            tensor.setFloat(i, random.nextFloat() * 2 - 1);
+        }
+        return tensor;
+    }
+
+    // Random queries for the tokens [position, position + nTokens) and random keys/values for all the positions up to them.
+    private static LlamaModel.State randomState(int nTokens, int position) {
+        return randomState(nTokens, position, GGMLType.F32);
+    }
+
+    private static LlamaModel.State randomState(int nTokens, int position, GGMLType kvType) {
+        return randomState(nTokens, position, kvType, KVBlockPool.Layout.POSITION_MAJOR);
+    }
+
+    private static LlamaModel.State randomState(int nTokens, int position, GGMLType kvType, KVBlockPool.Layout layout) {
+        Random random = new Random(position);
+        KVBlockPool pool = new KVBlockPool(CONFIG, kvType, KVBlockPool.blocksFor(CONFIG.contextLength), layout);
+        LlamaModel.State state = new LlamaModel.State(CONFIG, nTokens, pool);
+        int kvDim = (CONFIG.dim * CONFIG.numberOfKeyValueHeads) / CONFIG.numberOfHeads;
+        state.kvCache.ensureCapacity(position + nTokens);
+        for (int p = 0; p < position + nTokens; ++p) {
+            state.kvCache.store(0, p, random(kvDim, random), random(kvDim, random));
+        }
+        for (int t = 0; t < nTokens; ++t) {
+            random(CONFIG.dim, random).copyTo(0, state.q[t], 0, CONFIG.dim);
+        }
+        return state;
+    }
+
+    private static void assertSameOutput(LlamaModel.State expected, LlamaModel.State actual, int nTokens) {
+        for (int t = 0; t < nTokens; ++t) {
+            for (int i = 0; i < CONFIG.dim; ++i) {
+                assertEquals(expected.xb[t].getFloat(i), actual.xb[t].getFloat(i), 1e-5f, "token " + t + ", index " + i);
+            }
+        }
+    }
+
+    // Materializes the scores and normalizes them with a regular softmax.
+    private static void referenceAttention(LlamaModel.State state, int nTokens, int position) {
+        referenceAttention(state, nTokens, position, new double[position + nTokens]);
+    }
+
+    // Also adds the softmax weights of all the (token, head) pairs to mass.
+    private static void referenceAttention(LlamaModel.State state, int nTokens, int position, double[] mass) {
+        int headSize = CONFIG.headSize;
+        int kvMul = CONFIG.numberOfHeads / CONFIG.numberOfKeyValueHeads;
+        KVCache cache = state.kvCache;
+        for (int t = 0; t < nTokens; ++t) {
+            for (int h = 0; h < CONFIG.numberOfHeads; ++h) {
+                int length = position + t + 1;
+                double[] scores = new double[length];
+                double max = Double.NEGATIVE_INFINITY;
+                for (int p = 0; p < length; ++p) {
+                    double score = 0;
+                    for (int i = 0; i < headSize; ++i) {
+                        score += state.q[t].getFloat(h * headSize + i) * cache.keys(p).getFloat(cache.offset(0, p, h / kvMul) + i);
+                    }
+                    scores[p] = score / Math.sqrt(headSize);
+                    max = Math.max(max, scores[p]);
+                }
+                double sum = 0;
+                for (int p = 0; p < length; ++p) {
+                    scores[p] = Math.exp(scores[p] - max);
+                    sum += scores[p];
+                }
+                for (int p = 0; p < length; ++p) {
+                    mass[p] += scores[p] / sum;
+                }
+                for (int i = 0; i < headSize; ++i) {
+                    double value = 0;
+                    for (int p = 0; p < length; ++p) {
+                        value += scores[p] / sum * cache.values(p).getFloat(cache.offset(0, p, h / kvMul) + i);
+                    }
+                    state.xb[t].setFloat(h * headSize + i, (float) value);
+                }
+            }
+        }
+    }
+
+    @Test
+    void testTiledMatchesReference() {
+        // prefill from scratch (tiles masked for the first tokens) and continuations not aligned to the tile size
+        int[][] cases = {{0, 1}, {0, 40}, {5, 3}, {Attention.TILE - 2, 4}, {2 * Attention.TILE + 17, 33}, {1000, 1}};
+        for (int[] c : cases) {
+            int position = c[0];
+            int nTokens = c[1];
+            LlamaModel.State expected = randomState(nTokens, position);
+            LlamaModel.State actual = randomState(nTokens, position);
+            referenceAttention(expected, nTokens, position);
+            Attention.tiled(CONFIG, actual, 0, nTokens, position);
+            assertSameOutput(expected, actual, nTokens);
+        }
+    }
+
+    @Test
+    void testSplitKMatchesReference() {
+        // position not aligned to the chunk size, the last chunk is partial and some chunks are masked for the first tokens
+        for (int position : new int[]{0, 5, Attention.SPLIT_K_CHUNK - 1, 3 * Attention.SPLIT_K_CHUNK + 17}) {
+            int nTokens = 3;
+            LlamaModel.State expected = randomState(nTokens, position);
+            LlamaModel.State actual = randomState(nTokens, position);
+            referenceAttention(expected, nTokens, position);
+            Attention.splitK(CONFIG, actual, 0, nTokens, position);
+            assertSameOutput(expected, actual, nTokens);
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(value = GGMLType.class, names = {"F16", "BF16", "Q8_0"})
+    void testCompressedKVCache(GGMLType kvType) {
+        // the reference reads the decoded cache, both kernels must match it up to float rounding
+        int position = Attention.SPLIT_K_CHUNK + 40;
+        int nTokens = 5;
+        LlamaModel.State expected = randomState(nTokens, position, kvType);
+        LlamaModel.State tiled = randomState(nTokens, position, kvType);
+        LlamaModel.State splitK = randomState(nTokens, position, kvType);
+        referenceAttention(expected, nTokens, position);
+        Attention.tiled(CONFIG, tiled, 0, nTokens, position);
+        Attention.splitK(CONFIG, splitK, 0, nTokens, position);
+        assertSameOutput(expected, tiled, nTokens);
+        assertSameOutput(expected, splitK, nTokens);
+    }
+
+    @ParameterizedTest
+    @EnumSource(value = GGMLType.class, names = {"F32", "F16"})
+    void testHeadMajorLayout(GGMLType kvType) {
+        int position = Attention.SPLIT_K_CHUNK + 40;
+        int nTokens = 5;
+        LlamaModel.State expected = randomState(nTokens, position, kvType, KVBlockPool.Layout.HEAD_MAJOR);
+        LlamaModel.State tiled = randomState(nTokens, position, kvType, KVBlockPool.Layout.HEAD_MAJOR);
+        LlamaModel.State splitK = randomState(nTokens, position, kvType, KVBlockPool.Layout.HEAD_MAJOR);
+        referenceAttention(expected, nTokens, position);
+        Attention.tiled(CONFIG, tiled, 0, nTokens, position);
+        Attention.splitK(CONFIG, splitK, 0, nTokens, position);
+        assertSameOutput(expected, tiled, nTokens);
+        assertSameOutput(expected, splitK, nTokens);
+        // same cache contents as the default layout
+        LlamaModel.State positionMajor = randomState(nTokens, position, kvType);
+        referenceAttention(positionMajor, nTokens, position);
+        assertSameOutput(positionMajor, expected, nTokens);
+    }
+
+    @Test
+    void testTiledAccumulatesAttentionMass() {
+        int position = 2 * Attention.TILE + 17;
+        int nTokens = 33;
+        LlamaModel.State expected = randomState(nTokens, position);
+        double[] mass = new double[position + nTokens];
+        referenceAttention(expected, nTokens, position, mass);
+
+        LlamaModel.State state = randomState(nTokens, position);
+        HeavyHitterEviction kvEviction = new HeavyHitterEviction(CONFIG, CONFIG.contextLength, 0);
+        LlamaModel.State actual = new LlamaModel.State(CONFIG, nTokens, state.kvCache.pool(), null, kvEviction);
+        for (int b = 0; b < state.kvCache.numberOfBlocks(); ++b) {
+            actual.kvCache.append(state.kvCache.block(b));
+        }
+        for (int t = 0; t < nTokens; ++t) {
+            state.q[t].copyTo(0, actual.q[t], 0, CONFIG.dim);
+        }
+        Attention.attention(CONFIG, actual, 0, nTokens, position);
+        assertSameOutput(expected, actual, nTokens);
+        for (int p = 0; p < position + nTokens; ++p) {
+            assertEquals(mass[p], kvEviction.score(p), 1e-4, "position " + p);
+        }
+    }
+
+    @Test
+    void testAutoSplitKIsForDecodeOnly() {
+        assumeTrue("auto".equals(System.getProperty("llama.SplitKAttention", "auto")));
+        // a single KV head never occupies the pool
+        LlamaModel.Configuration config = new LlamaModel.Configuration(64, 128, 1, 4, 1, 8, 2048, 1e-5f, 500000f);
+        int position = 4 * Attention.SPLIT_K_CHUNK;
+        assertTrue(Attention.useSplitK(config, 1, position));
+        assertFalse(Attention.useSplitK(config, 2, position)); // the scratch would grow with the batch
+        assertFalse(Attention.useSplitK(config, 1, 16));
+    }
+}
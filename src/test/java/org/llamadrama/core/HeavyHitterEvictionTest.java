@@ -0,0 +1,96 @@
+package org.llamadrama.core;
+
+import org.junit.jupiter.api.Test;
+import org.llamadrama.gguf.GGMLType;
+import org.llamadrama.tensor.ArrayFloatTensor;
+import org.llamadrama.tensor.FloatTensor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class HeavyHitterEvictionTest {
+
+    private static final int BLOCK_SIZE = KVBlockPool.BLOCK_SIZE;
+
+    // 2 layers, 4 query heads sharing 2 KV heads of size 16
+    private static final LlamaModel.Configuration CONFIG =
+            new LlamaModel.Configuration(64, 128, 2, 4, 2, 32, 4 * BLOCK_SIZE, 1e-5f, 10000f);
+
+    private static final int KV_DIM = 32;
+
+    // Heavy hitters every 3 positions, the score of the others grows with the position.
+    private static float score(int position) {
+        return position % 3 == 0 ? 10 + position : position * 0.01f;
+    }
+
+    @Test
+    void testLowestScoresAreEvictedOutsideOfTheRecentWindow() {
+        LlamaModel model = LlamaModelTest.randomModel(CONFIG, 1);
+        int budget = 2 * BLOCK_SIZE;
+        int recent = BLOCK_SIZE / 2;
+        HeavyHitterEviction kvEviction = new HeavyHitterEviction(CONFIG, budget, recent);
+        LlamaModel.State state = new LlamaModel.State(CONFIG, 1, new KVBlockPool(CONFIG, GGMLType.F32, 4), null, kvEviction);
+        int length = budget;
+        state.kvCache.ensureCapacity(length);
+        float[] weights = new float[length];
+        for (int p = 0; p < length; ++p) {
+            FloatTensor value = ArrayFloatTensor.allocate(KV_DIM);
+            value.fillInPlace(0, KV_DIM, p);
+            for (int layer = 0; layer < CONFIG.numberOfLayers; ++layer) {
+                state.kvCache.store(layer, p, ArrayFloatTensor.allocate(KV_DIM), value);
+            }
+            weights[p] = score(p);
+        }
+        kvEviction.accumulate(weights, length);
+
+        assertEquals(length - 1, kvEviction.makeRoom(model, state, length - 1, 1)); // fits
+        int left = kvEviction.makeRoom(model, state, length, 1);
+        assertEquals(length - BLOCK_SIZE, left); // a block at once
+        assertEquals(BLOCK_SIZE, kvEviction.evictedPositions());
+
+        // the 64 light candidates are evicted, the 32 heavy hitters and the recent window are left
+        List<Integer> expected = new ArrayList<>();
+        int candidates = length - recent;
+        for (int p = 0; p < length; ++p) {
+            if (p >= candidates || p % 3 == 0) {
+                expected.add(p);
+            }
+        }
+        assertEquals(left, expected.size());
+        for (int p = 0; p < left; ++p) {
+            int original = expected.get(p);
+            for (int layer = 0; layer < CONFIG.numberOfLayers; ++layer) {
+                assertEquals((float) original, state.kvCache.values(p).getFloat(state.kvCache.offset(layer, p, 0)), "position " + p);
+            }
+            assertEquals(score(original), kvEviction.score(p));
+        }
+        assertEquals(0f, kvEviction.score(left));
+
+        // the attention mass is conserved: evicted + cached scores = accumulated scores
+        double total = 0;
+        double evicted = 0;
+        for (int p = 0; p < length; ++p) {
+            total += score(p);
+            if (!expected.contains(p)) {
+                evicted += score(p);
+            }
+        }
+        assertEquals(evicted / total, kvEviction.evictedMass(), 1e-6);
+        // evicts all the candidates left, the heavy hitters, the recent window is kept
+        assertEquals(recent, kvEviction.makeRoom(model, state, left, budget - left + 1));
+        double cached = 0;
+        for (int p = candidates; p < length; ++p) {
+            cached += score(p);
+        }
+        assertEquals((total - cached) / total, kvEviction.evictedMass(), 1e-6);
+    }
+
+    @Test
+    void testInvalidBudget() {
+        assertThrows(IllegalArgumentException.class, () -> new HeavyHitterEviction(CONFIG, CONFIG.contextLength + 1, 0));
+        assertThrows(IllegalArgumentException.class, () -> new HeavyHitterEviction(CONFIG, BLOCK_SIZE, 1));
+    }
+}
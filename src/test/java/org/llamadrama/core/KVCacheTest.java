@@ -0,0 +1,126 @@
+package org.llamadrama.core;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+import org.llamadrama.gguf.GGMLType;
+import org.llamadrama.math.RoPE;
+import org.llamadrama.tensor.ArrayFloatTensor;
+import org.llamadrama.tensor.FloatTensor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class KVCacheTest {
+
+    // 2 layers, 2 KV heads of size 16
+    private static final LlamaModel.Configuration CONFIG =
+            new LlamaModel.Configuration(64, 128, 2, 4, 2, 8, 4 * KVBlockPool.BLOCK_SIZE, 1e-5f, 500000f);
+
+    private static final int KV_DIM = 32;
+
+    private static FloatTensor filled(float value) {
+        FloatTensor tensor = ArrayFloatTensor.allocate(KV_DIM);
+        tensor.fillInPlace(0, KV_DIM, value);
+        return tensor;
+    }
+
+    @Test
+    void testBlocksAreTakenOnDemand() {
+        KVBlockPool pool = new KVBlockPool(CONFIG, GGMLType.F32, 8);
+        KVCache cache = new KVCache(CONFIG, pool);
+        assertEquals(0, pool.usedBlocks());
+        cache.ensureCapacity(1);
+        assertEquals(1, pool.usedBlocks());
+        cache.ensureCapacity(KVBlockPool.BLOCK_SIZE);
+        assertEquals(1, pool.usedBlocks());
+        cache.ensureCapacity(KVBlockPool.BLOCK_SIZE + 1);
+        assertEquals(2, pool.usedBlocks());
+        assertEquals(2 * KVBlockPool.BLOCK_SIZE, cache.capacity());
+        assertThrows(IllegalArgumentException.class, () -> cache.ensureCapacity(CONFIG.contextLength + 1));
+        cache.release();
+        assertEquals(0, pool.usedBlocks());
+        assertEquals(0, cache.capacity());
+    }
+
+    @ParameterizedTest
+    @EnumSource(KVBlockPool.Layout.class)
+    void testStoreFollowsTheBlockTable(KVBlockPool.Layout layout) {
+        KVBlockPool pool = new KVBlockPool(CONFIG, GGMLType.F32, 8, layout);
+        KVCache cache = new KVCache(CONFIG, pool);
+        int length = 3 * KVBlockPool.BLOCK_SIZE - 5;
+        cache.ensureCapacity(length);
+        for (int layer = 0; layer < CONFIG.numberOfLayers; ++layer) {
+            for (int p = 0; p < length; ++p) {
+                cache.store(layer, p, filled(layer * 10_000 + p), filled(-(layer * 10_000 + p)));
+            }
+        }
+        for (int layer = 0; layer < CONFIG.numberOfLayers; ++layer) {
+            for (int p = 0; p < length; ++p) {
+                for (int kvHead = 0; kvHead < CONFIG.numberOfKeyValueHeads; ++kvHead) {
+                    int offset = cache.offset(layer, p, kvHead);
+                    for (int i = 0; i < CONFIG.headSize; ++i) {
+                        assertEquals(layer * 10_000 + p, cache.keys(p).getFloat(offset + i));
+                        assertEquals(-(layer * 10_000 + p), cache.values(p).getFloat(offset + i));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    void testPoolIsSharedAndBounded() {
+        KVBlockPool pool = new KVBlockPool(CONFIG, GGMLType.F32, 3);
+        KVCache first = new KVCache(CONFIG, pool);
+        KVCache second = new KVCache(CONFIG, pool);
+        first.ensureCapacity(2 * KVBlockPool.BLOCK_SIZE);
+        second.ensureCapacity(KVBlockPool.BLOCK_SIZE);
+        assertEquals(3, pool.usedBlocks());
+        assertThrows(IllegalStateException.class, () -> second.ensureCapacity(KVBlockPool.BLOCK_SIZE + 1));
+        // released blocks are reused
+        first.release();
+        second.ensureCapacity(3 * KVBlockPool.BLOCK_SIZE);
+        assertEquals(3, pool.usedBlocks());
+    }
+
+    // The key of position p: (1, 2, 3, ...) rotated for p as the forward pass would, the value holds p.
+    private static FloatTensor rotatedKey(RoPE rope, int position) {
+        FloatTensor key = ArrayFloatTensor.allocate(KV_DIM);
+        for (int i = 0; i < KV_DIM; ++i) {
+            key.setFloat(i, i + 1);
+        }
+        rope.rotate(key, 0, KV_DIM, rope.rotation(position));
+        return key;
+    }
+
+    @ParameterizedTest
+    @EnumSource(KVBlockPool.Layout.class)
+    void testShiftMovesAndReRotatesKeys(KVBlockPool.Layout layout) {
+        RoPE rope = new RoPE(CONFIG.headSize, CONFIG.ropeTheta, null, null);
+        KVBlockPool pool = new KVBlockPool(CONFIG, GGMLType.F32, 8, layout);
+        KVCache cache = new KVCache(CONFIG, pool);
+        int length = 3 * KVBlockPool.BLOCK_SIZE - 5;
+        cache.ensureCapacity(length);
+        for (int layer = 0; layer < CONFIG.numberOfLayers; ++layer) {
+            for (int p = 0; p < length; ++p) {
+                cache.store(layer, p, rotatedKey(rope, p), filled(p));
+            }
+        }
+        int keep = 3;
+        int discard = KVBlockPool.BLOCK_SIZE + 5;
+        cache.shift(keep, discard, length, rope);
+        assertEquals(2, pool.usedBlocks());
+        for (int layer = 0; layer < CONFIG.numberOfLayers; ++layer) {
+            for (int p = 0; p < length - discard; ++p) {
+                // the value moved, the key is the one the forward pass would have computed at the new position
+                float expectedValue = p < keep ? p : p + discard;
+                FloatTensor expectedKey = rotatedKey(rope, p);
+                for (int i = 0; i < KV_DIM; ++i) {
+                    int offset = cache.offset(layer, p, i / CONFIG.headSize) + i % CONFIG.headSize;
+                    assertEquals(expectedValue, cache.values(p).getFloat(offset));
+                    assertEquals(expectedKey.getFloat(i), cache.keys(p).getFloat(offset), 1e-3f);
+                }
+            }
+        }
+    }
+}
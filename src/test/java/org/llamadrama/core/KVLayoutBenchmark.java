@@ -0,0 +1,73 @@
+package org.llamadrama.core;
+
+import org.llamadrama.gguf.GGMLType;
+import org.llamadrama.tensor.ArrayFloatTensor;
+import org.llamadrama.tensor.FloatTensor;
+
+import java.util.Random;
+
+/**
+ * Decode attention (one token) over a long KV cache, with both {@link KVBlockPool.Layout layouts}.
+ * <p>
+ * Usage: {@code KVLayoutBenchmark [kvType] [context lengths...]}, defaults to F32 at 4k, 32k and 128k positions.
+ * One layer shaped as Llama 3 8B: 32 query heads, 8 KV heads of size 128. Needs ~1GB of heap at 128k positions.
+ */
+public class KVLayoutBenchmark {
+
+    private static final int WARMUP = 3;
+    private static final int ITERATIONS = 10;
+
+    public static void main(String[] args) {
+        GGMLType kvType = args.length > 0 ? Options.parseKVType(args[0]) : GGMLType.F32;
+        int[] contextLengths = {4 * 1024, 32 * 1024, 128 * 1024};
+        if (args.length > 1) {
+            contextLengths = new int[args.length - 1];
+            for (int i = 1; i < args.length; ++i) {
+                contextLengths[i - 1] = Integer.parseInt(args[i]);
+            }
+        }
+        System.out.printf("%-8s %-16s %12s %12s%n", "context", "layout", "ms/token", "GB/s");
+        for (int contextLength : contextLengths) {
+            for (KVBlockPool.Layout layout : KVBlockPool.Layout.values()) {
+                run(kvType, contextLength, layout);
+                System.gc();
+            }
+        }
+    }
+
+    private static void run(GGMLType kvType, int contextLength, KVBlockPool.Layout layout) {
+        LlamaModel.Configuration config = new LlamaModel.Configuration(4096, 14336, 1, 32, 8, 128256, contextLength, 1e-5f, 500000f);
+        int kvDim = (config.dim * config.numberOfKeyValueHeads) / config.numberOfHeads;
+        KVBlockPool pool = new KVBlockPool(config, kvType, KVBlockPool.blocksFor(contextLength), layout);
+        LlamaModel.State state = new LlamaModel.State(config, 1, pool);
+        Random random = new Random(42);
+        FloatTensor key = random(kvDim, random);
+        FloatTensor value = random(kvDim, random);
+        state.kvCache.ensureCapacity(contextLength);
+        for (int p = 0; p < contextLength; ++p) {
+            state.kvCache.store(0, p, key, value);
+        }
+        random(config.dim, random).copyTo(0, state.q[0], 0, config.dim);
+
+        int position = contextLength - 1;
+        for (int i = 0; i < WARMUP; ++i) {
+            Attention.attention(config, state, 0, 1, position);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; ++i) {
+            Attention.attention(config, state, 0, 1, position);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9 / ITERATIONS;
+        double bytes = 2.0 * kvType.byteSizeFor(contextLength * kvDim); // keys and values
+        System.out.printf("%-8d %-16s %12.3f %12.2f%n", contextLength, layout, seconds * 1e3, bytes / seconds / 1e9);
+        state.kvCache.release();
+    }
+
+    private static FloatTensor random(int size, Random random) {
+        FloatTensor tensor = ArrayFloatTensor.allocate(size);
+        for (int i = 0; i < size; ++i) {
+            tensor.setFloat(i, random.nextFloat() * 2 - 1);
+        }
+        return tensor;
+    }
+}
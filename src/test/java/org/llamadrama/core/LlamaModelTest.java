@@ -0,0 +1,141 @@
+package org.llamadrama.core;
+
+import org.junit.jupiter.api.Test;
+import org.llamadrama.gguf.GGMLType;
+import org.llamadrama.math.RoPE;
+import org.llamadrama.sampling.Sampler;
+import org.llamadrama.tensor.ArrayFloatTensor;
+import org.llamadrama.tensor.FloatTensor;
+import org.llamadrama.tensor.Q8_0ArrayFloatTensor;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LlamaModelTest {
+
+    // 2 layers, 4 query heads sharing 2 KV heads of size 16, 32 tokens
+    private static final LlamaModel.Configuration CONFIG =
+            new LlamaModel.Configuration(64, 128, 2, 4, 2, 32, 4 * KVBlockPool.BLOCK_SIZE, 1e-5f, 10000f);
+
+    private static FloatTensor random(Random random, int size) {
+        FloatTensor tensor = ArrayFloatTensor.allocate(size);
+        for (int i = 0; i < size; ++i) {
+            tensor.setFloat(i, (random.nextFloat() * 2 - 1) * 0.2f);
+        }
+        return tensor;
+    }
+
+    private static FloatTensor[] random(Random random, int layers, int size) {
+        FloatTensor[] tensors = new FloatTensor[layers];
+        for (int l = 0; l < layers; ++l) {
+            tensors[l] = random(random, size);
+        }
+        return tensors;
+    }
+
+    private static FloatBuffer ones(int size) {
+        float[] values = new float[size];
+        Arrays.fill(values, 1f);
+        return FloatBuffer.wrap(values);
+    }
+
+    // A model with random weights and no tokenizer, its states must be created directly.
+    static LlamaModel randomModel(LlamaModel.Configuration config, long seed) {
+        Random random = new Random(seed);
+        int dim = config.dim;
+        int kvDim = (config.dim * config.numberOfKeyValueHeads) / config.numberOfHeads;
+        int layers = config.numberOfLayers;
+        FloatBuffer[] norms = new FloatBuffer[layers];
+        for (int l = 0; l < layers; ++l) {
+            norms[l] = ones(dim);
+        }
+        LlamaModel.Weights weights = new LlamaModel.Weights(
+                random(random, config.vocabularySize * dim),
+                norms,
+                random(random, layers, dim * dim),
+                random(random, layers, kvDim * dim),
+                random(random, layers, kvDim * dim),
+                random(random, layers, dim * dim),
+                norms,
+                random(random, layers, config.hiddenDim * dim),
+                random(random, layers, dim * config.hiddenDim),
+                random(random, layers, config.hiddenDim * dim),
+                ones(dim),
+                new RoPE(config.headSize, config.ropeTheta, null, null),
+                random(random, config.vocabularySize * dim));
+        return new LlamaModel(config, null, weights);
+    }
+
+    private static List<Integer> prompt(int length) {
+        List<Integer> tokens = new ArrayList<>();
+        for (int i = 0; i < length; ++i) {
+            tokens.add((i * 7) % CONFIG.vocabularySize);
+        }
+        return tokens;
+    }
+
+    @Test
+    void testOnlyASingleTokenUsesQuantizedActivations() {
+        FloatTensor weight = FloatTensor.allocate(GGMLType.Q8_0, 2 * CONFIG.dim);
+        FloatTensor[] x = {ArrayFloatTensor.allocate(CONFIG.dim), ArrayFloatTensor.allocate(CONFIG.dim)};
+        FloatTensor[] xq = {Q8_0ArrayFloatTensor.allocate(CONFIG.dim), Q8_0ArrayFloatTensor.allocate(CONFIG.dim)};
+        assertSame(xq, LlamaModel.activationsFor(1, weight, x, xq));
+        // a batch goes through the GEMM, which needs float activations
+        assertSame(x, LlamaModel.activationsFor(2, weight, x, xq));
+        assertSame(x, LlamaModel.activationsFor(1, ArrayFloatTensor.allocate(2 * CONFIG.dim), x, xq));
+    }
+
+    @Test
+    void testStreamingWindowMatchesFullContextWhileItFits() {
+        LlamaModel model = randomModel(CONFIG, 1);
+        List<Integer> prompt = prompt(20);
+        List<Integer> expected = LlamaModel.generateTokens(model, new LlamaModel.State(CONFIG, 8), 0, prompt, Set.of(), 100, Sampler.ARGMAX, false, null);
+        List<Integer> actual = LlamaModel.generateTokens(model, new LlamaModel.State(CONFIG, 8), 0, prompt, Set.of(), 100, Sampler.ARGMAX, false, null,
+                new LlamaModel.StreamingWindow(4, 2 * KVBlockPool.BLOCK_SIZE));
+        assertEquals(100 - prompt.size() + 1, expected.size()); // the last token is sampled, not forwarded
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    void testStreamingWindowBoundsTheKVCache() {
+        LlamaModel model = randomModel(CONFIG, 2);
+        LlamaModel.StreamingWindow window = new LlamaModel.StreamingWindow(4, 2 * KVBlockPool.BLOCK_SIZE);
+        LlamaModel.State state = new LlamaModel.State(CONFIG, 8);
+        List<Integer> prompt = prompt(3 * KVBlockPool.BLOCK_SIZE); // longer than the window already
+        int maxTokens = 3 * CONFIG.contextLength;
+        List<Integer> generated = LlamaModel.generateTokens(model, state, 0, prompt, Set.of(), maxTokens, Sampler.ARGMAX, false, null, window);
+        assertEquals(maxTokens - prompt.size() + 1, generated.size());
+        assertTrue(state.kvCache.pool().usedBlocks() <= KVBlockPool.blocksFor(window.size()));
+    }
+
+    @Test
+    void testStreamingWindowMustFitTheContext() {
+        LlamaModel model = randomModel(CONFIG, 3);
+        LlamaModel.StreamingWindow window = new LlamaModel.StreamingWindow(4, CONFIG.contextLength);
+        assertThrows(IllegalArgumentException.class, () -> LlamaModel.generateTokens(model, new LlamaModel.State(CONFIG, 8), 0, prompt(4), Set.of(), -1, Sampler.ARGMAX, false, null, window));
+        assertThrows(IllegalArgumentException.class, () -> new LlamaModel.StreamingWindow(4, KVBlockPool.BLOCK_SIZE));
+    }
+
+    @Test
+    void testKVBudgetIsNeverExceeded() {
+        LlamaModel model = randomModel(CONFIG, 4);
+        int budget = 2 * KVBlockPool.BLOCK_SIZE;
+        HeavyHitterEviction kvEviction = new HeavyHitterEviction(CONFIG, budget, budget / 2);
+        // the pool cannot hold more than the budget
+        LlamaModel.State state = new LlamaModel.State(CONFIG, 8, new KVBlockPool(CONFIG, GGMLType.F32, KVBlockPool.blocksFor(budget)), null, kvEviction);
+        List<Integer> prompt = prompt(budget + 10);
+        int maxTokens = 2 * CONFIG.contextLength;
+        List<Integer> generated = LlamaModel.generateTokens(model, state, 0, prompt, Set.of(), maxTokens, Sampler.ARGMAX, false, null);
+        assertEquals(maxTokens - prompt.size() + 1, generated.size());
+        assertTrue(kvEviction.evictedPositions() >= maxTokens - budget);
+    }
+}
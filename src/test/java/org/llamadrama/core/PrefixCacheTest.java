@@ -0,0 +1,132 @@
+package org.llamadrama.core;
+
+import org.junit.jupiter.api.Test;
+import org.llamadrama.gguf.GGMLType;
+import org.llamadrama.tensor.ArrayFloatTensor;
+import org.llamadrama.tensor.FloatTensor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class PrefixCacheTest {
+
+    private static final int BLOCK_SIZE = KVBlockPool.BLOCK_SIZE;
+
+    // 1 layer, 2 KV heads of size 16
+    private static final LlamaModel.Configuration CONFIG =
+            new LlamaModel.Configuration(64, 128, 1, 4, 2, 8, 8 * BLOCK_SIZE, 1e-5f, 500000f);
+
+    private static final int KV_DIM = 32;
+
+    private static List<Integer> tokens(int first, int length) {
+        List<Integer> tokens = new ArrayList<>();
+        for (int i = 0; i < length; ++i) {
+            tokens.add(first + i);
+        }
+        return tokens;
+    }
+
+    // Stores the token id as key and value of every position, as the forward pass would.
+    private static KVCache computed(KVBlockPool pool, List<Integer> tokens) {
+        KVCache cache = new KVCache(CONFIG, pool);
+        cache.ensureWritable(0, tokens.size());
+        for (int p = 0; p < tokens.size(); ++p) {
+            FloatTensor kv = ArrayFloatTensor.allocate(KV_DIM);
+            kv.fillInPlace(0, KV_DIM, tokens.get(p));
+            cache.store(0, p, kv, kv);
+        }
+        return cache;
+    }
+
+    private static float key(KVCache cache, int position) {
+        return cache.keys(position).getFloat(cache.offset(0, position, 0));
+    }
+
+    @Test
+    void testLongestPrefixIsShared() {
+        KVBlockPool pool = new KVBlockPool(CONFIG, GGMLType.F32, 16);
+        PrefixCache prefixCache = new PrefixCache(pool, 16);
+        List<Integer> prompt = tokens(100, 2 * BLOCK_SIZE + 10);
+        KVCache first = computed(pool, prompt);
+        prefixCache.insert(prompt, first);
+        assertEquals(2, prefixCache.size()); // the partial block is not cached
+
+        KVCache second = new KVCache(CONFIG, pool);
+        assertEquals(2 * BLOCK_SIZE, prefixCache.attach(prompt, second));
+        assertSame(first.block(0), second.block(0));
+        assertSame(first.block(1), second.block(1));
+        assertEquals(3, pool.usedBlocks());
+
+        // The last token is always computed.
+        KVCache third = new KVCache(CONFIG, pool);
+        assertEquals(2 * BLOCK_SIZE - 1, prefixCache.attach(prompt.subList(0, 2 * BLOCK_SIZE), third));
+    }
+
+    @Test
+    void testDivergenceWithinABlockCopiesOnWrite() {
+        KVBlockPool pool = new KVBlockPool(CONFIG, GGMLType.F32, 16);
+        PrefixCache prefixCache = new PrefixCache(pool, 16);
+        List<Integer> prompt = tokens(100, 2 * BLOCK_SIZE);
+        KVCache first = computed(pool, prompt);
+        prefixCache.insert(prompt, first);
+
+        List<Integer> other = new ArrayList<>(prompt.subList(0, BLOCK_SIZE + 10));
+        other.addAll(tokens(5000, 20));
+        KVCache second = new KVCache(CONFIG, pool);
+        int cached = prefixCache.attach(other, second);
+        assertEquals(BLOCK_SIZE + 10, cached);
+        assertSame(first.block(1), second.block(1));
+
+        second.ensureWritable(cached, other.size());
+        assertSame(first.block(0), second.block(0));
+        assertNotSame(first.block(1), second.block(1));
+        FloatTensor kv = ArrayFloatTensor.allocate(KV_DIM);
+        kv.fillInPlace(0, KV_DIM, -1f);
+        second.store(0, cached, kv, kv);
+        for (int p = 0; p < cached; ++p) {
+            assertEquals((float) prompt.get(p), key(second, p));
+        }
+        assertEquals(-1f, key(second, cached));
+        // the cached block is untouched
+        assertEquals((float) prompt.get(cached), key(first, cached));
+    }
+
+    @Test
+    void testLeastRecentlyUsedBlocksAreEvictedOverBudget() {
+        KVBlockPool pool = new KVBlockPool(CONFIG, GGMLType.F32, 16);
+        PrefixCache prefixCache = new PrefixCache(pool, 2);
+        List<Integer> a = tokens(100, 2 * BLOCK_SIZE);
+        List<Integer> b = tokens(9000, BLOCK_SIZE + 1);
+        KVCache cacheA = computed(pool, a);
+        prefixCache.insert(a, cacheA);
+        KVCache cacheB = computed(pool, b);
+        prefixCache.insert(b, cacheB);
+        assertEquals(2, prefixCache.size());
+        cacheA.release();
+        cacheB.release();
+
+        // the second block of a was the least recently used leaf
+        assertEquals(BLOCK_SIZE, prefixCache.attach(a, new KVCache(CONFIG, pool)));
+        assertEquals(BLOCK_SIZE, prefixCache.attach(b, new KVCache(CONFIG, pool)));
+    }
+
+    @Test
+    void testExhaustedPoolReclaimsCachedBlocks() {
+        KVBlockPool pool = new KVBlockPool(CONFIG, GGMLType.F32, 2);
+        PrefixCache prefixCache = new PrefixCache(pool, 2);
+        List<Integer> prompt = tokens(100, 2 * BLOCK_SIZE);
+        KVCache first = computed(pool, prompt);
+        prefixCache.insert(prompt, first);
+        first.release();
+        assertEquals(2, pool.usedBlocks());
+
+        KVCache second = new KVCache(CONFIG, pool);
+        second.ensureCapacity(2 * BLOCK_SIZE);
+        assertEquals(0, prefixCache.size());
+        assertEquals(2, pool.usedBlocks());
+    }
+}
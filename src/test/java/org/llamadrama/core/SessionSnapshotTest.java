@@ -0,0 +1,144 @@
+package org.llamadrama.core;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+import org.llamadrama.gguf.GGMLType;
+import org.llamadrama.sampling.Sampler;
+import org.llamadrama.tensor.ArrayFloatTensor;
+import org.llamadrama.tensor.FloatTensor;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class SessionSnapshotTest {
+
+    // 2 layers, 2 KV heads of size 16
+    private static final LlamaModel.Configuration CONFIG =
+            new LlamaModel.Configuration(64, 128, 2, 4, 2, 8, 8 * KVBlockPool.BLOCK_SIZE, 1e-5f, 500000f);
+
+    private static final int KV_DIM = 32;
+
+    private static LlamaModel.State newState(GGMLType kvType) {
+        return new LlamaModel.State(CONFIG, 1, new KVBlockPool(CONFIG, kvType, KVBlockPool.blocksFor(CONFIG.contextLength)));
+    }
+
+    private static FloatTensor random(Random random) {
+        FloatTensor tensor = ArrayFloatTensor.allocate(KV_DIM);
+        for (int i = 0; i < KV_DIM; ++i) {
+            tensor.setFloat(i, random.nextFloat() * 2 - 1);
+        }
+        return tensor;
+    }
+
+    @ParameterizedTest
+    @EnumSource(value = GGMLType.class, names = {"F32", "F16", "Q8_0"})
+    void testRestoredStateMatches(GGMLType kvType, @TempDir Path tempDir) throws IOException {
+        Random random = new Random(3);
+        int position = 2 * KVBlockPool.BLOCK_SIZE + 7;
+        LlamaModel.State state = newState(kvType);
+        state.kvCache.ensureWritable(0, position);
+        List<Integer> tokens = new ArrayList<>();
+        for (int p = 0; p < position; ++p) {
+            tokens.add(random.nextInt(1000));
+            for (int layer = 0; layer < CONFIG.numberOfLayers; ++layer) {
+                state.kvCache.store(layer, p, random(random), random(random));
+            }
+        }
+        state.latestToken = 42;
+        Path file = tempDir.resolve("session.bin");
+        SessionSnapshot.save(file, CONFIG, state, position, tokens);
+
+        LlamaModel.State restored = newState(kvType);
+        SessionSnapshot.Session session = SessionSnapshot.restore(file, CONFIG, restored);
+        assertEquals(position, session.position());
+        assertEquals(tokens, session.tokens());
+        assertEquals(42, restored.latestToken);
+        assertEquals(KVBlockPool.blocksFor(position), restored.kvCache.numberOfBlocks());
+        for (int layer = 0; layer < CONFIG.numberOfLayers; ++layer) {
+            for (int p = 0; p < position; ++p) {
+                for (int i = 0; i < KV_DIM; ++i) {
+                    int offset = state.kvCache.offset(layer, p, i / CONFIG.headSize) + i % CONFIG.headSize;
+                    assertEquals(state.kvCache.keys(p).getFloat(offset), restored.kvCache.keys(p).getFloat(offset));
+                    assertEquals(state.kvCache.values(p).getFloat(offset), restored.kvCache.values(p).getFloat(offset));
+                }
+            }
+        }
+
+        // Writes after restoring stay private, the snapshot is unchanged.
+        FloatTensor zero = ArrayFloatTensor.allocate(KV_DIM);
+        restored.kvCache.store(0, 0, zero, zero);
+        assertEquals(0f, restored.kvCache.keys(0).getFloat(0));
+        LlamaModel.State again = newState(kvType);
+        SessionSnapshot.restore(file, CONFIG, again);
+        assertEquals(state.kvCache.keys(0).getFloat(0), again.kvCache.keys(0).getFloat(0));
+    }
+
+    @Test
+    void testReleasedSnapshotBlocksAreNotRecycled(@TempDir Path tempDir) throws IOException {
+        LlamaModel.State state = newState(GGMLType.F32);
+        state.kvCache.ensureWritable(0, KVBlockPool.BLOCK_SIZE);
+        Path file = tempDir.resolve("session.bin");
+        SessionSnapshot.save(file, CONFIG, state, KVBlockPool.BLOCK_SIZE, List.of(1));
+
+        LlamaModel.State restored = newState(GGMLType.F32);
+        SessionSnapshot.restore(file, CONFIG, restored);
+        KVBlockPool pool = restored.kvCache.pool();
+        FloatTensor mappedKeys = restored.kvCache.block(0).keys;
+        restored.kvCache.release();
+        assertEquals(0, pool.usedBlocks());
+        KVBlockPool.Block block = pool.allocate();
+        assertNotSame(mappedKeys, block.keys);
+        assertEquals(1, pool.usedBlocks());
+    }
+
+    @ParameterizedTest
+    @EnumSource(value = GGMLType.class, names = {"F16"})
+    void testMismatchingKVTypeIsRejected(GGMLType kvType, @TempDir Path tempDir) throws IOException {
+        LlamaModel.State state = newState(kvType);
+        state.kvCache.ensureWritable(0, 1);
+        Path file = tempDir.resolve("session.bin");
+        SessionSnapshot.save(file, CONFIG, state, 1, List.of(1));
+        assertThrows(IllegalArgumentException.class, () -> SessionSnapshot.restore(file, CONFIG, newState(GGMLType.F32)));
+    }
+
+    @Test
+    void testSaveAfterATurnEndingOnABlockBoundary(@TempDir Path tempDir) throws IOException {
+        LlamaModel model = LlamaModelTest.randomModel(CONFIG, 5);
+        Set<Integer> stopTokens = IntStream.range(0, CONFIG.vocabularySize).boxed().collect(Collectors.toSet());
+        List<Integer> conversation = new ArrayList<>();
+        for (int i = 0; i < 2 * KVBlockPool.BLOCK_SIZE; ++i) {
+            conversation.add(i % CONFIG.vocabularySize);
+        }
+        // The turn ends with a stop token, sampled but never forwarded, on the first position of an unallocated block.
+        LlamaModel.State state = newState(GGMLType.F32);
+        conversation.addAll(LlamaModel.generateTokens(model, state, 0, conversation, stopTokens, -1, Sampler.ARGMAX, false, null));
+        assertEquals(2 * KVBlockPool.BLOCK_SIZE + 1, conversation.size());
+        Path file = tempDir.resolve("session.bin");
+        assertThrows(IllegalArgumentException.class, () -> SessionSnapshot.save(file, CONFIG, state, conversation.size(), conversation));
+        SessionSnapshot.save(file, CONFIG, state, conversation.size() - 1, conversation);
+
+        // The next turn re-ingests the stop token and continues as if the conversation had been ingested at once.
+        LlamaModel.State restored = newState(GGMLType.F32);
+        SessionSnapshot.Session session = SessionSnapshot.restore(file, CONFIG, restored);
+        List<Integer> nextTurn = new ArrayList<>(session.tokens());
+        nextTurn.addAll(List.of(1, 2, 3));
+        LlamaModel.generateTokens(model, restored, session.position(), nextTurn.subList(session.position(), nextTurn.size()), Set.of(), nextTurn.size(), Sampler.ARGMAX, false, null);
+        LlamaModel.State expected = newState(GGMLType.F32);
+        LlamaModel.generateTokens(model, expected, 0, nextTurn, Set.of(), nextTurn.size(), Sampler.ARGMAX, false, null);
+        for (int i = 0; i < CONFIG.vocabularySize; ++i) {
+            assertEquals(expected.logits.getFloat(i), restored.logits.getFloat(i), 1e-5f);
+        }
+    }
+}
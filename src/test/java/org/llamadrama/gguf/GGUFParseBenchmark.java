@@ -0,0 +1,77 @@
+package org.llamadrama.gguf;
+
+import org.llamadrama.core.Timer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * Parses the metadata of a synthetic GGUF file shaped as Llama 3's: 128256 tokens, 280147 merges.
+ * <p>
+ * Usage: {@code GGUFParseBenchmark [model.gguf]}, parses the given file instead if any. The first iteration is the
+ * cold one (interpreted code, pages not mapped yet). Runs with eager, then lazy metadata.
+ */
+public class GGUFParseBenchmark {
+
+    private static final int ITERATIONS = 5;
+
+    public static void main(String[] args) throws IOException {
+        Path path;
+        if (args.length > 0) {
+            path = Path.of(args[0]);
+        } else {
+            path = Files.createTempFile("llama3-metadata", ".gguf");
+            path.toFile().deleteOnExit();
+            syntheticLlama3().write(path);
+        }
+        for (boolean lazyMetadata : new boolean[]{false, true}) {
+            for (int i = 0; i < ITERATIONS; ++i) {
+                GGUF gguf = GGUF.loadModel(path, lazyMetadata); // logs the parse time
+                try (var ignored = Timer.log("  Decode the tokens")) {
+                    GGUF.toStringArray(gguf.getMetadata().get("tokenizer.ggml.tokens"));
+                }
+            }
+        }
+    }
+
+    static GGUFWriter syntheticLlama3() {
+        Random random = new Random(42);
+        String[] tokens = new String[128256];
+        int[] tokenTypes = new int[tokens.length];
+        float[] scores = new float[tokens.length];
+        for (int i = 0; i < tokens.length; ++i) {
+            tokens[i] = randomToken(random, 1 + random.nextInt(8)) + i;
+            tokenTypes[i] = 1;
+        }
+        String[] merges = new String[280147];
+        for (int i = 0; i < merges.length; ++i) {
+            merges[i] = randomToken(random, 1 + random.nextInt(6)) + " " + randomToken(random, 1 + random.nextInt(6));
+        }
+        return new GGUFWriter()
+                .put("general.architecture", "llama")
+                .put("llama.embedding_length", 4096)
+                .put("llama.feed_forward_length", 14336)
+                .put("llama.block_count", 32)
+                .put("llama.attention.head_count", 32)
+                .put("llama.attention.head_count_kv", 8)
+                .put("llama.context_length", 131072)
+                .put("llama.attention.layer_norm_rms_epsilon", 1e-5f)
+                .put("llama.rope.freq_base", 500000f)
+                .put("tokenizer.ggml.model", "gpt2")
+                .put("tokenizer.ggml.tokens", tokens)
+                .put("tokenizer.ggml.scores", scores)
+                .put("tokenizer.ggml.token_type", tokenTypes)
+                .put("tokenizer.ggml.merges", merges)
+                .tensor("token_embd.weight", GGMLType.Q8_0, 4096, 32);
+    }
+
+    private static String randomToken(Random random, int length) {
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; ++i) {
+            sb.append((char) ('a' + random.nextInt(26)));
+        }
+        return sb.toString();
+    }
+}
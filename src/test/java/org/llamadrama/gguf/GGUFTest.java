@@ -0,0 +1,155 @@
+package org.llamadrama.gguf;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class GGUFTest {
+
+    private static Path writeModel(Path tempDir) throws IOException {
+        Path path = tempDir.resolve("model.gguf");
+        new GGUFWriter()
+                .put("general.architecture", "llama")
+                .put("general.name", "ünïcode 🦙")
+                .put("llama.block_count", 32)
+                .put("llama.rope.freq_base", 500000f)
+                .put("test.int8", (byte) -3)
+                .put("test.int16", (short) 1234)
+                .put("test.uint64", 1L << 40)
+                .put("test.float64", Math.PI)
+                .put("test.bool", true)
+                .put("test.bytes", new byte[]{1, -2, 3})
+                .put("test.shorts", new short[]{-1, 2})
+                .put("test.ints", new int[]{7, 8, 9})
+                .put("test.floats", new float[]{0.5f, -1.5f})
+                .put("test.booleans", new boolean[]{true, false})
+                .put("test.strings", new String[]{"a", "", "b c", "é"})
+                .put("test.nested", new Object[]{new int[]{1, 2}, new String[]{"x"}})
+                .tensor("token_embd.weight", GGMLType.Q8_0, 64, 3)
+                .tensor("output_norm.weight", GGMLType.F32, 64)
+                .write(path);
+        return path;
+    }
+
+    @Test
+    void testMetadataAndTensorInfos(@TempDir Path tempDir) throws IOException {
+        Path path = writeModel(tempDir);
+        GGUF gguf = GGUF.loadModel(path);
+        Map<String, Object> metadata = gguf.getMetadata();
+        assertEquals(16, metadata.size());
+        assertEquals("llama", metadata.get("general.architecture"));
+        assertEquals("ünïcode 🦙", metadata.get("general.name"));
+        assertEquals(32, metadata.get("llama.block_count"));
+        assertEquals(500000f, metadata.get("llama.rope.freq_base"));
+        assertEquals((byte) -3, metadata.get("test.int8"));
+        assertEquals((short) 1234, metadata.get("test.int16"));
+        assertEquals(1L << 40, metadata.get("test.uint64"));
+        assertEquals(Math.PI, metadata.get("test.float64"));
+        assertEquals(true, metadata.get("test.bool"));
+        assertArrayEquals(new byte[]{1, -2, 3}, (byte[]) metadata.get("test.bytes"));
+        assertArrayEquals(new short[]{-1, 2}, (short[]) metadata.get("test.shorts"));
+        assertArrayEquals(new int[]{7, 8, 9}, (int[]) metadata.get("test.ints"));
+        assertArrayEquals(new float[]{0.5f, -1.5f}, (float[]) metadata.get("test.floats"));
+        assertArrayEquals(new boolean[]{true, false}, (boolean[]) metadata.get("test.booleans"));
+        assertArrayEquals(new String[]{"a", "", "b c", "é"}, (String[]) metadata.get("test.strings"));
+        Object[] nested = (Object[]) metadata.get("test.nested");
+        assertArrayEquals(new int[]{1, 2}, (int[]) nested[0]);
+        assertArrayEquals(new String[]{"x"}, (String[]) nested[1]);
+
+        Map<String, GGUF.GGUFTensorInfo> tensorInfos = gguf.getTensorInfos();
+        assertEquals(2, tensorInfos.size());
+        GGUF.GGUFTensorInfo embeddings = tensorInfos.get("token_embd.weight");
+        assertArrayEquals(new int[]{64, 3}, embeddings.dimensions());
+        assertEquals(GGMLType.Q8_0, embeddings.ggmlType());
+        assertEquals(0, embeddings.offset());
+        GGUF.GGUFTensorInfo norm = tensorInfos.get("output_norm.weight");
+        assertEquals(GGMLType.F32, norm.ggmlType());
+        assertEquals(224, norm.offset()); // 204 bytes of Q8_0, aligned
+
+        // the tensor data follows the aligned header
+        long tensorDataSize = 224 + 256;
+        assertEquals(0, gguf.getTensorDataOffset() % gguf.getAlignment());
+        assertEquals(Files.size(path) - tensorDataSize, gguf.getTensorDataOffset());
+    }
+
+    @Test
+    void testLazyMetadataMatches(@TempDir Path tempDir) throws IOException {
+        Path path = writeModel(tempDir);
+        GGUF eager = GGUF.loadModel(path);
+        GGUF lazy = GGUF.loadModel(path, true);
+        assertEquals(eager.getTensorDataOffset(), lazy.getTensorDataOffset());
+        assertEquals(eager.getTensorInfos().keySet(), lazy.getTensorInfos().keySet());
+
+        Map<String, Object> metadata = lazy.getMetadata();
+        assertEquals(eager.getMetadata().keySet(), metadata.keySet());
+        assertTrue(metadata.containsKey("test.strings"));
+        assertNull(metadata.get("missing"));
+        assertEquals(32, metadata.get("llama.block_count"));
+        assertEquals(500000f, metadata.getOrDefault("llama.rope.freq_base", 10000f));
+        assertArrayEquals((int[]) eager.getMetadata().get("test.ints"), (int[]) metadata.get("test.ints"));
+        assertSame(metadata.get("test.ints"), metadata.get("test.ints")); // decoded once
+
+        // string arrays are views over the mapped file
+        GGUF.MappedStrings strings = assertInstanceOf(GGUF.MappedStrings.class, metadata.get("test.strings"));
+        assertEquals(List.of("a", "", "b c", "é"), strings);
+        assertArrayEquals(new String[]{"a", "", "b c", "é"}, GGUF.toStringArray(strings));
+        assertThrows(IndexOutOfBoundsException.class, () -> strings.get(4));
+        Object[] nested = (Object[]) metadata.get("test.nested");
+        assertEquals(List.of("x"), nested[1]);
+
+        for (Map.Entry<String, Object> entry : metadata.entrySet()) {
+            Object expected = eager.getMetadata().get(entry.getKey());
+            if (expected instanceof String[] array) {
+                assertArrayEquals(array, GGUF.toStringArray(entry.getValue()));
+            } else if (!(expected instanceof Object[])) {
+                assertEquals(Arrays.deepToString(new Object[]{expected}), Arrays.deepToString(new Object[]{entry.getValue()}));
+            }
+        }
+    }
+
+    @Test
+    void testLazyParsingWithExplicitAlignment(@TempDir Path tempDir) throws IOException {
+        Path path = tempDir.resolve("aligned.gguf");
+        new GGUFWriter()
+                .put("general.architecture", "llama")
+                .put("general.alignment", 32)
+                .put("general.name", "aligned")
+                .tensor("token_embd.weight", GGMLType.F32, 8, 2)
+                .tensor("output_norm.weight", GGMLType.F32, 8)
+                .write(path);
+        GGUF eager = GGUF.loadModel(path);
+        GGUF lazy = GGUF.loadModel(path, true);
+        assertEquals(32, lazy.getAlignment());
+        assertEquals(0, eager.getTensorDataOffset() % 32);
+        assertEquals(eager.getTensorDataOffset(), lazy.getTensorDataOffset());
+        assertEquals(eager.getTensorInfos().keySet(), lazy.getTensorInfos().keySet());
+        for (GGUF.GGUFTensorInfo expected : eager.getTensorInfos().values()) {
+            GGUF.GGUFTensorInfo actual = lazy.getTensorInfos().get(expected.name());
+            assertArrayEquals(expected.dimensions(), actual.dimensions());
+            assertEquals(expected.ggmlType(), actual.ggmlType());
+            assertEquals(expected.offset(), actual.offset());
+        }
+        assertEquals("aligned", lazy.getMetadata().get("general.name"));
+    }
+
+    @Test
+    void testInvalidMagic(@TempDir Path tempDir) throws IOException {
+        Path path = tempDir.resolve("model.gguf");
+        Files.write(path, new byte[64]);
+        assertThrows(IllegalArgumentException.class, () -> GGUF.loadModel(path));
+    }
+}
@@ -0,0 +1,160 @@
+package org.llamadrama.gguf;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Writes small GGUF files for tests: the metadata (typed after the Java values), the tensor infos and zeroed
+ * tensor data.
+ */
+final class GGUFWriter {
+
+    private final Map<String, Object> metadata = new LinkedHashMap<>();
+    private final Map<String, GGUF.GGUFTensorInfo> tensorInfos = new LinkedHashMap<>();
+    private long tensorDataSize;
+
+    GGUFWriter put(String key, Object value) {
+        metadata.put(key, value);
+        return this;
+    }
+
+    GGUFWriter tensor(String name, GGMLType type, int... dimensions) {
+        long size = 1;
+        for (int d : dimensions) {
+            size *= d;
+        }
+        tensorInfos.put(name, new GGUF.GGUFTensorInfo(name, dimensions, type, tensorDataSize));
+        tensorDataSize += (type.byteSizeFor(Math.toIntExact(size)) + 31) & ~31;
+        return this;
+    }
+
+    void write(Path path) throws IOException {
+        try (LittleEndianOutput out = new LittleEndianOutput(new BufferedOutputStream(Files.newOutputStream(path), 1 << 16))) {
+            out.writeInt(0x46554747);
+            out.writeInt(3);
+            out.writeLong(tensorInfos.size());
+            out.writeLong(metadata.size());
+            for (Map.Entry<String, Object> entry : metadata.entrySet()) {
+                out.writeString(entry.getKey());
+                out.writeInt(typeOf(entry.getValue()).ordinal());
+                writeValue(out, entry.getValue());
+            }
+            for (GGUF.GGUFTensorInfo ti : tensorInfos.values()) {
+                out.writeString(ti.name());
+                out.writeInt(ti.dimensions().length);
+                for (int d : ti.dimensions()) {
+                    out.writeLong(d);
+                }
+                out.writeInt(ti.ggmlType().ordinal());
+                out.writeLong(ti.offset());
+            }
+            while (out.position % 32 != 0) {
+                out.writeByte(0);
+            }
+            for (long i = 0; i < tensorDataSize; ++i) {
+                out.writeByte(0);
+            }
+        }
+    }
+
+    private static GGUF.MetadataValueType typeOf(Object value) {
+        return switch (value) {
+            case Byte v -> GGUF.MetadataValueType.INT8;
+            case Short v -> GGUF.MetadataValueType.INT16;
+            case Integer v -> GGUF.MetadataValueType.UINT32;
+            case Long v -> GGUF.MetadataValueType.UINT64;
+            case Float v -> GGUF.MetadataValueType.FLOAT32;
+            case Double v -> GGUF.MetadataValueType.FLOAT64;
+            case Boolean v -> GGUF.MetadataValueType.BOOL;
+            case String v -> GGUF.MetadataValueType.STRING;
+            default -> {
+                if (!value.getClass().isArray()) {
+                    throw new IllegalArgumentException("Unsupported metadata value: " + value);
+                }
+                yield GGUF.MetadataValueType.ARRAY;
+            }
+        };
+    }
+
+    private static GGUF.MetadataValueType elementTypeOf(Object array) {
+        return switch (array) {
+            case byte[] v -> GGUF.MetadataValueType.INT8;
+            case short[] v -> GGUF.MetadataValueType.INT16;
+            case int[] v -> GGUF.MetadataValueType.INT32;
+            case float[] v -> GGUF.MetadataValueType.FLOAT32;
+            case boolean[] v -> GGUF.MetadataValueType.BOOL;
+            case String[] v -> GGUF.MetadataValueType.STRING;
+            case Object[] v -> GGUF.MetadataValueType.ARRAY;
+            default -> throw new IllegalArgumentException("Unsupported metadata array: " + array);
+        };
+    }
+
+    private static void writeValue(LittleEndianOutput out, Object value) throws IOException {
+        switch (value) {
+            case Byte b -> out.writeByte(b);
+            case Short s -> out.writeShort(s);
+            case Integer i -> out.writeInt(i);
+            case Long l -> out.writeLong(l);
+            case Float f -> out.writeInt(Float.floatToRawIntBits(f));
+            case Double d -> out.writeLong(Double.doubleToRawLongBits(d));
+            case Boolean b -> out.writeByte(b ? 1 : 0);
+            case String s -> out.writeString(s);
+            default -> {
+                out.writeInt(elementTypeOf(value).ordinal());
+                int length = Array.getLength(value);
+                out.writeLong(length);
+                for (int i = 0; i < length; ++i) {
+                    writeValue(out, Array.get(value, i));
+                }
+            }
+        }
+    }
+
+    private static final class LittleEndianOutput implements AutoCloseable {
+        private final OutputStream out;
+        long position;
+
+        LittleEndianOutput(OutputStream out) {
+            this.out = out;
+        }
+
+        void writeByte(int value) throws IOException {
+            out.write(value);
+            position++;
+        }
+
+        void writeShort(int value) throws IOException {
+            writeByte(value);
+            writeByte(value >>> 8);
+        }
+
+        void writeInt(int value) throws IOException {
+            writeShort(value);
+            writeShort(value >>> 16);
+        }
+
+        void writeLong(long value) throws IOException {
+            writeInt((int) value);
+            writeInt((int) (value >>> 32));
+        }
+
+        void writeString(String s) throws IOException {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            writeLong(bytes.length);
+            out.write(bytes);
+            position += bytes.length;
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package org.llamadrama.math;
+
+import org.junit.jupiter.api.Test;
+import org.llamadrama.tensor.ArrayFloatTensor;
+import org.llamadrama.tensor.FloatTensor;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class RoPETest {
+
+    private static final int HEAD_SIZE = 64;
+    private static final double THETA = 500000;
+
+    private static FloatTensor random(int size, long seed) {
+        Random random = new Random(seed);
+        FloatTensor tensor = ArrayFloatTensor.allocate(size);
+        for (int i = 0; i < size; ++i) {
+            tensor.setFloat(i, random.nextFloat() * 2 - 1);
+        }
+        return tensor;
+    }
+
+    // The complex rotation of every pair of every head, one element at a time.
+    private static FloatTensor reference(FloatTensor x, int position, float[] frequencies) {
+        FloatTensor out = ArrayFloatTensor.allocate(x.size());
+        for (int i = 0; i < x.size(); i += 2) {
+            double angle = position * (double) frequencies[(i % HEAD_SIZE) / 2];
+            float fcr = (float) Math.cos(angle);
+            float fci = (float) Math.sin(angle);
+            float v0 = x.getFloat(i);
+            float v1 = x.getFloat(i + 1);
+            out.setFloat(i, v0 * fcr - v1 * fci);
+            out.setFloat(i + 1, v0 * fci + v1 * fcr);
+        }
+        return out;
+    }
+
+    private static float[] frequencies() {
+        float[] frequencies = new float[HEAD_SIZE / 2];
+        for (int i = 0; i < HEAD_SIZE; i += 2) {
+            frequencies[i / 2] = (float) (1.0 / Math.pow(THETA, i / (double) HEAD_SIZE));
+        }
+        return frequencies;
+    }
+
+    @Test
+    void testRotateMatchesTheComplexRotation() {
+        RoPE rope = new RoPE(HEAD_SIZE, THETA, null, null);
+        for (int position : new int[]{0, 1, 17, 1000}) {
+            FloatTensor x = random(4 * HEAD_SIZE, position);
+            FloatTensor expected = reference(x, position, frequencies());
+            rope.rotate(x, 0, x.size(), rope.rotation(position));
+            for (int i = 0; i < x.size(); ++i) {
+                assertEquals(expected.getFloat(i), x.getFloat(i), 1e-4f);
+            }
+        }
+    }
+
+    @Test
+    void testRotationsCompose() {
+        RoPE rope = new RoPE(HEAD_SIZE, THETA, null, null);
+        FloatTensor x = random(2 * HEAD_SIZE, 1);
+        FloatTensor moved = random(2 * HEAD_SIZE, 1);
+        rope.rotate(x, 0, x.size(), rope.rotation(300));
+        rope.rotate(moved, 0, moved.size(), rope.rotation(500));
+        rope.rotate(moved, 0, moved.size(), rope.rotation(-200));
+        for (int i = 0; i < x.size(); ++i) {
+            assertEquals(x.getFloat(i), moved.getFloat(i), 1e-4f);
+        }
+    }
+
+    @Test
+    void testScaling() {
+        int position = 12345;
+        float[] base = frequencies();
+
+        float[] linear = base.clone();
+        for (int i = 0; i < linear.length; ++i) {
+            linear[i] /= 4;
+        }
+        assertRotates(new RoPE(HEAD_SIZE, THETA, null, new RoPE.Scaling("linear", 4, 1, 4, 8192)), position, linear);
+
+        // rope_freqs.weight: divisors of the frequencies, take precedence over the metadata
+        float[] factors = new float[HEAD_SIZE / 2];
+        float[] divided = base.clone();
+        for (int i = 0; i < factors.length; ++i) {
+            factors[i] = 1 + i;
+            divided[i] /= factors[i];
+        }
+        assertRotates(new RoPE(HEAD_SIZE, THETA, factors, new RoPE.Scaling("linear", 4, 1, 4, 8192)), position, divided);
+
+        // llama3: the high frequencies (short wavelengths) are kept, the low ones divided by the factor
+        RoPE.Scaling llama3 = new RoPE.Scaling("llama3", 8, 1, 4, 8192);
+        float[] scaled = base.clone();
+        for (int i = 0; i < scaled.length; ++i) {
+            double wavelength = 2 * Math.PI / base[i];
+            if (wavelength > 8192) {
+                scaled[i] /= 8;
+            } else if (wavelength >= 8192 / 4f) {
+                scaled[i] = Float.NaN; // smoothed, not checked
+            }
+        }
+        RoPE rope = new RoPE(HEAD_SIZE, THETA, null, llama3);
+        FloatTensor x = random(HEAD_SIZE, 2);
+        FloatTensor expected = reference(x, position, scaled);
+        rope.rotate(x, 0, HEAD_SIZE, rope.rotation(position));
+        for (int i = 0; i < HEAD_SIZE; ++i) {
+            if (!Float.isNaN(scaled[i / 2])) {
+                assertEquals(expected.getFloat(i), x.getFloat(i), 1e-3f);
+            }
+        }
+
+        assertThrows(IllegalArgumentException.class, () -> new RoPE(HEAD_SIZE, THETA, null, new RoPE.Scaling("yarn", 4, 1, 4, 8192)));
+    }
+
+    private static void assertRotates(RoPE rope, int position, float[] frequencies) {
+        FloatTensor x = random(HEAD_SIZE, 3);
+        FloatTensor expected = reference(x, position, frequencies);
+        rope.rotate(x, 0, HEAD_SIZE, rope.rotation(position));
+        for (int i = 0; i < HEAD_SIZE; ++i) {
+            assertEquals(expected.getFloat(i), x.getFloat(i), 1e-3f);
+        }
+    }
+}
@@ -6,6 +6,11 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.llamadrama.gguf.GGMLType;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Random;
+
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -174,6 +179,88 @@ class FloatTensorTest {
         assertArrayEquals(tensor.getData(), dest.getData(), DELTA);
     }
 
+    private static float[] randomValues(int size, long seed) {
+        Random random = new Random(seed);
+        float[] values = new float[size];
+        for (int i = 0; i < size; ++i) {
+            values[i] = random.nextFloat() * 4 - 2;
+        }
+        return values;
+    }
+
+    @Test
+    void testArrayFloatTensorMatchesScalarImplementation() {
+        // Odd sizes and offsets exercise both the vector loops and the scalar remainders.
+        int size = 77;
+        int offset = 3;
+        float[] a = randomValues(size + offset, 1);
+        float[] b = randomValues(size + offset, 2);
+
+        assertEquals(
+                new TestFloatTensor(a.clone()).dot(offset, new TestFloatTensor(b.clone()), 1, size - 2),
+                new ArrayFloatTensor(a.clone()).dot(offset, new ArrayFloatTensor(b.clone()), 1, size - 2),
+                1e-4f);
+
+        TestFloatTensor expected = new TestFloatTensor(a.clone());
+        ArrayFloatTensor actual = new ArrayFloatTensor(a.clone());
+        expected.addInPlace(offset, new TestFloatTensor(b.clone()), 0, size);
+        actual.addInPlace(offset, new ArrayFloatTensor(b.clone()), 0, size);
+        assertArrayEquals(expected.getData(), actual.values, DELTA);
+
+        expected.multiplyInPlace(1, new TestFloatTensor(b.clone()), offset, size);
+        actual.multiplyInPlace(1, new ArrayFloatTensor(b.clone()), offset, size);
+        assertArrayEquals(expected.getData(), actual.values, DELTA);
+
+        expected.saxpyInPlace(offset, new TestFloatTensor(b.clone()), 2, size - 2, 0.5f);
+        actual.saxpyInPlace(offset, new ArrayFloatTensor(b.clone()), 2, size - 2, 0.5f);
+        assertArrayEquals(expected.getData(), actual.values, 1e-5f);
+
+        expected.softmaxInPlace(offset, size);
+        actual.softmaxInPlace(offset, size);
+        assertArrayEquals(expected.getData(), actual.values, 1e-5f);
+        assertEquals(1f, actual.sum(offset, size), 1e-5f);
+        assertEquals(expected.max(0, size + offset), actual.max(0, size + offset), DELTA);
+    }
+
+    @Test
+    void testRmsnorm() {
+        int size = 77;
+        float[] x = randomValues(size, 3);
+        float[] w = randomValues(size, 4);
+        FloatBuffer heapWeight = FloatBuffer.wrap(w);
+        FloatBuffer directWeight = ByteBuffer.allocateDirect(size * Float.BYTES)
+                .order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer().put(w).flip();
+        TestFloatTensor expected = new TestFloatTensor(new float[size]);
+        expected.rmsnorm(new TestFloatTensor(x.clone()), heapWeight, size, 1e-5f);
+        for (FloatBuffer weight : new FloatBuffer[]{heapWeight, directWeight}) {
+            ArrayFloatTensor actual = new ArrayFloatTensor(new float[size]);
+            actual.rmsnorm(new ArrayFloatTensor(x.clone()), weight, size, 1e-5f);
+            assertArrayEquals(expected.getData(), actual.values, 1e-5f);
+            // in place, as done for the final rmsnorm
+            ArrayFloatTensor inPlace = new ArrayFloatTensor(x.clone());
+            inPlace.rmsnorm(inPlace, weight, size, 1e-5f);
+            assertArrayEquals(expected.getData(), inPlace.values, 1e-5f);
+        }
+    }
+
+    @Test
+    void testRotatePairsInPlace() {
+        int size = 70; // not a multiple of the vector length
+        int offset = 6;
+        float[] x = randomValues(offset + size, 5);
+        float[] cos = randomValues(size, 6);
+        float[] sin = randomValues(size, 7);
+        TestFloatTensor expected = new TestFloatTensor(x.clone());
+        expected.rotatePairsInPlace(offset, size, cos, sin);
+        ArrayFloatTensor actual = new ArrayFloatTensor(x.clone());
+        actual.rotatePairsInPlace(offset, size, cos, sin);
+        assertArrayEquals(expected.getData(), actual.values, DELTA);
+        assertEquals(x[0], actual.values[0]);
+        // (x0, x1) * (c + i*s)
+        assertEquals(x[offset] * cos[0] + x[offset + 1] * sin[0], actual.values[offset], DELTA);
+        assertEquals(x[offset + 1] * cos[1] + x[offset] * sin[1], actual.values[offset + 1], DELTA);
+    }
+
     // Helper test implementation of FloatTensor
     private static class TestFloatTensor extends FloatTensor {
         private final float[] data;
@@ -0,0 +1,390 @@
+package org.llamadrama.tensor;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.llamadrama.gguf.GGMLType;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class QuantizedFloatTensorTest {
+    private static final ValueLayout.OfShort JAVA_SHORT_LE = ValueLayout.JAVA_SHORT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+    enum Format {
+        Q4_0(GGMLType.Q4_0, 0),
+        Q8_0(GGMLType.Q8_0, 0),
+        Q4_1(GGMLType.Q4_1, 0, 2),
+        Q5_0(GGMLType.Q5_0, 0),
+        Q5_1(GGMLType.Q5_1, 0, 2),
+        Q8_1(GGMLType.Q8_1, 0, 2),
+        Q4_K(GGMLType.Q4_K, 0, 2),
+        Q5_K(GGMLType.Q5_K, 0, 2),
+        Q6_K(GGMLType.Q6_K, Q6_KFloatTensor.D_OFFSET);
+
+        final GGMLType ggmlType;
+        final int[] float16Offsets; // within a block, overwritten with sane values
+
+        Format(GGMLType ggmlType, int... float16Offsets) {
+            this.ggmlType = ggmlType;
+            this.float16Offsets = float16Offsets;
+        }
+
+        FloatTensor create(int size, MemorySegment memorySegment) {
+            return switch (this) {
+                case Q4_0 -> new Q4_0FloatTensor(size, memorySegment);
+                case Q8_0 -> new Q8_0FloatTensor(size, memorySegment);
+                case Q4_1 -> new Q4_1FloatTensor(size, memorySegment);
+                case Q5_0 -> new Q5_0FloatTensor(size, memorySegment);
+                case Q5_1 -> new Q5_1FloatTensor(size, memorySegment);
+                case Q8_1 -> new Q8_1FloatTensor(size, memorySegment);
+                case Q4_K -> new Q4_KFloatTensor(size, memorySegment);
+                case Q5_K -> new Q5_KFloatTensor(size, memorySegment);
+                case Q6_K -> new Q6_KFloatTensor(size, memorySegment);
+            };
+        }
+
+        float[] dequantize(MemorySegment memorySegment, int numberOfBlocks) {
+            float[] out = new float[numberOfBlocks * ggmlType.getBlockSize()];
+            for (int b = 0; b < numberOfBlocks; ++b) {
+                MemorySegment block = memorySegment.asSlice((long) b * ggmlType.getTypeSize(), ggmlType.getTypeSize());
+                int y = b * ggmlType.getBlockSize();
+                switch (this) {
+                    case Q4_0 -> dequantizeQ4_0(block, out, y);
+                    case Q8_0 -> dequantizeQ8_0(block, out, y);
+                    case Q4_1, Q5_0, Q5_1 -> dequantizeQ4_1OrQ5(block, this, out, y);
+                    case Q8_1 -> dequantizeQ8_1(block, out, y);
+                    case Q4_K, Q5_K -> dequantizeQ4_KOrQ5_K(block, this == Q5_K, out, y);
+                    case Q6_K -> dequantizeQ6_K(block, out, y);
+                }
+            }
+            return out;
+        }
+    }
+
+    private static int u8(MemorySegment segment, long offset) {
+        return Byte.toUnsignedInt(segment.get(ValueLayout.JAVA_BYTE, offset));
+    }
+
+    private static float f16(MemorySegment segment, long offset) {
+        return Float.float16ToFloat(segment.get(JAVA_SHORT_LE, offset));
+    }
+
+    // Straight port of dequantize_row_q4_1/q5_0/q5_1 from ggml-quants.c.
+    private static void dequantizeQ4_1OrQ5(MemorySegment block, Format format, float[] y, int yi) {
+        float d = f16(block, 0);
+        float m = format == Format.Q5_0 ? 0 : f16(block, 2);
+        int qhOffset = format == Format.Q5_0 ? 2 : 4;
+        int qh = format == Format.Q4_1 ? 0 : block.get(ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN), qhOffset);
+        int qs = format == Format.Q4_1 ? 4 : qhOffset + 4;
+        for (int j = 0; j < 16; ++j) {
+            int xh0 = ((qh >> j) << 4) & 0x10;
+            int xh1 = (qh >> (j + 12)) & 0x10;
+            int x0 = (u8(block, qs + j) & 0x0F) | xh0;
+            int x1 = (u8(block, qs + j) >> 4) | xh1;
+            if (format == Format.Q5_0) {
+                x0 -= 16;
+                x1 -= 16;
+            }
+            y[yi + j] = x0 * d + m;
+            y[yi + j + 16] = x1 * d + m;
+        }
+    }
+
+    // Straight port of dequantize_row_q4_0.
+    private static void dequantizeQ4_0(MemorySegment block, float[] y, int yi) {
+        float d = f16(block, 0);
+        for (int j = 0; j < 16; ++j) {
+            y[yi + j] = ((u8(block, 2 + j) & 0x0F) - 8) * d;
+            y[yi + j + 16] = ((u8(block, 2 + j) >> 4) - 8) * d;
+        }
+    }
+
+    // Straight port of dequantize_row_q8_0.
+    private static void dequantizeQ8_0(MemorySegment block, float[] y, int yi) {
+        float d = f16(block, 0);
+        for (int j = 0; j < 32; ++j) {
+            y[yi + j] = block.get(ValueLayout.JAVA_BYTE, 2 + j) * d;
+        }
+    }
+
+    // Straight port of dequantize_row_q8_1 (the s field is ignored).
+    private static void dequantizeQ8_1(MemorySegment block, float[] y, int yi) {
+        float d = f16(block, 0);
+        for (int j = 0; j < 32; ++j) {
+            y[yi + j] = block.get(ValueLayout.JAVA_BYTE, 4 + j) * d;
+        }
+    }
+
+    // Straight port of dequantize_row_q4_K/q5_K from ggml-quants.c.
+    private static void dequantizeQ4_KOrQ5_K(MemorySegment block, boolean q5, float[] y, int yi) {
+        float d = f16(block, 0);
+        float min = f16(block, 2);
+        int scales = 4;
+        int qh = scales + 12;
+        int ql = q5 ? qh + 32 : qh;
+        int is = 0;
+        int u1 = 1, u2 = 2;
+        for (int j = 0; j < GGMLType.QK_K; j += 64) {
+            int[] sm0 = scaleMin(block, scales, is);
+            int[] sm1 = scaleMin(block, scales, is + 1);
+            float d1 = d * sm0[0], m1 = min * sm0[1];
+            float d2 = d * sm1[0], m2 = min * sm1[1];
+            for (int l = 0; l < 32; ++l) {
+                int h = q5 && (u8(block, qh + l) & u1) != 0 ? 16 : 0;
+                y[yi++] = d1 * ((u8(block, ql + l) & 0xF) + h) - m1;
+            }
+            for (int l = 0; l < 32; ++l) {
+                int h = q5 && (u8(block, qh + l) & u2) != 0 ? 16 : 0;
+                y[yi++] = d2 * ((u8(block, ql + l) >> 4) + h) - m2;
+            }
+            ql += 32;
+            is += 2;
+            u1 <<= 2;
+            u2 <<= 2;
+        }
+    }
+
+    private static int[] scaleMin(MemorySegment block, int q, int j) {
+        if (j < 4) {
+            return new int[]{u8(block, q + j) & 63, u8(block, q + j + 4) & 63};
+        }
+        return new int[]{
+                (u8(block, q + j + 4) & 0xF) | ((u8(block, q + j - 4) >> 6) << 4),
+                (u8(block, q + j + 4) >> 4) | ((u8(block, q + j) >> 6) << 4)
+        };
+    }
+
+    // Straight port of dequantize_row_q6_K from ggml-quants.c.
+    private static void dequantizeQ6_K(MemorySegment block, float[] y, int yi) {
+        float d = f16(block, Q6_KFloatTensor.D_OFFSET);
+        int ql = 0;
+        int qh = Q6_KFloatTensor.QH_OFFSET;
+        int sc = Q6_KFloatTensor.SCALES_OFFSET;
+        for (int n = 0; n < GGMLType.QK_K; n += 128) {
+            for (int l = 0; l < 32; ++l) {
+                int is = l / 16;
+                int q1 = ((u8(block, ql + l) & 0xF) | (((u8(block, qh + l) >> 0) & 3) << 4)) - 32;
+                int q2 = ((u8(block, ql + l + 32) & 0xF) | (((u8(block, qh + l) >> 2) & 3) << 4)) - 32;
+                int q3 = ((u8(block, ql + l) >> 4) | (((u8(block, qh + l) >> 4) & 3) << 4)) - 32;
+                int q4 = ((u8(block, ql + l + 32) >> 4) | (((u8(block, qh + l) >> 6) & 3) << 4)) - 32;
+                y[yi + l] = d * block.get(ValueLayout.JAVA_BYTE, sc + is) * q1;
+                y[yi + l + 32] = d * block.get(ValueLayout.JAVA_BYTE, sc + is + 2) * q2;
+                y[yi + l + 64] = d * block.get(ValueLayout.JAVA_BYTE, sc + is + 4) * q3;
+                y[yi + l + 96] = d * block.get(ValueLayout.JAVA_BYTE, sc + is + 6) * q4;
+            }
+            yi += 128;
+            ql += 64;
+            qh += 32;
+            sc += 8;
+        }
+    }
+
+    private static MemorySegment randomBlocks(Format format, int numberOfBlocks, Random random) {
+        GGMLType ggmlType = format.ggmlType;
+        MemorySegment memorySegment = Arena.ofAuto().allocate((long) numberOfBlocks * ggmlType.getTypeSize());
+        for (long i = 0; i < memorySegment.byteSize(); ++i) {
+            memorySegment.set(ValueLayout.JAVA_BYTE, i, (byte) random.nextInt());
+        }
+        for (int b = 0; b < numberOfBlocks; ++b) {
+            for (int offset : format.float16Offsets) {
+                short scale = Float.floatToFloat16(random.nextFloat() / 64);
+                memorySegment.set(JAVA_SHORT_LE, (long) b * ggmlType.getTypeSize() + offset, scale);
+            }
+        }
+        return memorySegment;
+    }
+
+    private static ArrayFloatTensor randomActivations(int size, Random random) {
+        float[] values = new float[size];
+        for (int i = 0; i < size; ++i) {
+            values[i] = random.nextFloat() * 2 - 1;
+        }
+        return new ArrayFloatTensor(values);
+    }
+
+    @ParameterizedTest
+    @EnumSource(Format.class)
+    void testGetFloatMatchesReferenceDequantization(Format format) {
+        Random random = new Random(42);
+        int numberOfBlocks = 3;
+        MemorySegment memorySegment = randomBlocks(format, numberOfBlocks, random);
+        FloatTensor tensor = format.create(numberOfBlocks * format.ggmlType.getBlockSize(), memorySegment);
+        float[] expected = format.dequantize(memorySegment, numberOfBlocks);
+        for (int i = 0; i < expected.length; ++i) {
+            assertEquals(expected[i], tensor.getFloat(i), 1e-6f, "index " + i);
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(Format.class)
+    void testDotMatchesScalarDot(Format format) {
+        Random random = new Random(7);
+        int numberOfBlocks = 4;
+        int size = numberOfBlocks * format.ggmlType.getBlockSize();
+        FloatTensor tensor = format.create(size, randomBlocks(format, numberOfBlocks, random));
+        ArrayFloatTensor activations = randomActivations(size, random);
+        int blockSize = format.ggmlType.getBlockSize();
+        int[][] ranges = {
+                {0, size},                  // whole row
+                {blockSize, 2 * blockSize}, // aligned
+                {3, size - 3},              // unaligned head
+                {blockSize, blockSize + 5}, // remainder only
+        };
+        for (int[] range : ranges) {
+            int offset = range[0];
+            int length = range[1] - range[0];
+            float expected = FloatTensor.scalarDot(tensor, offset, activations, offset, length);
+            float actual = tensor.dot(offset, activations, offset, length);
+            assertEquals(expected, actual, Math.max(1e-3f, Math.abs(expected) * 1e-4f), "range " + offset + "+" + length);
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(Format.class)
+    void testBatchedMatmulMatchesDot(Format format) {
+        Random random = new Random(11);
+        int dim0 = 9; // two full row tiles and a partial one
+        int dim1 = Math.max(768, format.ggmlType.getBlockSize()); // spans more than one column block
+        int numberOfBlocks = dim0 * dim1 / format.ggmlType.getBlockSize();
+        FloatTensor tensor = format.create(dim0 * dim1, randomBlocks(format, numberOfBlocks, random));
+        int context = 3;
+        FloatTensor[] that = new FloatTensor[context];
+        FloatTensor[] out = new FloatTensor[context];
+        for (int t = 0; t < context; ++t) {
+            that[t] = randomActivations(dim1, random);
+            out[t] = ArrayFloatTensor.allocate(dim0);
+        }
+        tensor.matmul(context, that, out, dim0, dim1);
+        for (int t = 0; t < context; ++t) {
+            for (int i = 0; i < dim0; ++i) {
+                float expected = FloatTensor.scalarDot(tensor, i * dim1, that[t], 0, dim1);
+                assertEquals(expected, out[t].getFloat(i), Math.max(1e-3f, Math.abs(expected) * 1e-4f), "token " + t + ", row " + i);
+            }
+        }
+    }
+
+    @Test
+    void testQuantizeActivations() {
+        Random random = new Random(3);
+        ArrayFloatTensor x = randomActivations(4 * GGMLType.Q8_0.getBlockSize(), random);
+        x.setFloat(5, 0f);
+        Q8_0ArrayFloatTensor xq = (Q8_0ArrayFloatTensor) Q8_0ArrayFloatTensor.allocate(x.size());
+        xq.quantize(x);
+        for (int i = 0; i < x.size(); ++i) {
+            // Rounding error is at most half a step, a step being amax / 127 <= 1 / 127.
+            assertEquals(x.getFloat(i), xq.getFloat(i), 0.5f / 127 + 1e-6f, "index " + i);
+        }
+        assertEquals(0f, xq.getFloat(5));
+    }
+
+    @ParameterizedTest
+    @EnumSource(value = Format.class, names = {"Q4_0", "Q8_0"})
+    void testDotWithQuantizedActivationsMatchesScalarDot(Format format) {
+        Random random = new Random(5);
+        int numberOfBlocks = 4;
+        int size = numberOfBlocks * format.ggmlType.getBlockSize();
+        FloatTensor tensor = format.create(size, randomBlocks(format, numberOfBlocks, random));
+        assertTrue(tensor.supportsQ8_0Activations());
+        Q8_0ArrayFloatTensor activations = (Q8_0ArrayFloatTensor) Q8_0ArrayFloatTensor.allocate(size);
+        activations.quantize(randomActivations(size, random));
+        int blockSize = format.ggmlType.getBlockSize();
+        int[][] ranges = {
+                {0, 0, size},                          // whole row
+                {blockSize, blockSize, 2 * blockSize}, // aligned
+                {3, 3, size - 3},                      // unaligned head
+                {0, 5, size - 5},                      // blocks do not line up
+        };
+        for (int[] range : ranges) {
+            int thisOffset = range[0];
+            int thatOffset = range[1];
+            int length = range[2] - range[1];
+            float expected = FloatTensor.scalarDot(tensor, thisOffset, activations, thatOffset, length);
+            float actual = tensor.dot(thisOffset, activations, thatOffset, length);
+            assertEquals(expected, actual, Math.max(1e-3f, Math.abs(expected) * 1e-4f), "range " + thisOffset + "/" + thatOffset + "+" + length);
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {4, 8})
+    void testInterleavedQ4_0MatchesQ4_0(int rowsPerGroup) {
+        Random random = new Random(13);
+        int dim0 = 16;
+        int dim1 = 96;
+        int numberOfBlocks = dim0 * dim1 / GGMLType.Q4_0.getBlockSize();
+        Q4_0FloatTensor tensor = (Q4_0FloatTensor) Format.Q4_0.create(dim0 * dim1, randomBlocks(Format.Q4_0, numberOfBlocks, random));
+        InterleavedQ4_0FloatTensor interleaved = InterleavedQ4_0FloatTensor.repack(tensor, dim0, dim1, rowsPerGroup);
+        for (int i = 0; i < tensor.size(); ++i) {
+            assertEquals(tensor.getFloat(i), interleaved.getFloat(i), "index " + i);
+        }
+        for (int context : new int[]{1, 3}) {
+            FloatTensor[] that = new FloatTensor[context];
+            FloatTensor[] expected = new FloatTensor[context];
+            FloatTensor[] actual = new FloatTensor[context];
+            for (int t = 0; t < context; ++t) {
+                that[t] = randomActivations(dim1, random);
+                expected[t] = ArrayFloatTensor.allocate(dim0);
+                actual[t] = ArrayFloatTensor.allocate(dim0);
+            }
+            tensor.matmul(context, that, expected, dim0, dim1);
+            interleaved.matmul(context, that, actual, dim0, dim1);
+            for (int t = 0; t < context; ++t) {
+                for (int i = 0; i < dim0; ++i) {
+                    float e = expected[t].getFloat(i);
+                    assertEquals(e, actual[t].getFloat(i), Math.max(1e-3f, Math.abs(e) * 1e-4f), "context " + context + ", token " + t + ", row " + i);
+                }
+            }
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(value = GGMLType.class, names = {"F16", "BF16", "Q8_0"})
+    void testWritableTensorRoundTrip(GGMLType type) {
+        Random random = new Random(17);
+        int size = 8 * 32;
+        FloatTensor values = randomActivations(size, random);
+        FloatTensor tensor = FloatTensor.allocate(type, size);
+        values.copyTo(0, tensor, 0, size);
+        // relative precision of the encoding: 11 bits (F16), 8 bits (BF16), 1/254 of the block amax (Q8_0)
+        float tolerance = switch (type) {
+            case F16 -> 1f / 2048;
+            case BF16 -> 1f / 256;
+            default -> 1f / 254;
+        };
+        for (int i = 0; i < size; ++i) {
+            assertEquals(values.getFloat(i), tensor.getFloat(i), tolerance * 1.01f, "index " + i);
+        }
+        FloatTensor copy = FloatTensor.allocate(type, size);
+        tensor.copyTo(32, copy, 64, 128);
+        for (int i = 0; i < 128; ++i) {
+            assertEquals(tensor.getFloat(32 + i), copy.getFloat(64 + i), "copy, index " + i);
+        }
+
+        // the vectorized kernels read the encoded values
+        int[][] ranges = {{0, size}, {32, 64}, {3, size - 3 - 5}};
+        for (int[] range : ranges) {
+            int offset = range[0];
+            int length = range[1];
+            FloatTensor q = randomActivations(length, random);
+            float expected = FloatTensor.scalarDot(tensor, offset, q, 0, length);
+            assertEquals(expected, q.dot(0, tensor, offset, length), Math.max(1e-4f, Math.abs(expected) * 1e-5f), "dot " + offset + "+" + length);
+
+            FloatTensor expectedOut = randomActivations(length, new Random(offset));
+            FloatTensor actualOut = randomActivations(length, new Random(offset));
+            for (int i = 0; i < length; ++i) {
+                expectedOut.setFloat(i, expectedOut.getFloat(i) + 0.25f * tensor.getFloat(offset + i));
+            }
+            actualOut.saxpyInPlace(0, tensor, offset, length, 0.25f);
+            for (int i = 0; i < length; ++i) {
+                assertEquals(expectedOut.getFloat(i), actualOut.getFloat(i), 1e-6f, "saxpy " + offset + "+" + length + ", index " + i);
+            }
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package org.llamadrama.tokenizer;
+
+import org.junit.jupiter.api.Test;
+import org.llamadrama.util.Pair;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ChunkCacheTest {
+
+    @Test
+    void testHitsMissesAndBound() {
+        ChunkCache cache = new ChunkCache(4);
+        assertNull(cache.get("a"));
+        cache.put("a", new int[]{1});
+        assertArrayEquals(new int[]{1}, cache.get("a"));
+        for (int i = 0; i < 10; ++i) {
+            cache.put("k" + i, new int[]{i});
+        }
+        assertEquals(4, cache.size());
+        assertEquals(7, cache.evictions());
+        assertEquals(1, cache.hits());
+        assertEquals(1, cache.misses());
+        assertThrows(IllegalArgumentException.class, () -> new ChunkCache(0));
+    }
+
+    @Test
+    void testReferencedEntriesGetASecondChance() {
+        ChunkCache cache = new ChunkCache(3);
+        cache.put("hot", new int[]{0});
+        cache.put("b", new int[]{1});
+        cache.put("c", new int[]{2});
+        for (int i = 0; i < 10; ++i) {
+            assertNotNull(cache.get("hot"));
+            cache.put("cold" + i, new int[]{i});
+        }
+        assertNotNull(cache.get("hot"));
+        assertNull(cache.get("b"));
+    }
+
+    @Test
+    void testLongChunksAreNotCached() {
+        ChunkCache cache = new ChunkCache(4);
+        String chunk = "x".repeat(ChunkCache.MAX_CHUNK_LENGTH + 1);
+        cache.put(chunk, new int[]{1});
+        assertNull(cache.get(chunk));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    void testConcurrentEncodingMatchesUncached() throws Exception {
+        Vocabulary vocabulary = new Vocabulary(new String[]{"a", "b", "c", " ", "ab", "abc", " a", " ab"});
+        List<Pair<Integer, Integer>> merges = List.of(
+                new Pair<>(0, 1), new Pair<>(4, 2),
+                new Pair<>(3, 0), new Pair<>(6, 1));
+        Tokenizer uncached = new Tokenizer(vocabulary, merges, Llama3PreTokenizer.PATTERN, Map.of(), 0);
+        Tokenizer cached = new Tokenizer(vocabulary, merges, Llama3PreTokenizer.PATTERN, Map.of(), 8); // evicts a lot
+        String[] words = {"a", "ab", "abc", "ba", "cab", "abcabc", "bbb"};
+        List<String> texts = new ArrayList<>();
+        Random random = new Random(5);
+        for (int i = 0; i < 200; ++i) {
+            StringBuilder sb = new StringBuilder();
+            for (int w = random.nextInt(30); w >= 0; --w) {
+                sb.append(words[random.nextInt(words.length)]).append(random.nextInt(4) == 0 ? "  " : " ");
+            }
+            texts.add(sb.toString());
+        }
+        try (ExecutorService executor = Executors.newFixedThreadPool(4)) {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 4; ++t) {
+                futures.add(executor.submit(() -> {
+                    for (String text : texts) {
+                        assertEquals(uncached.encodeOrdinary(text), cached.encodeOrdinary(text));
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        }
+        ChunkCache cache = cached.chunkCache();
+        assertEquals(8, cache.capacity());
+        assertEquals(cache.hits() + cache.misses(), 4 * texts.stream().mapToLong(ChunkCacheTest::chunks).sum());
+        assertNull(uncached.chunkCache());
+    }
+
+    private static long chunks(String text) {
+        long chunks = 0;
+        for (int start = 0; start < text.length(); start = Llama3PreTokenizer.chunkEnd(text, start)) {
+            chunks++;
+        }
+        return chunks;
+    }
+}
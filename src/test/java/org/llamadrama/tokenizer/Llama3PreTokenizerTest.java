@@ -0,0 +1,95 @@
+package org.llamadrama.tokenizer;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.llamadrama.util.Pair;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class Llama3PreTokenizerTest {
+
+    private static final Pattern PATTERN = Pattern.compile(Llama3PreTokenizer.PATTERN);
+
+    private static List<String> regexChunks(String text) {
+        List<String> chunks = new ArrayList<>();
+        Matcher matcher = PATTERN.matcher(text);
+        while (matcher.find()) {
+            chunks.add(matcher.group());
+        }
+        return chunks;
+    }
+
+    private static List<String> scannerChunks(String text) {
+        List<String> chunks = new ArrayList<>();
+        for (int start = 0, end; start < text.length(); start = end) {
+            end = Llama3PreTokenizer.chunkEnd(text, start);
+            chunks.add(text.substring(start, end));
+        }
+        return chunks;
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "", "Hello world", "I'm sure they'll say it's fine, WE'VE SEEN'T", "'x '", "12345 6789.0",
+            "  leading and trailing  ", "a\n\nb\r\n  c \n", "\t\tindented\n    code();\n", " \u000B\f ",
+            "émoji 🦙🦙 ünïcode 中文字符 ٣٤٥ Ⅻ ²³", "foo!!!\n\nbar??", "'", " ", "\n", "x  ",
+            "ĠHelloĠworldĊĊ", // byte-level encoded text, as the tokenizer sees it
+    })
+    void testSamples(String text) {
+        assertEquals(regexChunks(text), scannerChunks(text));
+    }
+
+    // Code points from the classes the pattern distinguishes, and their edges.
+    private static final int[] POOL = {
+            'a', 'z', 'A', 'Z', 's', 'S', 't', 'T', 'r', 'R', 'e', 'E', 'v', 'V', 'm', 'M', 'l', 'L', 'd', 'D', '\'',
+            '0', '9', ' ', ' ', ' ', '\t', '\n', '\n', '\r', 0x0B, '\f', '!', '.', ',', '-', '_', '"', '(', '{',
+            0x00, 0x1F, 0x7F, 0x85, 0xA0, 0x2028, 0x3000, // not \s in Java without UNICODE_CHARACTER_CLASS
+            0xE9, 0xDF, 0x17F, 0x212A, 0x130, // letters, some with special case mappings
+            0x0120, 0x010A, 0x0100, // byte-level encoded space, newline and control
+            0x0663, 0x0966, 0x2167, 0x00B2, 0x2460, // Nd, Nl, No numbers
+            0x0301, 0x20AC, 0x4E2D, 0x3042, 0x05D0, // combining mark, currency, CJK, kana, Hebrew
+            0x1F999, 0x1D400, 0x1D7CE, 0x10140, // supplementary: emoji, math letter, math digit, Greek number
+            0xD800, 0xDC00, // lone surrogates
+    };
+
+    private static String randomText(Random random, int length) {
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < length) {
+            int cp = random.nextInt(8) == 0
+                    ? random.nextInt(Character.MAX_CODE_POINT + 1) // anything, possibly unassigned
+                    : POOL[random.nextInt(POOL.length)];
+            sb.appendCodePoint(cp);
+        }
+        return sb.toString();
+    }
+
+    @Test
+    void testRandomizedUnicodeCorpus() {
+        Random random = new Random(23);
+        for (int i = 0; i < 20000; ++i) {
+            String text = randomText(random, random.nextInt(i < 10000 ? 12 : 200));
+            assertEquals(regexChunks(text), scannerChunks(text), () -> text.codePoints()
+                    .mapToObj(cp -> String.format("U+%04X", cp)).toList().toString());
+        }
+    }
+
+    @Test
+    void testTokenizerUsesTheScanner() {
+        Vocabulary vocabulary = new Vocabulary(new String[]{"a", "b", " ", "'", "s", "ab", " a"});
+        List<Pair<Integer, Integer>> merges = List.of(
+                new Pair<>(0, 1), new Pair<>(2, 0));
+        Tokenizer scanner = new Tokenizer(vocabulary, merges, Llama3PreTokenizer.PATTERN, Map.of());
+        Tokenizer regex = new Tokenizer(vocabulary, merges, "(?:" + Llama3PreTokenizer.PATTERN + ")", Map.of());
+        for (String text : List.of("ab ab's  a", "a's b 'sab  ", "")) {
+            assertEquals(regex.encodeOrdinary(text), scanner.encodeOrdinary(text));
+        }
+    }
+}
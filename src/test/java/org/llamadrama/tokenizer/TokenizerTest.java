@@ -139,4 +139,121 @@ class TokenizerTest {
                 Arguments.of("\n", Set.of())
         );
     }
+
+    // The original minbpe merge loop: rescans all the pairs and merges the best one everywhere, until none is left.
+    private static List<Integer> referenceEncodeChunk(Vocabulary vocabulary, Map<Pair<Integer, Integer>, Integer> merges, String chunk) {
+        List<Integer> ids = new ArrayList<>();
+        for (char c : chunk.toCharArray()) {
+            ids.add(vocabulary.getIndex(String.valueOf(c)).orElseThrow());
+        }
+        while (ids.size() >= 2) {
+            Pair<Integer, Integer> best = null;
+            for (int i = 0; i + 1 < ids.size(); i++) {
+                Pair<Integer, Integer> pair = new Pair<>(ids.get(i), ids.get(i + 1));
+                if (merges.containsKey(pair) && (best == null || merges.get(pair) < merges.get(best))) {
+                    best = pair;
+                }
+            }
+            if (best == null) {
+                break;
+            }
+            List<Integer> merged = new ArrayList<>();
+            for (int i = 0; i < ids.size(); ) {
+                if (i + 1 < ids.size() && ids.get(i).equals(best.first()) && ids.get(i + 1).equals(best.second())) {
+                    merged.add(merges.get(best));
+                    i += 2;
+                } else {
+                    merged.add(ids.get(i));
+                    i += 1;
+                }
+            }
+            ids = merged;
+        }
+        return ids;
+    }
+
+    @Test
+    void testMergesMatchTheReference() {
+        Random random = new Random(7);
+        // All the strings of up to 5 letters over a small alphabet, in order of length as a trained vocabulary.
+        String alphabet = "abcd ";
+        List<String> tokens = new ArrayList<>();
+        for (char c : alphabet.toCharArray()) {
+            tokens.add(String.valueOf(c));
+        }
+        for (int from = 0, to = tokens.size(); tokens.size() < 1000; from = to, to = tokens.size()) {
+            for (int i = from; i < to; ++i) {
+                for (char c : alphabet.toCharArray()) {
+                    tokens.add(tokens.get(i) + c);
+                }
+            }
+        }
+        Vocabulary vocabulary = new Vocabulary(tokens.toArray(String[]::new));
+        // One merge per multi-letter token, split at a random place, for a random subset of them.
+        List<Pair<Integer, Integer>> mergeList = new ArrayList<>();
+        Map<Pair<Integer, Integer>, Integer> merges = new HashMap<>();
+        for (int t = alphabet.length(); t < tokens.size(); ++t) {
+            String token = tokens.get(t);
+            int split = 1 + random.nextInt(token.length() - 1);
+            if (random.nextInt(4) == 0) {
+                continue;
+            }
+            Pair<Integer, Integer> pair = new Pair<>(vocabulary.getIndex(token.substring(0, split)).orElseThrow(),
+                    vocabulary.getIndex(token.substring(split)).orElseThrow());
+            mergeList.add(pair);
+            merges.put(pair, t);
+        }
+        Tokenizer bpe = new Tokenizer(vocabulary, mergeList, ".+", Map.of());
+        for (int i = 0; i < 2000; ++i) {
+            StringBuilder sb = new StringBuilder();
+            int length = random.nextInt(i < 1000 ? 20 : 300);
+            // repetitive inputs too, e.g. "aaaa..." and "abab..."
+            int period = 1 + random.nextInt(alphabet.length());
+            for (int j = 0; j < length; ++j) {
+                sb.append(alphabet.charAt(i % 3 == 0 ? j % period : random.nextInt(alphabet.length())));
+            }
+            String chunk = sb.toString();
+            List<Integer> expected = referenceEncodeChunk(vocabulary, merges, chunk);
+            assertEquals(expected, Arrays.stream(bpe.encodeChunk(chunk)).boxed().toList(), chunk);
+        }
+    }
+
+    private static String randomText(Random random, String alphabet, int length) {
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; ++i) {
+            sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        return sb.toString();
+    }
+
+    @Test
+    void testParallelEncodingMatchesSequential() {
+        Random random = new Random(25);
+        // gaps between the matches of the regex are skipped
+        String text = randomText(random, "abc123!@#  ", 200_000);
+        assertArrayEquals(tokenizer.encodeSequential(text), tokenizer.encodeParallel(text));
+
+        Vocabulary vocabulary = new Vocabulary(new String[]{"a", "b", " ", "\n", "!", "ab", " a", "\n\n"});
+        List<Pair<Integer, Integer>> merges = List.of(new Pair<>(0, 1), new Pair<>(2, 0), new Pair<>(3, 3));
+        Tokenizer scanner = new Tokenizer(vocabulary, merges, Llama3PreTokenizer.PATTERN, Map.of());
+        String llama3Text = randomText(random, "aab  \n!", 200_000);
+        int[] expected = scanner.encodeSequential(llama3Text);
+        assertArrayEquals(expected, scanner.encodeParallel(llama3Text));
+        assertEquals(Arrays.stream(expected).boxed().toList(), scanner.encodeOrdinary(llama3Text));
+        assertArrayEquals(new int[0], scanner.encodeParallel(""));
+    }
+
+    @Test
+    void testEncodeBatch() {
+        Random random = new Random(11);
+        List<String> texts = new ArrayList<>();
+        for (int i = 0; i < 100; ++i) {
+            texts.add(randomText(random, "abcehlost123!@#", random.nextInt(i == 0 ? 1 : 1000)));
+        }
+        List<int[]> batch = tokenizer.encodeBatch(texts);
+        assertEquals(texts.size(), batch.size());
+        for (int i = 0; i < texts.size(); ++i) {
+            assertArrayEquals(tokenizer.encode(texts.get(i)), batch.get(i));
+        }
+    }
 }
@@ -0,0 +1,83 @@
+package org.llamadrama.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ComputePoolTest {
+
+    private final ComputePool pool = new ComputePool(4);
+
+    @Test
+    void testEveryIndexRunsOnce() {
+        for (int n : new int[]{0, 1, 3, 4, 17, 64, 1000}) {
+            AtomicIntegerArray counts = new AtomicIntegerArray(n + 5);
+            pool.parallelFor(5, n + 5, i -> counts.incrementAndGet((int) i));
+            for (int i = 0; i < counts.length(); ++i) {
+                assertEquals(i < 5 ? 0 : 1, counts.get(i), "n=" + n + ", index " + i);
+            }
+        }
+    }
+
+    @Test
+    void testResultsAreVisibleToTheCaller() {
+        for (int round = 0; round < 100; ++round) {
+            float[] out = new float[257];
+            int value = round;
+            pool.parallelFor(0, out.length, i -> out[(int) i] = value + i);
+            for (int i = 0; i < out.length; ++i) {
+                assertEquals(round + i, out[i]);
+            }
+        }
+    }
+
+    @Test
+    void testNestedCallsRunInline() {
+        AtomicLong sum = new AtomicLong();
+        pool.parallelFor(0, 8, i -> pool.parallelFor(0, 10, j -> sum.addAndGet(j)));
+        assertEquals(8 * 45, sum.get());
+    }
+
+    @Test
+    void testExceptionIsPropagated() {
+        IllegalStateException e = assertThrows(IllegalStateException.class, () -> pool.parallelFor(0, 100, i -> {
+            if (i == 99) {
+                throw new IllegalStateException("boom");
+            }
+        }));
+        assertEquals("boom", e.getMessage());
+        // The pool is still usable.
+        AtomicLong count = new AtomicLong();
+        pool.parallelFor(0, 100, i -> count.incrementAndGet());
+        assertEquals(100, count.get());
+    }
+
+    @Test
+    void testConcurrentCallers() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            Future<?>[] futures = new Future<?>[3];
+            AtomicLong sum = new AtomicLong();
+            for (int c = 0; c < futures.length; ++c) {
+                futures[c] = executor.submit(() -> {
+                    for (int round = 0; round < 50; ++round) {
+                        pool.parallelFor(0, 100, i -> sum.addAndGet(i));
+                    }
+                });
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            assertEquals(3L * 50 * 4950, sum.get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+}